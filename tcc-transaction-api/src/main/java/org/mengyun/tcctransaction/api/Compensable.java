@@ -25,6 +25,10 @@ public @interface Compensable {
     public boolean asyncConfirm() default false;
     //异步取消
     public boolean asyncCancel() default false;
+    //并行提交各参与者
+    public boolean parallelConfirm() default false;
+    //并行取消各参与者
+    public boolean parallelCancel() default false;
 
     //无事务上下文编辑器实现
     class NullableTransactionContextEditor implements TransactionContextEditor {
@@ -0,0 +1,14 @@
+package org.mengyun.tcctransaction.api;
+
+import java.util.UUID;
+
+/**
+ * Random (version 4) UUIDs, the ids of TransactionXid since the beginning and the default.
+ */
+public class RandomTransactionIdGenerator implements TransactionIdGenerator {
+
+    @Override
+    public byte[] generate() {
+        return UuidUtils.uuidToByteArray(UUID.randomUUID());
+    }
+}
@@ -0,0 +1,66 @@
+package org.mengyun.tcctransaction.api;
+
+import java.security.SecureRandom;
+
+/**
+ * Time ordered ids laid out as version 7 UUIDs: 48 bits of milliseconds, a 12 bit sequence within the millisecond
+ * and 62 random bits drawn once per thread.
+ * <p/>
+ * Nothing is shared between threads after the first id of a thread, and ids of the same thread are strictly
+ * increasing: the sequence continues into the next millisecond when it overflows or the clock goes back. New ids
+ * append to the end of an index on GLOBAL_TX_ID instead of landing on random pages.
+ */
+public class TimeOrderedTransactionIdGenerator implements TransactionIdGenerator {
+
+    private static final SecureRandom SEED = new SecureRandom();
+
+    private static final int MAX_SEQUENCE = 0xFFF;
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(SEED.nextLong());
+        }
+    };
+
+    @Override
+    public byte[] generate() {
+
+        State state = states.get();
+
+        long now = System.currentTimeMillis();
+
+        if (now > state.timestamp) {
+            state.timestamp = now;
+            state.sequence = 0;
+        } else if (++state.sequence > MAX_SEQUENCE) {
+            state.timestamp++;
+            state.sequence = 0;
+        }
+
+        long mostSigBits = (state.timestamp << 16) | 0x7000L | state.sequence;
+        long leastSigBits = (state.node & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+
+        byte[] bytes = new byte[16];
+
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (mostSigBits >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (leastSigBits >>> (56 - 8 * i));
+        }
+
+        return bytes;
+    }
+
+    private static class State {
+
+        private final long node;
+
+        private long timestamp;
+
+        private int sequence;
+
+        State(long node) {
+            this.node = node;
+        }
+    }
+}
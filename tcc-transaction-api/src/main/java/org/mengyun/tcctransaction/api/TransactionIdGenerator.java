@@ -0,0 +1,13 @@
+package org.mengyun.tcctransaction.api;
+
+/**
+ * Generates the global transaction ids and branch qualifiers of new TransactionXids, see
+ * {@link TransactionXid#setIdGenerator(TransactionIdGenerator)}.
+ */
+public interface TransactionIdGenerator {
+
+    /**
+     * @return 16 new bytes, unique across all the applications sharing a transaction repository
+     */
+    byte[] generate();
+}
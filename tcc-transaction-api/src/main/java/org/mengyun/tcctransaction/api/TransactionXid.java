@@ -14,28 +14,41 @@ public class TransactionXid implements Xid, Serializable {
 
     private static final long serialVersionUID = -6817267250789142043L;
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private int formatId = 1;
 
     private byte[] globalTransactionId;//全局事务编号
 
     private byte[] branchQualifier;//分支事务编号
 
+    private static volatile TransactionIdGenerator idGenerator = new RandomTransactionIdGenerator();
+
+    // toString 是 Redis key / ZK path / 文件名，计算一次
+    private transient String string;
+
+    private transient String hexString;
+
     public TransactionXid() {
-        globalTransactionId = uuidToByteArray(UUID.randomUUID());
-        branchQualifier = uuidToByteArray(UUID.randomUUID());
+        globalTransactionId = idGenerator.generate();
+        branchQualifier = idGenerator.generate();
     }
 
     public void setGlobalTransactionId(byte[] globalTransactionId) {
         this.globalTransactionId = globalTransactionId;
+        this.string = null;
+        this.hexString = null;
     }
 
     public void setBranchQualifier(byte[] branchQualifier) {
         this.branchQualifier = branchQualifier;
+        this.string = null;
+        this.hexString = null;
     }
 
     public TransactionXid(byte[] globalTransactionId) {
         this.globalTransactionId = globalTransactionId;
-        branchQualifier = uuidToByteArray(UUID.randomUUID());
+        branchQualifier = idGenerator.generate();
     }
 
     public TransactionXid(byte[] globalTransactionId, byte[] branchQualifier) {
@@ -58,14 +71,52 @@ public class TransactionXid implements Xid, Serializable {
         return branchQualifier;
     }
 
+    /**
+     * Replaces the generator of the ids of new xids for the whole JVM, random UUIDs by default.
+     */
+    public static void setIdGenerator(TransactionIdGenerator idGenerator) {
+        TransactionXid.idGenerator = idGenerator;
+    }
+
+    public static TransactionIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
     @Override
     public String toString() {
 
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(UUID.nameUUIDFromBytes(globalTransactionId).toString());
-        stringBuilder.append(":").append(UUID.nameUUIDFromBytes(branchQualifier).toString());
+        String value = string;
+
+        if (value == null) {
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append(UUID.nameUUIDFromBytes(globalTransactionId).toString());
+            stringBuilder.append(":").append(UUID.nameUUIDFromBytes(branchQualifier).toString());
+
+            value = stringBuilder.toString();
+            string = value;
+        }
+
+        return value;
+    }
+
+    /**
+     * @return the global transaction id and the branch qualifier in hex separated by ':', unlike toString reversible
+     */
+    public String toHexString() {
 
-        return stringBuilder.toString();
+        String value = hexString;
+
+        if (value == null) {
+            StringBuilder stringBuilder = new StringBuilder(65);
+            appendHex(stringBuilder, globalTransactionId);
+            stringBuilder.append(':');
+            appendHex(stringBuilder, branchQualifier);
+
+            value = stringBuilder.toString();
+            hexString = value;
+        }
+
+        return value;
     }
 
     public TransactionXid clone() {
@@ -114,11 +165,15 @@ public class TransactionXid implements Xid, Serializable {
         return true;
     }
 
-    private static byte[] uuidToByteArray(UUID uuid) {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
+    private static void appendHex(StringBuilder stringBuilder, byte[] bytes) {
+
+        if (bytes == null) {
+            return;
+        }
+
+        for (byte b : bytes) {
+            stringBuilder.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
     }
 
     private static UUID byteArrayToUUID(byte[] bytes) {
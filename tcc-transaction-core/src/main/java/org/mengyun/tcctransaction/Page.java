@@ -0,0 +1,27 @@
+package org.mengyun.tcctransaction;
+
+import java.util.List;
+
+/**
+ * One batch of a paged scan. Pass nextOffset back to get the following batch, it is null once the scan is complete.
+ * A page may hold fewer entries than requested, or none, while nextOffset is still set.
+ */
+public class Page<T> {
+
+    private final List<T> data;
+
+    private final String nextOffset;
+
+    public Page(List<T> data, String nextOffset) {
+        this.data = data;
+        this.nextOffset = nextOffset;
+    }
+
+    public List<T> getData() {
+        return data;
+    }
+
+    public String getNextOffset() {
+        return nextOffset;
+    }
+}
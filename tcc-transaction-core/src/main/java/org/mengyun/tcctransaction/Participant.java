@@ -73,4 +73,8 @@ public class Participant implements Serializable {
         return cancelInvocationContext;
     }
 
+    public Class<? extends TransactionContextEditor> getTransactionContextEditorClass() {
+        return transactionContextEditorClass;
+    }
+
 }
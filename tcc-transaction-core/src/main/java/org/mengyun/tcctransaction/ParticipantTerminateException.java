@@ -0,0 +1,23 @@
+package org.mengyun.tcctransaction;
+
+import java.util.List;
+
+/**
+ * Thrown when participants confirmed or cancelled in parallel failed or did not finish in time.
+ * The first failure is the cause, all of them are kept in failures.
+ */
+public class ParticipantTerminateException extends RuntimeException {
+
+    private static final long serialVersionUID = -2478932051924128317L;
+
+    private final List<Throwable> failures;
+
+    public ParticipantTerminateException(int participantCount, List<Throwable> failures) {
+        super(String.format("%d of %d participants failed", failures.size(), participantCount), failures.get(0));
+        this.failures = failures;
+    }
+
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+}
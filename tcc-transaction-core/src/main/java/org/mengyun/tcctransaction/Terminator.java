@@ -2,11 +2,9 @@ package org.mengyun.tcctransaction;
 
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionContextEditor;
-import org.mengyun.tcctransaction.support.FactoryBuilder;
 import org.mengyun.tcctransaction.utils.StringUtils;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
 
 /**
  * Created by changmingxie on 10/30/15.
@@ -25,21 +23,8 @@ public class Terminator implements Serializable {
 
         if (StringUtils.isNotEmpty(invocationContext.getMethodName())) {
 
-            try {
-                // 获得 参与者对象
-                Object target = FactoryBuilder.factoryOf(invocationContext.getTargetClass()).getInstance();
-
-                Method method = null;
-                // 获得 方法
-                method = target.getClass().getMethod(invocationContext.getMethodName(), invocationContext.getParameterTypes());
-                // 设置 事务上下文 到方法参数
-                FactoryBuilder.factoryOf(transactionContextEditorClass).getInstance().set(transactionContext, target, method, invocationContext.getArgs());
-                // 执行方法
-                return method.invoke(target, invocationContext.getArgs());
-
-            } catch (Exception e) {
-                throw new SystemException(e);
-            }
+            return TerminatorInvoker.of(invocationContext.getTargetClass(), invocationContext.getMethodName(), invocationContext.getParameterTypes())
+                    .invoke(transactionContext, transactionContextEditorClass, invocationContext.getArgs());
         }
         return null;
     }
@@ -0,0 +1,134 @@
+package org.mengyun.tcctransaction;
+
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionContextEditor;
+import org.mengyun.tcctransaction.context.MethodTransactionContextEditor;
+import org.mengyun.tcctransaction.support.FactoryBuilder;
+import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
+import org.mengyun.tcctransaction.utils.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A confirm or cancel method resolved against its participant object, so {@link Terminator} looks up the object
+ * and the method once per (target class, method name, parameter types) instead of on every invocation.
+ * <p/>
+ * Invokers are resolved on first use, or ahead of it by {@link #prepare(Class, String, Class[])}. Lookups failing
+ * are not cached and fail again on the next invocation, as before.
+ */
+public final class TerminatorInvoker {
+
+    private static final ConcurrentMap<Key, TerminatorInvoker> INVOKERS = new ConcurrentHashMap<Key, TerminatorInvoker>();
+
+    private final Object target;
+
+    private final Method method;
+
+    private final int transactionContextPosition;
+
+    private TerminatorInvoker(Object target, Method method) {
+        this.target = target;
+        this.method = method;
+        this.transactionContextPosition = CompensableMethodUtils.getTransactionContextParamPosition(method.getParameterTypes());
+    }
+
+    public static TerminatorInvoker of(Class targetClass, String methodName, Class[] parameterTypes) {
+
+        Key key = new Key(targetClass, methodName, parameterTypes);
+
+        TerminatorInvoker invoker = INVOKERS.get(key);
+
+        if (invoker == null) {
+            invoker = resolve(targetClass, methodName, parameterTypes);
+            TerminatorInvoker existing = INVOKERS.putIfAbsent(key, invoker);
+            if (existing != null) {
+                invoker = existing;
+            }
+        }
+
+        return invoker;
+    }
+
+    /**
+     * Resolves the invoker ahead of the first confirm or cancel, e.g. when the application starts.
+     */
+    public static void prepare(Class targetClass, String methodName, Class[] parameterTypes) {
+        of(targetClass, methodName, parameterTypes);
+    }
+
+    private static TerminatorInvoker resolve(Class targetClass, String methodName, Class[] parameterTypes) {
+
+        try {
+            // 获得 参与者对象
+            Object target = FactoryBuilder.factoryOf(targetClass).getInstance();
+            // 获得 方法
+            Method method = target.getClass().getMethod(methodName, parameterTypes);
+            ReflectionUtils.makeAccessible(method);
+            return new TerminatorInvoker(target, method);
+        } catch (Exception e) {
+            throw new SystemException(e);
+        }
+    }
+
+    public Object invoke(TransactionContext transactionContext, Class<? extends TransactionContextEditor> transactionContextEditorClass, Object[] args) {
+
+        try {
+            // 设置 事务上下文 到方法参数
+            if (Compensable.DefaultTransactionContextEditor.class.equals(transactionContextEditorClass)
+                    || MethodTransactionContextEditor.class.equals(transactionContextEditorClass)) {
+                if (transactionContextPosition >= 0) {
+                    args[transactionContextPosition] = transactionContext;
+                }
+            } else {
+                FactoryBuilder.factoryOf(transactionContextEditorClass).getInstance().set(transactionContext, target, method, args);
+            }
+            // 执行方法
+            return method.invoke(target, args);
+        } catch (Exception e) {
+            throw new SystemException(e);
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    private static final class Key {
+
+        private final Class targetClass;
+
+        private final String methodName;
+
+        private final Class[] parameterTypes;
+
+        private final int hashCode;
+
+        Key(Class targetClass, String methodName, Class[] parameterTypes) {
+            this.targetClass = targetClass;
+            this.methodName = methodName;
+            this.parameterTypes = parameterTypes;
+            this.hashCode = 31 * (31 * targetClass.hashCode() + methodName.hashCode()) + Arrays.hashCode(parameterTypes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (other == null || getClass() != other.getClass()) return false;
+
+            Key that = (Key) other;
+
+            return targetClass.equals(that.targetClass)
+                    && methodName.equals(that.methodName)
+                    && Arrays.equals(parameterTypes, that.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
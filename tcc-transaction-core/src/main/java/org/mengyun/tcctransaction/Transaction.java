@@ -1,6 +1,7 @@
 package org.mengyun.tcctransaction;
 
 
+import com.alibaba.fastjson.annotation.JSONField;
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.api.TransactionXid;
@@ -13,6 +14,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by changmingxie on 10/26/15.
@@ -49,6 +55,16 @@ public class Transaction implements Serializable {
         this.transactionType = TransactionType.BRANCH;// 分支事务
     }
 
+    /**
+     * Restores a stored transaction, for serializers not going through java serialization.
+     */
+    public Transaction(TransactionXid xid, TransactionStatus status, TransactionType transactionType, Date createTime) {
+        this.xid = xid;
+        this.status = status;
+        this.transactionType = transactionType;
+        this.createTime = createTime;
+    }
+
 //创建指定类型的事务
     public Transaction(TransactionType transactionType) {
         this.xid = new TransactionXid();
@@ -65,6 +81,14 @@ public class Transaction implements Serializable {
         return xid.clone();
     }
 
+    /**
+     * The xid itself rather than a copy, for keys and lookups, it must not be modified.
+     */
+    @JSONField(serialize = false)
+    public TransactionXid getTransactionXid() {
+        return xid;
+    }
+
     public TransactionStatus getStatus() {
         return status;
     }
@@ -96,6 +120,71 @@ public class Transaction implements Serializable {
         }
     }
 
+    /**
+     * Commits the participants concurrently on the executor and waits for all of them, at most timeout milliseconds.
+     * Every failure is reported in one ParticipantTerminateException, the transaction is left to recovery.
+     */
+    public void commit(ExecutorService executorService, long timeout) {
+        terminate(executorService, timeout, true);
+    }
+
+    /**
+     * Rolls back the participants concurrently, see {@link #commit(ExecutorService, long)}.
+     */
+    public void rollback(ExecutorService executorService, long timeout) {
+        terminate(executorService, timeout, false);
+    }
+
+    private void terminate(ExecutorService executorService, long timeout, final boolean commit) {
+
+        if (participants.size() <= 1) {
+            if (commit) {
+                commit();
+            } else {
+                rollback();
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(participants.size());
+
+        for (final Participant participant : participants) {
+            futures.add(executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (commit) {
+                        participant.commit();
+                    } else {
+                        participant.rollback();
+                    }
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        List<Throwable> failures = new ArrayList<Throwable>();
+
+        for (Future<?> future : futures) {
+            try {
+                future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                failures.add(new TimeoutException(String.format("participant did not finish within %d ms", timeout)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(false);
+                failures.add(e);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new ParticipantTerminateException(participants.size(), failures);
+        }
+    }
+
     public int getRetriedCount() {
         return retriedCount;
     }
@@ -5,9 +5,9 @@ import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.common.TransactionType;
 
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by changmingxie on 10/26/15. ，事务管理器，提供事务的获取、发起、提交、回滚，参与者的新增等等方法
@@ -18,10 +18,23 @@ public class TransactionManager {
 
     private TransactionRepository transactionRepository;
 
-    private static final ThreadLocal<Deque<Transaction>> CURRENT = new ThreadLocal<Deque<Transaction>>();
+    private static final ThreadLocal<TransactionStack> CURRENT = new ThreadLocal<TransactionStack>() {
+        @Override
+        protected TransactionStack initialValue() {
+            return new TransactionStack();
+        }
+    };
 
     private ExecutorService executorService;
 
+    private ExecutorService participantExecutorService;
+
+    private boolean parallelConfirm = false;
+
+    private boolean parallelCancel = false;
+
+    private long parallelTerminateTimeout = 30 * 1000L;
+
     public void setTransactionRepository(TransactionRepository transactionRepository) {
         this.transactionRepository = transactionRepository;
     }
@@ -30,6 +43,32 @@ public class TransactionManager {
         this.executorService = executorService;
     }
 
+    /**
+     * The executor confirming/cancelling the participants of one transaction concurrently.
+     * Without it participants are always terminated one after another.
+     */
+    public void setParticipantExecutorService(ExecutorService participantExecutorService) {
+        this.participantExecutorService = participantExecutorService;
+    }
+
+    /**
+     * Confirm the participants of every transaction concurrently, not only those of @Compensable(parallelConfirm = true) methods.
+     */
+    public void setParallelConfirm(boolean parallelConfirm) {
+        this.parallelConfirm = parallelConfirm;
+    }
+
+    public void setParallelCancel(boolean parallelCancel) {
+        this.parallelCancel = parallelCancel;
+    }
+
+    /**
+     * @param parallelTerminateTimeout milliseconds to wait for participants terminated concurrently
+     */
+    public void setParallelTerminateTimeout(long parallelTerminateTimeout) {
+        this.parallelTerminateTimeout = parallelTerminateTimeout;
+    }
+
     public TransactionManager() {
     }
 
@@ -83,12 +122,23 @@ public class TransactionManager {
     }
 
     public void commit(boolean asyncCommit) {
+        commit(asyncCommit, false);
+    }
+
+    public void commit(boolean asyncCommit, boolean parallelCommit) {
        // 获取 事务
-        final Transaction transaction = getCurrentTransaction();
+        commit(getCurrentTransaction(), asyncCommit, parallelCommit);
+    }
+
+    /**
+     * Commits a transaction the caller already looked up, saving the lookup of the current transaction.
+     */
+    public void commit(final Transaction transaction, boolean asyncCommit, boolean parallelCommit) {
+        final boolean parallel = parallelCommit || parallelConfirm;
         // 设置 事务状态 为 CONFIRMING
         transaction.changeStatus(TransactionStatus.CONFIRMING);
         // 更新 事务
-        transactionRepository.update(transaction);
+        transactionRepository.updateStatus(transaction);
 
         if (asyncCommit) {//异步提交
             try {
@@ -97,16 +147,19 @@ public class TransactionManager {
                 executorService.submit(new Runnable() {
                     @Override
                     public void run() {
-                        commitTransaction(transaction);
+                        commitTransaction(transaction, parallel);
                     }
                 });
                 logger.debug("async submit cost time:" + (System.currentTimeMillis() - statTime));
+            } catch (RejectedExecutionException rejectedException) {
+                // the transaction is CONFIRMING already, recovery confirms it once the executor has room again
+                logger.warn(String.format("compensable transaction async confirm rejected, recovery job will try to confirm later. executor:%s", executorService));
             } catch (Throwable commitException) {
                 logger.warn("compensable transaction async submit confirm failed, recovery job will try to confirm later.", commitException);
                 throw new ConfirmingException(commitException);
             }
         } else {
-            commitTransaction(transaction);
+            commitTransaction(transaction, parallel);
         }
     }
 
@@ -124,11 +177,19 @@ public class TransactionManager {
      * @param asyncRollback
      */
     public void rollback(boolean asyncRollback) {
+        rollback(asyncRollback, false);
+    }
 
-        final Transaction transaction = getCurrentTransaction();
+    public void rollback(boolean asyncRollback, boolean parallelRollback) {
+        rollback(getCurrentTransaction(), asyncRollback, parallelRollback);
+    }
+
+    public void rollback(final Transaction transaction, boolean asyncRollback, boolean parallelRollback) {
+
+        final boolean parallel = parallelRollback || parallelCancel;
         transaction.changeStatus(TransactionStatus.CANCELLING);
 
-        transactionRepository.update(transaction);
+        transactionRepository.updateStatus(transaction);
 
         if (asyncRollback) {
 
@@ -136,23 +197,29 @@ public class TransactionManager {
                 executorService.submit(new Runnable() {
                     @Override
                     public void run() {
-                        rollbackTransaction(transaction);
+                        rollbackTransaction(transaction, parallel);
                     }
                 });
+            } catch (RejectedExecutionException rejectedException) {
+                logger.warn(String.format("compensable transaction async rollback rejected, recovery job will try to rollback later. executor:%s", executorService));
             } catch (Throwable rollbackException) {
                 logger.warn("compensable transaction async rollback failed, recovery job will try to rollback later.", rollbackException);
                 throw new CancellingException(rollbackException);
             }
         } else {
 
-            rollbackTransaction(transaction);
+            rollbackTransaction(transaction, parallel);
         }
     }
 
 
-    private void commitTransaction(Transaction transaction) {
+    private void commitTransaction(Transaction transaction, boolean parallel) {
         try {
-            transaction.commit();// 提交 事务
+            if (parallel && participantExecutorService != null) {
+                transaction.commit(participantExecutorService, parallelTerminateTimeout);
+            } else {
+                transaction.commit();// 提交 事务
+            }
             transactionRepository.delete(transaction);// 删除 事务
         } catch (Throwable commitException) {
             logger.warn("compensable transaction confirm failed, recovery job will try to confirm later.", commitException);
@@ -160,9 +227,13 @@ public class TransactionManager {
         }
     }
 
-    private void rollbackTransaction(Transaction transaction) {
+    private void rollbackTransaction(Transaction transaction, boolean parallel) {
         try {
-            transaction.rollback();// 回滚事务
+            if (parallel && participantExecutorService != null) {
+                transaction.rollback(participantExecutorService, parallelTerminateTimeout);
+            } else {
+                transaction.rollback();// 回滚事务
+            }
             transactionRepository.delete(transaction); // 删除 事务
         } catch (Throwable rollbackException) {
             logger.warn("compensable transaction rollback failed, recovery job will try to rollback later.", rollbackException);
@@ -171,15 +242,67 @@ public class TransactionManager {
     }
 
     public Transaction getCurrentTransaction() {
-        if (isTransactionActive()) {
-            return CURRENT.get().peek();// 获得头部元素
-        }
-        return null;
+        return CURRENT.get().peek();// 获得头部元素
     }
 
     public boolean isTransactionActive() {
-        Deque<Transaction> transactions = CURRENT.get();
-        return transactions != null && !transactions.isEmpty();
+        return !CURRENT.get().isEmpty();
+    }
+
+    /**
+     * Wraps the task to run with the transactions of the calling thread, for handing work over to an executor.
+     * The thread running the task gets its own copy and is restored to its former transactions afterwards.
+     */
+    public Runnable propagate(final Runnable task) {
+
+        final TransactionStack captured = CURRENT.get().copy();
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                TransactionStack previous = attach(captured.copy());
+                try {
+                    task.run();
+                } finally {
+                    attach(previous);
+                }
+            }
+        };
+    }
+
+    public <V> Callable<V> propagate(final Callable<V> task) {
+
+        final TransactionStack captured = CURRENT.get().copy();
+
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                TransactionStack previous = attach(captured.copy());
+                try {
+                    return task.call();
+                } finally {
+                    attach(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Makes the stack the transactions of the calling thread, for frameworks propagating them by their own means.
+     *
+     * @return the transactions the thread had before
+     */
+    public TransactionStack attach(TransactionStack transactions) {
+        TransactionStack previous = CURRENT.get();
+        CURRENT.set(transactions);
+        return previous;
+    }
+
+    /**
+     * @return a copy of the transactions of the calling thread, to be attached to another one
+     */
+    public TransactionStack capture() {
+        return CURRENT.get().copy();
     }
 
 //注册事务到当前线程事务队列(可能有同学会比较好奇，为什么使用队列存储当前线程事务？TCC-Transaction 支持多个的事务独立存在，
@@ -187,19 +310,14 @@ public class TransactionManager {
 // 在下文，很快我们就会看到 TCC-Transaction 自己的 org.mengyun.tcctransaction.api.Propagation)
 
     private void registerTransaction(Transaction transaction) {
-
-        if (CURRENT.get() == null) {
-            CURRENT.set(new LinkedList<Transaction>());
-        }
-
         CURRENT.get().push(transaction);// 添加到头部
     }
 //清除事务
     public void cleanAfterCompletion(Transaction transaction) {
-        if (isTransactionActive() && transaction != null) {
-            Transaction currentTransaction = getCurrentTransaction();
-            if (currentTransaction == transaction) {
-                CURRENT.get().pop();
+        TransactionStack transactions = CURRENT.get();
+        if (!transactions.isEmpty() && transaction != null) {
+            if (transactions.peek() == transaction) {
+                transactions.pop();
             } else {
                 throw new SystemException("Illegal transaction when clean after completion");
             }
@@ -209,10 +327,16 @@ public class TransactionManager {
 //添加参与者到事务
     public void enlistParticipant(Participant participant) {
         // 获取 事务
-        Transaction transaction = this.getCurrentTransaction();
+        enlistParticipant(this.getCurrentTransaction(), participant);
+    }
+
+    /**
+     * Enlists the participant to a transaction the caller already looked up.
+     */
+    public void enlistParticipant(Transaction transaction, Participant participant) {
         // 添加参与者
         transaction.enlistParticipant(participant);
         // 更新 事务
-        transactionRepository.update(transaction);
+        transactionRepository.appendParticipant(transaction, participant);
     }
 }
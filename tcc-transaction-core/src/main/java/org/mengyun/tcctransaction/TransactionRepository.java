@@ -15,9 +15,34 @@ public interface TransactionRepository {
 
     int update(Transaction transaction);
 
+    /**
+     * Persist only the header of the transaction (status, retried count, last update time and version),
+     * the stored participants are left untouched. Use it when nothing but the status changed.
+     */
+    int updateStatus(Transaction transaction);
+
+    /**
+     * Persist a participant just enlisted in the transaction. Repositories keeping a participant log append
+     * only the new participant instead of rewriting the whole transaction.
+     */
+    int appendParticipant(Transaction transaction, Participant participant);
+
     int delete(Transaction transaction);
 
     Transaction findByXid(TransactionXid xid);
 
+    /**
+     * Finds several transactions at once, fetching those not cached with a single operation of the storage
+     * where it allows. Xids not found are skipped, the others are returned in the order given.
+     */
+    List<Transaction> findByXids(Collection<TransactionXid> xids);
+
     List<Transaction> findAllUnmodifiedSince(Date date);
+
+    /**
+     * Scans the transactions unmodified since the date in pages of at most pageSize, starting at offset
+     * (null for the first page). Returned transactions are not cached. A repository unable to scan its storage
+     * incrementally returns them all in a single page.
+     */
+    Page<Transaction> findAllUnmodifiedSince(Date date, String offset, int pageSize);
 }
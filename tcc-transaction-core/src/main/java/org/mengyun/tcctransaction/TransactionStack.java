@@ -0,0 +1,63 @@
+package org.mengyun.tcctransaction;
+
+import java.util.Arrays;
+
+/**
+ * The transactions of one thread, the most recently begun on top.
+ * <p/>
+ * Backed by an array reused for the lifetime of the thread, so beginning and completing transactions allocate nothing.
+ * Not thread safe, a stack is only used by its thread; use {@link #copy()} to hand the transactions to another one.
+ */
+public class TransactionStack {
+
+    private Transaction[] transactions;
+
+    private int size;
+
+    public TransactionStack() {
+        this(4);
+    }
+
+    public TransactionStack(int initialCapacity) {
+        this.transactions = new Transaction[Math.max(initialCapacity, 1)];
+    }
+
+    public void push(Transaction transaction) {
+
+        if (size == transactions.length) {
+            transactions = Arrays.copyOf(transactions, size << 1);
+        }
+
+        transactions[size++] = transaction;
+    }
+
+    public Transaction pop() {
+
+        if (size == 0) {
+            throw new SystemException("no transaction to pop");
+        }
+
+        Transaction transaction = transactions[--size];
+        transactions[size] = null;
+        return transaction;
+    }
+
+    public Transaction peek() {
+        return size == 0 ? null : transactions[size - 1];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TransactionStack copy() {
+        TransactionStack copy = new TransactionStack(size);
+        System.arraycopy(transactions, 0, copy.transactions, 0, size);
+        copy.size = size;
+        return copy;
+    }
+}
@@ -0,0 +1,202 @@
+package org.mengyun.tcctransaction.interceptor;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.Propagation;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionContextEditor;
+import org.mengyun.tcctransaction.context.MethodTransactionContextEditor;
+import org.mengyun.tcctransaction.support.FactoryBuilder;
+import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
+import org.mengyun.tcctransaction.utils.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What the interceptors need to know about a @Compensable method of a target class, computed on the first
+ * interception and shared by all later ones: the annotated method and its settings, the transaction context editor,
+ * the position of the TransactionContext parameter, the confirm and cancel methods and the declaring type recorded
+ * in the invocation contexts.
+ */
+public final class CompensableMethod {
+
+    private static final ConcurrentMap<Class, ConcurrentMap<Method, CompensableMethod>> REGISTRY =
+            new ConcurrentHashMap<Class, ConcurrentMap<Method, CompensableMethod>>();
+
+    /**
+     * Marks methods known not to be compensable, ConcurrentHashMap has no null values.
+     */
+    private static final CompensableMethod NONE = new CompensableMethod();
+
+    private final Method method;
+
+    private final Compensable compensable;
+
+    private final Propagation propagation;
+
+    private final TransactionContextEditor transactionContextEditor;
+
+    private final boolean positionalEditor;
+
+    private final int transactionContextPosition;
+
+    private final Method confirmMethod;
+
+    private final Method cancelMethod;
+
+    private final Class declaringType;
+
+    private CompensableMethod() {
+        this.method = null;
+        this.compensable = null;
+        this.propagation = null;
+        this.transactionContextEditor = null;
+        this.positionalEditor = false;
+        this.transactionContextPosition = -1;
+        this.confirmMethod = null;
+        this.cancelMethod = null;
+        this.declaringType = null;
+    }
+
+    private CompensableMethod(Class targetClass, Method method) {
+
+        this.method = method;
+        this.compensable = method.getAnnotation(Compensable.class);
+        this.propagation = compensable.propagation();
+
+        Class<? extends TransactionContextEditor> editorClass = compensable.transactionContextEditor();
+        this.transactionContextEditor = FactoryBuilder.factoryOf(editorClass).getInstance();
+        this.positionalEditor = editorClass.equals(Compensable.DefaultTransactionContextEditor.class)
+                || editorClass.equals(MethodTransactionContextEditor.class);
+        this.transactionContextPosition = CompensableMethodUtils.getTransactionContextParamPosition(method.getParameterTypes());
+
+        this.confirmMethod = findMethod(targetClass, compensable.confirmMethod(), method.getParameterTypes());
+        this.cancelMethod = findMethod(targetClass, compensable.cancelMethod(), method.getParameterTypes());
+        this.declaringType = ReflectionUtils.getDeclaringType(targetClass, method.getName(), method.getParameterTypes());
+    }
+
+    /**
+     * @return the compensable method intercepted by the join point, null if the method is not annotated with @Compensable
+     */
+    public static CompensableMethod of(ProceedingJoinPoint pjp) {
+        Method signatureMethod = ((MethodSignature) pjp.getSignature()).getMethod();
+        Object target = pjp.getTarget();
+        return of(target != null ? target.getClass() : signatureMethod.getDeclaringClass(), signatureMethod);
+    }
+
+    /**
+     * @param signatureMethod the method as called, possibly declared by an interface of the target class
+     */
+    public static CompensableMethod of(Class targetClass, Method signatureMethod) {
+
+        ConcurrentMap<Method, CompensableMethod> methods = REGISTRY.get(targetClass);
+
+        if (methods == null) {
+            methods = new ConcurrentHashMap<Method, CompensableMethod>();
+            ConcurrentMap<Method, CompensableMethod> existing = REGISTRY.putIfAbsent(targetClass, methods);
+            if (existing != null) {
+                methods = existing;
+            }
+        }
+
+        CompensableMethod compensableMethod = methods.get(signatureMethod);
+
+        if (compensableMethod == null) {
+            compensableMethod = resolve(targetClass, signatureMethod);
+            methods.putIfAbsent(signatureMethod, compensableMethod);
+        }
+
+        return compensableMethod == NONE ? null : compensableMethod;
+    }
+
+    private static CompensableMethod resolve(Class targetClass, Method signatureMethod) {
+
+        Method method = signatureMethod;
+
+        if (method.getAnnotation(Compensable.class) == null) {
+            try {
+                method = targetClass.getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                return NONE;
+            }
+
+            if (method.getAnnotation(Compensable.class) == null) {
+                return NONE;
+            }
+        }
+
+        return new CompensableMethod(targetClass, method);
+    }
+
+    private static Method findMethod(Class targetClass, String methodName, Class[] parameterTypes) {
+
+        if (methodName.length() == 0) {
+            return null;
+        }
+
+        try {
+            return targetClass.getMethod(methodName, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public TransactionContext getTransactionContext(Object target, Object[] args) {
+
+        if (positionalEditor) {
+            return transactionContextPosition >= 0 ? (TransactionContext) args[transactionContextPosition] : null;
+        }
+
+        return transactionContextEditor.get(target, method, args);
+    }
+
+    public void setTransactionContext(TransactionContext transactionContext, Object target, Object[] args) {
+
+        if (positionalEditor) {
+            if (transactionContextPosition >= 0) {
+                args[transactionContextPosition] = transactionContext;
+            }
+            return;
+        }
+
+        transactionContextEditor.set(transactionContext, target, method, args);
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Compensable getCompensable() {
+        return compensable;
+    }
+
+    public Propagation getPropagation() {
+        return propagation;
+    }
+
+    public Class<? extends TransactionContextEditor> getTransactionContextEditorClass() {
+        return compensable.transactionContextEditor();
+    }
+
+    public int getTransactionContextPosition() {
+        return transactionContextPosition;
+    }
+
+    /**
+     * @return the confirm method of the target class, null if not declared or not found
+     */
+    public Method getConfirmMethod() {
+        return confirmMethod;
+    }
+
+    public Method getCancelMethod() {
+        return cancelMethod;
+    }
+
+    public Class getDeclaringType() {
+        return declaringType;
+    }
+}
@@ -14,7 +14,6 @@ import org.mengyun.tcctransaction.api.Propagation;
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.common.MethodType;
-import org.mengyun.tcctransaction.support.FactoryBuilder;
 import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
 import org.mengyun.tcctransaction.utils.ReflectionUtils;
 import org.mengyun.tcctransaction.utils.TransactionUtils;
@@ -48,16 +47,25 @@ public class CompensableTransactionInterceptor {
 
     public Object interceptCompensableMethod(ProceedingJoinPoint pjp) throws Throwable {
         // 获得带 @Compensable 注解的方法
-        Method method = CompensableMethodUtils.getCompensableMethod(pjp);
+        CompensableMethod compensableMethod = CompensableMethod.of(pjp);
 
-        Compensable compensable = method.getAnnotation(Compensable.class);
-        Propagation propagation = compensable.propagation();
+        if (compensableMethod == null) {
+            throw new SystemException(String.format("join point not found compensable method, point is : %s", pjp.getSignature().getName()));
+        }
+
+        Method method = compensableMethod.getMethod();
+        Compensable compensable = compensableMethod.getCompensable();
+        Propagation propagation = compensableMethod.getPropagation();
         // 获得 事务上下文
-        TransactionContext transactionContext = FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().get(pjp.getTarget(), method, pjp.getArgs());
+        TransactionContext transactionContext = compensableMethod.getTransactionContext(pjp.getTarget(), pjp.getArgs());
 
         boolean asyncConfirm = compensable.asyncConfirm();
 
         boolean asyncCancel = compensable.asyncCancel();
+
+        boolean parallelConfirm = compensable.parallelConfirm();
+
+        boolean parallelCancel = compensable.parallelCancel();
         // 当前线程是否在事务中
         boolean isTransactionActive = transactionManager.isTransactionActive();
 
@@ -69,16 +77,16 @@ public class CompensableTransactionInterceptor {
 
         switch (methodType) {
             case ROOT:
-                return rootMethodProceed(pjp, asyncConfirm, asyncCancel);
+                return rootMethodProceed(pjp, asyncConfirm, asyncCancel, parallelConfirm, parallelCancel);
             case PROVIDER:
-                return providerMethodProceed(pjp, transactionContext, asyncConfirm, asyncCancel);
+                return providerMethodProceed(pjp, transactionContext, asyncConfirm, asyncCancel, parallelConfirm, parallelCancel);
             default:
                 return pjp.proceed();
         }
     }
 
 //执行方法原逻辑和TCC相结合流程
-    private Object rootMethodProceed(ProceedingJoinPoint pjp, boolean asyncConfirm, boolean asyncCancel) throws Throwable {
+    private Object rootMethodProceed(ProceedingJoinPoint pjp, boolean asyncConfirm, boolean asyncCancel, boolean parallelConfirm, boolean parallelCancel) throws Throwable {
 
         Object returnValue = null;
 
@@ -97,13 +105,13 @@ public class CompensableTransactionInterceptor {
                 } else {
                     logger.warn(String.format("compensable transaction trying failed. transaction content:%s", JSON.toJSONString(transaction)), tryingException);
 
-                    transactionManager.rollback(asyncCancel); // 回滚事务
+                    transactionManager.rollback(transaction, asyncCancel, parallelCancel); // 回滚事务
                 }
 
                 throw tryingException;
             }
 
-            transactionManager.commit(asyncConfirm); // 提交事务
+            transactionManager.commit(transaction, asyncConfirm, parallelConfirm); // 提交事务
 
         } finally {
             transactionManager.cleanAfterCompletion(transaction); // 将事务从当前线程事务队列移除
@@ -112,7 +120,7 @@ public class CompensableTransactionInterceptor {
         return returnValue;
     }
 //服务提供者参与 TCC 整体流程
-    private Object providerMethodProceed(ProceedingJoinPoint pjp, TransactionContext transactionContext, boolean asyncConfirm, boolean asyncCancel) throws Throwable {
+    private Object providerMethodProceed(ProceedingJoinPoint pjp, TransactionContext transactionContext, boolean asyncConfirm, boolean asyncCancel, boolean parallelConfirm, boolean parallelCancel) throws Throwable {
 
         Transaction transaction = null;
         try {
@@ -127,7 +135,7 @@ public class CompensableTransactionInterceptor {
                         // 传播获取分支事务
                         transaction = transactionManager.propagationExistBegin(transactionContext);
                         // 提交事务
-                        transactionManager.commit(asyncConfirm);
+                        transactionManager.commit(transaction, asyncConfirm, parallelConfirm);
                     } catch (NoExistedTransactionException excepton) {
                         //the transaction has been commit,ignore it.
                     }
@@ -138,7 +146,7 @@ public class CompensableTransactionInterceptor {
                         // 传播获取分支事务
                         transaction = transactionManager.propagationExistBegin(transactionContext);
                         // 回滚事务
-                        transactionManager.rollback(asyncCancel);
+                        transactionManager.rollback(transaction, asyncCancel, parallelCancel);
                     } catch (NoExistedTransactionException exception) {
                         //the transaction has been rollback,ignore it.
                     }
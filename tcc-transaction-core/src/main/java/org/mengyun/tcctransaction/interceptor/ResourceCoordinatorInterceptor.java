@@ -1,7 +1,6 @@
 package org.mengyun.tcctransaction.interceptor;
 
 import org.aspectj.lang.ProceedingJoinPoint;
-import org.aspectj.lang.reflect.MethodSignature;
 import org.mengyun.tcctransaction.InvocationContext;
 import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
@@ -10,9 +9,6 @@ import org.mengyun.tcctransaction.api.Compensable;
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.api.TransactionXid;
-import org.mengyun.tcctransaction.support.FactoryBuilder;
-import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
-import org.mengyun.tcctransaction.utils.ReflectionUtils;
 
 import java.lang.reflect.Method;
 
@@ -38,7 +34,7 @@ public class ResourceCoordinatorInterceptor {
             switch (transaction.getStatus()) {
                 case TRYING:
                     // 添加事务参与者
-                    enlistParticipant(pjp);
+                    enlistParticipant(pjp, transaction);
                     break;
                 case CONFIRMING:
                     break;
@@ -50,27 +46,27 @@ public class ResourceCoordinatorInterceptor {
         return pjp.proceed(pjp.getArgs());
     }
 
-    private void enlistParticipant(ProceedingJoinPoint pjp) throws IllegalAccessException, InstantiationException {
+    private void enlistParticipant(ProceedingJoinPoint pjp, Transaction transaction) throws IllegalAccessException, InstantiationException {
 // 获得 @Compensable 注解
-        Method method = CompensableMethodUtils.getCompensableMethod(pjp);
-        if (method == null) {
+        CompensableMethod compensableMethod = CompensableMethod.of(pjp);
+        if (compensableMethod == null) {
             throw new RuntimeException(String.format("join point not found method, point is : %s", pjp.getSignature().getName()));
         }
+
+        Method method = compensableMethod.getMethod();
         // 获得 @Compensable 注解
-        Compensable compensable = method.getAnnotation(Compensable.class);
+        Compensable compensable = compensableMethod.getCompensable();
 
         String confirmMethodName = compensable.confirmMethod();
         String cancelMethodName = compensable.cancelMethod();
-        // 获取 当前线程事务第一个(头部)元素
-        Transaction transaction = transactionManager.getCurrentTransaction();
         // 创建 事务编号
         TransactionXid xid = new TransactionXid(transaction.getXid().getGlobalTransactionId());
 
-        if (FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().get(pjp.getTarget(), method, pjp.getArgs()) == null) {
-            FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().set(new TransactionContext(xid, TransactionStatus.TRYING.getId()), pjp.getTarget(), ((MethodSignature) pjp.getSignature()).getMethod(), pjp.getArgs());
+        if (compensableMethod.getTransactionContext(pjp.getTarget(), pjp.getArgs()) == null) {
+            compensableMethod.setTransactionContext(new TransactionContext(xid, TransactionStatus.TRYING.getId()), pjp.getTarget(), pjp.getArgs());
         }
        //获得声明 @Compensable 方法的实际类
-        Class targetClass = ReflectionUtils.getDeclaringType(pjp.getTarget().getClass(), method.getName(), method.getParameterTypes());
+        Class targetClass = compensableMethod.getDeclaringType();
             // 创建 确认执行方法调用上下文 和 取消执行方法调用上下文
         InvocationContext confirmInvocation = new InvocationContext(targetClass,
                 confirmMethodName,
@@ -85,9 +81,9 @@ public class ResourceCoordinatorInterceptor {
                         xid,
                         confirmInvocation,
                         cancelInvocation,
-                        compensable.transactionContextEditor());
+                        compensableMethod.getTransactionContextEditorClass());
         // 添加 事务参与者 到 事务
-        transactionManager.enlistParticipant(participant);
+        transactionManager.enlistParticipant(transaction, participant);
 
     }
 
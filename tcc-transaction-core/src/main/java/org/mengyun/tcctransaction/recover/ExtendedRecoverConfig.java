@@ -0,0 +1,32 @@
+package org.mengyun.tcctransaction.recover;
+
+/**
+ * Tuning of the thread pools, the recovery and the transaction cache. Implementations of RecoverConfig
+ * that do not implement it keep the defaults of DefaultRecoverConfig.
+ */
+public interface ExtendedRecoverConfig extends RecoverConfig {
+
+    public int getAsyncTerminateQueueCapacity();
+
+    public int getRecoverPageSize();
+
+    public int getRecoverThreadPoolSize();
+
+    public int getRecoverQueueCapacity();
+
+    public int getRecoverConcurrencyPerTarget();
+
+    public double getRecoverRateLimit();
+
+    public boolean isParallelConfirm();
+
+    public boolean isParallelCancel();
+
+    public int getParallelTerminateThreadPoolSize();
+
+    public long getParallelTerminateTimeout();
+
+    public int getTransactionCacheMaximumSize();
+
+    public long getTransactionCacheMaximumWeight();
+}
@@ -1,18 +1,35 @@
 package org.mengyun.tcctransaction.recover;
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.InvocationContext;
 import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionRepository;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.support.InstrumentedThreadPoolExecutor;
 import org.mengyun.tcctransaction.support.TransactionConfigurator;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * Created by changmingxie on 11/10/15.
@@ -23,75 +40,313 @@ public class TransactionRecovery {
 
     private TransactionConfigurator transactionConfigurator;
 
-    public void startRecover() {
+    private volatile InstrumentedThreadPoolExecutor recoverExecutor;
 
-        List<Transaction> transactions = loadErrorTransactions();
+    private volatile RateLimiter rateLimiter;
 
-        recoverErrorTransactions(transactions);
-    }
+    private volatile double rate;
+
+    private volatile boolean closed;
 
-    private List<Transaction> loadErrorTransactions() {
+    public void startRecover() {
 
+        if (closed) {
+            return;
+        }
 
         long currentTimeInMillis = Calendar.getInstance().getTimeInMillis();
 
         TransactionRepository transactionRepository = transactionConfigurator.getTransactionRepository();
         RecoverConfig recoverConfig = transactionConfigurator.getRecoverConfig();
 
-        return transactionRepository.findAllUnmodifiedSince(new Date(currentTimeInMillis - recoverConfig.getRecoverDuration() * 1000));
-    }
+        Date date = new Date(currentTimeInMillis - recoverConfig.getRecoverDuration() * 1000);
+
+        int recoveredCount = 0;
+
+        // one permit per target for this run only, taken with the concurrency configured now
+        ConcurrentMap<String, Semaphore> targetPermits = new ConcurrentHashMap<String, Semaphore>();
+
+        if (recoverConfig instanceof ExtendedRecoverConfig) {
+
+            String offset = null;
+
+            do {
+                Page<Transaction> page = transactionRepository.findAllUnmodifiedSince(date, offset,
+                        ((ExtendedRecoverConfig) recoverConfig).getRecoverPageSize());
+
+                recoverErrorTransactions(page.getData(), targetPermits);
 
-    private void recoverErrorTransactions(List<Transaction> transactions) {
+                recoveredCount += page.getData().size();
+                offset = page.getNextOffset();
+            } while (offset != null);
 
+        } else {
+            List<Transaction> transactions = transactionRepository.findAllUnmodifiedSince(date);
+            recoverErrorTransactions(transactions, targetPermits);
+            recoveredCount = transactions.size();
+        }
+
+        if (recoveredCount > 0) {
+            long elapsed = Math.max(System.currentTimeMillis() - currentTimeInMillis, 1);
+            logger.info(String.format("recover checked %d transactions in %d ms, %.1f per second%s", recoveredCount, elapsed,
+                    recoveredCount * 1000.0 / elapsed, recoverExecutor == null ? "" : ", " + recoverExecutor));
+        }
+    }
+
+    /**
+     * Shuts the recover pool down and unregisters its MBean, later recoveries are skipped. Transactions being
+     * recovered are finished.
+     */
+    public void close() {
 
-        for (Transaction transaction : transactions) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
 
-            if (transaction.getRetriedCount() > transactionConfigurator.getRecoverConfig().getMaxRetryCount()) {
+            closed = true;
 
-                logger.error(String.format("recover failed with max retry count,will not try again. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)));
-                continue;
+            if (recoverExecutor != null) {
+                recoverExecutor.shutdown();
+                recoverExecutor.unregisterMBean();
             }
+        }
+    }
+
+    /**
+     * Recovers the transactions on the calling thread, or on the recover pool when its size is more than one.
+     * Without an ExtendedRecoverConfig the whole backlog is loaded at once and recovered on the calling thread.
+     * Returns once every transaction has been handled. When the pool queue is full the calling thread recovers
+     * the next transaction itself, which slows down the loading of further pages.
+     */
+    private void recoverErrorTransactions(List<Transaction> transactions, final ConcurrentMap<String, Semaphore> targetPermits) {
 
-            if (transaction.getTransactionType().equals(TransactionType.BRANCH)
-                    && (transaction.getCreateTime().getTime() +
-                    transactionConfigurator.getRecoverConfig().getMaxRetryCount() *
-                            transactionConfigurator.getRecoverConfig().getRecoverDuration() * 1000
-                    > System.currentTimeMillis())) {
-                continue;
+        RecoverConfig recoverConfig = transactionConfigurator.getRecoverConfig();
+
+        if (!(recoverConfig instanceof ExtendedRecoverConfig)
+                || ((ExtendedRecoverConfig) recoverConfig).getRecoverThreadPoolSize() <= 1) {
+            for (Transaction transaction : transactions) {
+                recoverErrorTransaction(transaction, targetPermits);
             }
-            
+            return;
+        }
+
+        ExecutorService executor = getRecoverExecutor((ExtendedRecoverConfig) recoverConfig);
+
+        if (executor == null) {
+            // closed meanwhile, left to the next recovery
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(transactions.size());
+
+        for (final Transaction transaction : transactions) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    recoverErrorTransaction(transaction, targetPermits);
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
             try {
-                transaction.addRetriedCount();
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("recover task failed", e.getCause());
+            } catch (CancellationException e) {
+                // closed meanwhile, left to the next recovery
+            }
+        }
+    }
+
+    private void recoverErrorTransaction(Transaction transaction, ConcurrentMap<String, Semaphore> targetPermits) {
+
+        RecoverConfig recoverConfig = transactionConfigurator.getRecoverConfig();
+
+        if (transaction.getRetriedCount() > transactionConfigurator.getRecoverConfig().getMaxRetryCount()) {
+
+            logger.error(String.format("recover failed with max retry count,will not try again. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)));
+            return;
+        }
+
+        if (transaction.getTransactionType().equals(TransactionType.BRANCH)
+                && (transaction.getCreateTime().getTime() +
+                transactionConfigurator.getRecoverConfig().getMaxRetryCount() *
+                        transactionConfigurator.getRecoverConfig().getRecoverDuration() * 1000
+                > System.currentTimeMillis())) {
+            return;
+        }
+
+        acquireRate(recoverConfig);
+        List<Semaphore> permits = acquireTargetPermits(transaction, recoverConfig, targetPermits);
+
+        try {
+            transaction.addRetriedCount();
+
+            if (transaction.getStatus().equals(TransactionStatus.CONFIRMING)) {
+
+                transaction.changeStatus(TransactionStatus.CONFIRMING);
+                transactionConfigurator.getTransactionRepository().updateStatus(transaction);
+                transaction.commit();
+                transactionConfigurator.getTransactionRepository().delete(transaction);
 
-                if (transaction.getStatus().equals(TransactionStatus.CONFIRMING)) {
+            } else if (transaction.getStatus().equals(TransactionStatus.CANCELLING)
+                    || transaction.getTransactionType().equals(TransactionType.ROOT)) {
 
-                    transaction.changeStatus(TransactionStatus.CONFIRMING);
-                    transactionConfigurator.getTransactionRepository().update(transaction);
-                    transaction.commit();
-                    transactionConfigurator.getTransactionRepository().delete(transaction);
+                transaction.changeStatus(TransactionStatus.CANCELLING);
+                transactionConfigurator.getTransactionRepository().updateStatus(transaction);
+                transaction.rollback();
+                transactionConfigurator.getTransactionRepository().delete(transaction);
+            }
+
+        } catch (Throwable throwable) {
+
+            if (throwable instanceof OptimisticLockException
+                    || ExceptionUtils.getRootCause(throwable) instanceof OptimisticLockException) {
+                logger.warn(String.format("optimisticLockException happened while recover. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+            } else {
+                logger.error(String.format("recover failed, txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+            }
+        } finally {
+            for (Semaphore permit : permits) {
+                permit.release();
+            }
+        }
+    }
+
+    private void acquireRate(RecoverConfig recoverConfig) {
+
+        if (!(recoverConfig instanceof ExtendedRecoverConfig)) {
+            return;
+        }
+
+        double rateLimit = ((ExtendedRecoverConfig) recoverConfig).getRecoverRateLimit();
 
-                } else if (transaction.getStatus().equals(TransactionStatus.CANCELLING)
-                        || transaction.getTransactionType().equals(TransactionType.ROOT)) {
+        if (rateLimit <= 0) {
+            return;
+        }
 
-                    transaction.changeStatus(TransactionStatus.CANCELLING);
-                    transactionConfigurator.getTransactionRepository().update(transaction);
-                    transaction.rollback();
-                    transactionConfigurator.getTransactionRepository().delete(transaction);
+        if (rateLimiter == null || rate != rateLimit) {
+            synchronized (this) {
+                if (rateLimiter == null) {
+                    rateLimiter = RateLimiter.create(rateLimit);
+                } else if (rate != rateLimit) {
+                    // changed since, e.g. by a RecoverConfig reading it from a config center
+                    rateLimiter.setRate(rateLimit);
                 }
+                rate = rateLimit;
+            }
+        }
+
+        rateLimiter.acquire();
+    }
+
+    /**
+     * Takes one permit for each participant target class of the transaction, in class name order
+     * so that two transactions never wait on each other.
+     */
+    private List<Semaphore> acquireTargetPermits(Transaction transaction, RecoverConfig recoverConfig,
+                                                 ConcurrentMap<String, Semaphore> targetPermits) {
+
+        List<Semaphore> permits = new ArrayList<Semaphore>();
+
+        if (!(recoverConfig instanceof ExtendedRecoverConfig)) {
+            return permits;
+        }
+
+        final int concurrency = ((ExtendedRecoverConfig) recoverConfig).getRecoverConcurrencyPerTarget();
+
+        if (concurrency <= 0) {
+            return permits;
+        }
+
+        Set<String> targets = new TreeSet<String>();
 
-            } catch (Throwable throwable) {
+        for (Participant participant : transaction.getParticipants()) {
 
-                if (throwable instanceof OptimisticLockException
-                        || ExceptionUtils.getRootCause(throwable) instanceof OptimisticLockException) {
-                    logger.warn(String.format("optimisticLockException happened while recover. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+            InvocationContext invocationContext = participant.getConfirmInvocationContext() != null ?
+                    participant.getConfirmInvocationContext() : participant.getCancelInvocationContext();
+
+            if (invocationContext != null && invocationContext.getTargetClass() != null) {
+                targets.add(invocationContext.getTargetClass().getName());
+            }
+        }
+
+        for (String target : targets) {
+
+            Semaphore permit = targetPermits.get(target);
+
+            if (permit == null) {
+                targetPermits.putIfAbsent(target, new Semaphore(concurrency));
+                permit = targetPermits.get(target);
+            }
+
+            permit.acquireUninterruptibly();
+            permits.add(permit);
+        }
+
+        return permits;
+    }
+
+    /**
+     * The pool is created on first use. A later change of the pool size resizes it, the queue capacity is
+     * the one configured then.
+     *
+     * @return null once closed
+     */
+    private InstrumentedThreadPoolExecutor getRecoverExecutor(ExtendedRecoverConfig recoverConfig) {
+
+        int poolSize = recoverConfig.getRecoverThreadPoolSize();
+
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+
+            if (recoverExecutor == null) {
+                InstrumentedThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor("tcc-recover",
+                        poolSize, recoverConfig.getRecoverQueueCapacity(), new CallerRunsUnlessShutdownPolicy());
+                executor.registerMBean();
+                recoverExecutor = executor;
+            } else if (recoverExecutor.getCorePoolSize() != poolSize) {
+                // the core size may not exceed the maximum size
+                if (poolSize > recoverExecutor.getMaximumPoolSize()) {
+                    recoverExecutor.setMaximumPoolSize(poolSize);
+                    recoverExecutor.setCorePoolSize(poolSize);
                 } else {
-                    logger.error(String.format("recover failed, txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+                    recoverExecutor.setCorePoolSize(poolSize);
+                    recoverExecutor.setMaximumPoolSize(poolSize);
                 }
             }
+            return recoverExecutor;
         }
     }
 
+    public InstrumentedThreadPoolExecutor getRecoverExecutor() {
+        return recoverExecutor;
+    }
+
     public void setTransactionConfigurator(TransactionConfigurator transactionConfigurator) {
         this.transactionConfigurator = transactionConfigurator;
     }
+
+    /**
+     * Recovers on the calling thread when the queue is full. Once the pool is shut down the task is cancelled
+     * instead, so that nobody waits for it.
+     */
+    private static class CallerRunsUnlessShutdownPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (!executor.isShutdown()) {
+                runnable.run();
+            } else if (runnable instanceof Future) {
+                ((Future<?>) runnable).cancel(false);
+            }
+        }
+    }
 }
@@ -1,26 +1,50 @@
 package org.mengyun.tcctransaction.repository;
 
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionRepository;
 import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.cache.AbstractTransactionCache;
+import org.mengyun.tcctransaction.repository.cache.HeapTransactionCache;
+import org.mengyun.tcctransaction.repository.cache.InvalidationChannel;
+import org.mengyun.tcctransaction.repository.cache.TransactionCache;
+import org.mengyun.tcctransaction.repository.cache.TransactionCacheStats;
 
 import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by changmingxie on 10/30/15.
  */
 public abstract class CachableTransactionRepository implements TransactionRepository {
 
-    private int expireDuration = 120;
+    /**
+     * Returned by doFindVersion when the repository cannot read the version alone, the cached transaction is trusted.
+     */
+    protected static final long VERSION_UNKNOWN = -1L;
 
-    private Cache<Xid, Transaction> transactionXidCompensableTransactionCache;
+    /**
+     * Returned by doFindVersion when the transaction is not stored anymore, versions start at 1.
+     */
+    protected static final long VERSION_NOT_FOUND = 0L;
+
+    private TransactionCache transactionCache = new HeapTransactionCache();
+
+    private boolean participantLogEnabled = false;
+
+    private boolean versionCheckEnabled = false;
+
+    private InvalidationChannel invalidationChannel;
 
     @Override
     public int create(Transaction transaction) {
@@ -33,12 +57,43 @@ public abstract class CachableTransactionRepository implements TransactionReposi
 
     @Override
     public int update(Transaction transaction) {
+        return update(transaction, false);
+    }
+
+    @Override
+    public int updateStatus(Transaction transaction) {
+        return update(transaction, true);
+    }
+
+    private int update(Transaction transaction, boolean statusOnly) {
         int result = 0;
 
         try {
-            result = doUpdate(transaction);
+            result = statusOnly ? doUpdateStatus(transaction) : doUpdate(transaction);
             if (result > 0) {
                 putToCache(transaction);
+                publishInvalidation(transaction);
+            } else {
+                throw new OptimisticLockException();
+            }
+        } finally {
+            if (result <= 0) {
+                removeFromCache(transaction);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int appendParticipant(Transaction transaction, Participant participant) {
+        int result = 0;
+
+        try {
+            result = participantLogEnabled ? doAppendParticipant(transaction, participant) : doUpdate(transaction);
+            if (result > 0) {
+                putToCache(transaction);
+                publishInvalidation(transaction);
             } else {
                 throw new OptimisticLockException();
             }
@@ -61,6 +116,10 @@ public abstract class CachableTransactionRepository implements TransactionReposi
         } finally {
             removeFromCache(transaction);
         }
+
+        if (result > 0) {
+            publishInvalidation(transaction);
+        }
         return result;
     }
 
@@ -68,6 +127,21 @@ public abstract class CachableTransactionRepository implements TransactionReposi
     public Transaction findByXid(TransactionXid transactionXid) {
         Transaction transaction = findFromCache(transactionXid);
 
+        if (transaction != null && versionCheckEnabled) {
+
+            long storedVersion = doFindVersion(transactionXid);
+
+            if (storedVersion != VERSION_UNKNOWN && storedVersion != transaction.getVersion()) {
+                // 其他节点已更新或删除该事务
+                transactionCache.remove(transactionXid);
+
+                if (storedVersion == VERSION_NOT_FOUND) {
+                    return null;
+                }
+                transaction = null;
+            }
+        }
+
         if (transaction == null) {
             transaction = doFindOne(transactionXid);
 
@@ -79,6 +153,42 @@ public abstract class CachableTransactionRepository implements TransactionReposi
         return transaction;
     }
 
+    @Override
+    public List<Transaction> findByXids(Collection<TransactionXid> xids) {
+
+        Map<Xid, Transaction> found = new HashMap<Xid, Transaction>(xids.size() * 2);
+        List<Xid> missedXids = new ArrayList<Xid>();
+
+        for (TransactionXid xid : xids) {
+            // 开启版本校验时, 一次批量读取比逐个校验缓存更便宜
+            Transaction transaction = versionCheckEnabled ? null : findFromCache(xid);
+
+            if (transaction != null) {
+                found.put(xid, transaction);
+            } else {
+                missedXids.add(xid);
+            }
+        }
+
+        if (!missedXids.isEmpty()) {
+            for (Transaction transaction : doFindByXids(missedXids)) {
+                putToCache(transaction);
+                found.put(transaction.getTransactionXid(), transaction);
+            }
+        }
+
+        List<Transaction> transactions = new ArrayList<Transaction>(found.size());
+
+        for (TransactionXid xid : xids) {
+            Transaction transaction = found.remove(xid);
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+
+        return transactions;
+    }
+
     @Override
     public List<Transaction> findAllUnmodifiedSince(Date date) {
 
@@ -91,33 +201,192 @@ public abstract class CachableTransactionRepository implements TransactionReposi
         return transactions;
     }
 
-    public CachableTransactionRepository() {
-        transactionXidCompensableTransactionCache = CacheBuilder.newBuilder().expireAfterAccess(expireDuration, TimeUnit.SECONDS).maximumSize(1000).build();
+    @Override
+    public Page<Transaction> findAllUnmodifiedSince(Date date, String offset, int pageSize) {
+        return doFindAllUnmodifiedSince(date, offset, pageSize);
     }
 
     protected void putToCache(Transaction transaction) {
-        transactionXidCompensableTransactionCache.put(transaction.getXid(), transaction);
+        transactionCache.put(transaction);
     }
 
     protected void removeFromCache(Transaction transaction) {
-        transactionXidCompensableTransactionCache.invalidate(transaction.getXid());
+        transactionCache.remove(transaction.getTransactionXid());
     }
 
     protected Transaction findFromCache(TransactionXid transactionXid) {
-        return transactionXidCompensableTransactionCache.getIfPresent(transactionXid);
+        return transactionCache.get(transactionXid);
+    }
+
+    private void publishInvalidation(Transaction transaction) {
+        if (invalidationChannel != null) {
+            invalidationChannel.publish(transaction.getTransactionXid());
+        }
+    }
+
+    /**
+     * @param transactionCache a HeapTransactionCache bounded to 1000 transactions by default
+     */
+    public void setTransactionCache(TransactionCache transactionCache) {
+        this.transactionCache = transactionCache;
+    }
+
+    public TransactionCache getTransactionCache() {
+        return transactionCache;
+    }
+
+    public TransactionCacheStats getCacheStats() {
+        return transactionCache.getStats();
     }
 
     public void setExpireDuration(int durationInSeconds) {
-        this.expireDuration = durationInSeconds;
+        if (transactionCache instanceof AbstractTransactionCache) {
+            ((AbstractTransactionCache) transactionCache).setExpireDuration(durationInSeconds);
+        }
+    }
+
+    /**
+     * @param maximumSize transactions cached at most, applies to the caches extending AbstractTransactionCache
+     */
+    public void setCacheMaximumSize(int maximumSize) {
+        if (transactionCache instanceof AbstractTransactionCache) {
+            ((AbstractTransactionCache) transactionCache).setMaximumSize(maximumSize);
+        }
+    }
+
+    /**
+     * @param maximumWeight serialized bytes cached at most, 0 to bound the number of transactions instead,
+     *                      applies to the caches extending AbstractTransactionCache
+     */
+    public void setCacheMaximumWeight(long maximumWeight) {
+        if (transactionCache instanceof AbstractTransactionCache) {
+            ((AbstractTransactionCache) transactionCache).setMaximumWeight(maximumWeight);
+        }
+    }
+
+    /**
+     * When enabled, findByXid reads the stored version of a cached transaction, e.g. a single column or a single
+     * hash field, and reloads the transaction when another node changed it meanwhile, instead of failing the next
+     * update with an OptimisticLockException.
+     */
+    public void setVersionCheckEnabled(boolean versionCheckEnabled) {
+        this.versionCheckEnabled = versionCheckEnabled;
+    }
+
+    public boolean isVersionCheckEnabled() {
+        return versionCheckEnabled;
+    }
+
+    /**
+     * @param invalidationChannel tells the other nodes which transactions this node changed, and evicts the
+     *                            transactions they changed from the cache, none by default
+     */
+    public void setInvalidationChannel(InvalidationChannel invalidationChannel) {
+        this.invalidationChannel = invalidationChannel;
+
+        invalidationChannel.subscribe(new InvalidationChannel.Listener() {
+            @Override
+            public void onInvalidate(TransactionXid xid) {
+                transactionCache.remove(xid);
+            }
+        });
+    }
+
+    public InvalidationChannel getInvalidationChannel() {
+        return invalidationChannel;
+    }
+
+    /**
+     * When enabled, enlisting a participant appends only that participant to a participant log kept next to
+     * the transaction instead of rewriting the whole transaction, and reads rebuild the transaction from both.
+     * Every node sharing the storage must run a version that reads the participant log before turning it on.
+     */
+    public void setParticipantLogEnabled(boolean participantLogEnabled) {
+        this.participantLogEnabled = participantLogEnabled;
+    }
+
+    public boolean isParticipantLogEnabled() {
+        return participantLogEnabled;
+    }
+
+    /**
+     * Adds the participants read from the participant log to the transaction. A participant already present
+     * in the stored content, because a full update happened after it was appended, is skipped.
+     */
+    protected void mergeParticipants(Transaction transaction, List<Participant> appendedParticipants) {
+
+        Set<Xid> enlistedXids = new HashSet<Xid>();
+
+        for (Participant participant : transaction.getParticipants()) {
+            enlistedXids.add(participant.getXid());
+        }
+
+        for (Participant participant : appendedParticipants) {
+            if (participant.getXid() == null || enlistedXids.add(participant.getXid())) {
+                transaction.enlistParticipant(participant);
+            }
+        }
     }
 
     protected abstract int doCreate(Transaction transaction);
 
     protected abstract int doUpdate(Transaction transaction);
 
+    /**
+     * Writes only the header fields of the transaction, with the same optimistic lock check as doUpdate.
+     * Repositories that cannot update the header alone fall back to a full update.
+     */
+    protected int doUpdateStatus(Transaction transaction) {
+        return doUpdate(transaction);
+    }
+
+    /**
+     * Appends the participant to the participant log and bumps the version and last update time of the transaction,
+     * with the same optimistic lock check as doUpdate. Only called when the participant log is enabled.
+     */
+    protected int doAppendParticipant(Transaction transaction, Participant participant) {
+        return doUpdate(transaction);
+    }
+
     protected abstract int doDelete(Transaction transaction);
 
     protected abstract Transaction doFindOne(Xid xid);
 
+    /**
+     * Reads the transactions stored among the xids, in any order. Loops over doFindOne, repositories able to
+     * read several transactions in one operation override it.
+     */
+    protected List<Transaction> doFindByXids(List<Xid> xids) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
+
+        for (Xid xid : xids) {
+            Transaction transaction = doFindOne(xid);
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Reads the stored version of the transaction only, used when the version check is enabled.
+     *
+     * @return the stored version, VERSION_NOT_FOUND if not stored, VERSION_UNKNOWN if the repository cannot
+     * read it cheaper than the whole transaction
+     */
+    protected long doFindVersion(Xid xid) {
+        return VERSION_UNKNOWN;
+    }
+
     protected abstract List<Transaction> doFindAllUnmodifiedSince(Date date);
+
+    /**
+     * Returns the fully loaded list as a single page, there is no next offset. Repositories able to scan their
+     * storage incrementally override it.
+     */
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+        return new Page<Transaction>(doFindAllUnmodifiedSince(date), null);
+    }
 }
@@ -1,19 +1,29 @@
 package org.mengyun.tcctransaction.repository;
 
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
 import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 
 import javax.transaction.xa.Xid;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -23,16 +33,39 @@ import java.util.List;
  */
 public class FileSystemTransactionRepository extends CachableTransactionRepository {
 
+    private static final String PARTICIPANT_FILE_SUFFIX = ".participants";
+
     private String rootPath = "/tcc";
 
     private volatile boolean initialized;
 
     private ObjectSerializer serializer = new JdkSerializationSerializer();
 
+    private XidKeyFormat keyFormat = XidKeyFormat.LEGACY;
+
+    private boolean envelopeFormat = false;
+
     public void setSerializer(ObjectSerializer serializer) {
         this.serializer = serializer;
     }
 
+    /**
+     * @param envelopeFormat write the transaction files as envelopes, whose status fields are updated in place,
+     *                       instead of the map format rewritten whole. Both are read, but nodes of versions before
+     *                       the envelope only read the latter: enable it once every node sharing the root path runs
+     *                       this version.
+     */
+    public void setEnvelopeFormat(boolean envelopeFormat) {
+        this.envelopeFormat = envelopeFormat;
+    }
+
+    /**
+     * @param keyFormat how the xid is written into the file names, LEGACY by default
+     */
+    public void setKeyFormat(XidKeyFormat keyFormat) {
+        this.keyFormat = keyFormat;
+    }
+
     public void setRootPath(String rootPath) {
         this.rootPath = rootPath;
     }
@@ -53,10 +86,85 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         return 1;
     }
 
+    /**
+     * Writes only the status fields of the header, at their offset in the file.
+     */
+    @Override
+    protected int doUpdateStatus(Transaction transaction) {
+
+        File file = new File(getFullFileName(transaction.getTransactionXid()));
+
+        if (!file.exists()) {
+            return doUpdate(transaction);
+        }
+
+        transaction.updateVersion();
+        transaction.updateTime();
+
+        if (!writeAt(file, TransactionSerializer.STATUS_FIELDS_OFFSET, TransactionSerializer.serializeStatusFields(transaction))) {
+            // a record of the map format has no fixed offsets, it is rewritten whole
+            writeFile(transaction, TransactionSerializer.serializeStatus(serializer, readFile(file), transaction, envelopeFormat));
+        }
+        return 1;
+    }
+
+    /**
+     * Appends the participant as a length prefixed record to the participant file of the transaction,
+     * then writes the new version and last update time at their offset in the header of the transaction file.
+     */
+    @Override
+    protected int doAppendParticipant(Transaction transaction, Participant participant) {
+
+        makeDirIfNecessary();
+
+        transaction.updateVersion();
+        transaction.updateTime();
+
+        byte[] content = serializer.serialize(participant);
+
+        File file = new File(getFullFileName(transaction.getTransactionXid()));
+
+        FileOutputStream fos = null;
+
+        try {
+            fos = new FileOutputStream(file.getPath() + PARTICIPANT_FILE_SUFFIX, true);
+
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(content.length);
+            out.write(content);
+            out.flush();
+
+            fos.getChannel().force(true);
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    throw new TransactionIOException(e);
+                }
+            }
+        }
+
+        // recovery and the version check read VERSION and LAST_UPDATE_TIME from the header,
+        // a record of the map format is rewritten whole
+        if (file.exists() && !writeAt(file, TransactionSerializer.VERSION_FIELDS_OFFSET, TransactionSerializer.serializeVersionFields(transaction))) {
+            writeFile(transaction, TransactionSerializer.serializeStatus(serializer, readFile(file), transaction, envelopeFormat));
+        }
+        return 1;
+    }
+
     @Override
     protected int doDelete(Transaction transaction) {
 
-        String fullFileName = getFullFileName(transaction.getXid());
+        String fullFileName = getFullFileName(transaction.getTransactionXid());
+
+        File participantFile = new File(fullFileName + PARTICIPANT_FILE_SUFFIX);
+        if (participantFile.exists()) {
+            participantFile.delete();
+        }
+
         File file = new File(fullFileName);
         if (file.exists()) {
             return file.delete() ? 1 : 0;
@@ -94,6 +202,55 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
     }
 
 
+    /**
+     * Pages over the transaction files in name order, the offset being the name of the last file visited.
+     * Only the names are listed for every page, only the files of the page are read.
+     */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        String[] fileNames = new File(rootPath).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.endsWith(PARTICIPANT_FILE_SUFFIX);
+            }
+        });
+
+        if (fileNames == null) {
+            return new Page<Transaction>(new ArrayList<Transaction>(), null);
+        }
+
+        Arrays.sort(fileNames);
+
+        int from = 0;
+
+        if (offset != null) {
+            int index = Arrays.binarySearch(fileNames, offset);
+            from = index >= 0 ? index + 1 : -(index + 1);
+        }
+
+        int to = Math.min(from + pageSize, fileNames.length);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = from; i < to; i++) {
+
+            File file = new File(rootPath, fileNames[i]);
+
+            if (!file.exists()) {
+                continue;
+            }
+
+            Transaction transaction = readTransaction(file);
+
+            if (transaction != null && transaction.getLastUpdateTime().compareTo(date) < 0) {
+                transactions.add(transaction);
+            }
+        }
+
+        return new Page<Transaction>(transactions, to < fileNames.length ? fileNames[to - 1] : null);
+    }
+
     protected List<Transaction> doFindAll() {
 
         List<Transaction> transactions = new ArrayList<Transaction>();
@@ -101,6 +258,9 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         File[] files = path.listFiles();
 
         for (File file : files) {
+            if (file.getName().endsWith(PARTICIPANT_FILE_SUFFIX)) {
+                continue;
+            }
             Transaction transaction = readTransaction(file);
             transactions.add(transaction);
         }
@@ -109,7 +269,7 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
     }
 
     private String getFullFileName(Xid xid) {
-        return String.format("%s/%s", rootPath, xid);
+        return rootPath + "/" + keyFormat.encode(xid);
     }
 
     private void makeDirIfNecessary() {
@@ -135,14 +295,17 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
     }
 
     private void writeFile(Transaction transaction) {
+        writeFile(transaction, TransactionSerializer.serialize(serializer, transaction, envelopeFormat));
+    }
+
+    private void writeFile(Transaction transaction, byte[] content) {
         makeDirIfNecessary();
 
-        String file = getFullFileName(transaction.getXid());
+        String file = getFullFileName(transaction.getTransactionXid());
 
         FileChannel channel = null;
         RandomAccessFile raf = null;
 
-        byte[] content = TransactionSerializer.serialize(serializer, transaction);
         try {
             raf = new RandomAccessFile(file, "rw");
             channel = raf.getChannel();
@@ -154,6 +317,9 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
                 channel.write(buffer);
             }
 
+            // drop the tail of a longer previous version of the file
+            channel.truncate(content.length);
+
             channel.force(true);
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -168,8 +334,94 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         }
     }
 
+    /**
+     * Overwrites part of the header of an envelope record, the length of the file is unchanged.
+     *
+     * @return false, writing nothing, if the file does not hold an envelope record
+     */
+    private boolean writeAt(File file, int offset, byte[] content) {
+
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+
+            byte[] head = new byte[TransactionSerializer.MAGIC_LENGTH];
+
+            if (raf.read(head) != head.length || !TransactionSerializer.isEnvelopeHeader(head)) {
+                return false;
+            }
+
+            raf.seek(offset);
+            raf.write(content);
+            raf.getChannel().force(false);
+            return true;
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    throw new TransactionIOException(e);
+                }
+            }
+        }
+    }
+
     private Transaction readTransaction(File file) {
 
+        byte[] content = readFile(file);
+
+        if (content != null) {
+            Transaction transaction = TransactionSerializer.deserialize(serializer, content);
+
+            File participantFile = new File(file.getPath() + PARTICIPANT_FILE_SUFFIX);
+            if (participantFile.exists()) {
+                mergeParticipants(transaction, readParticipants(participantFile));
+            }
+            return transaction;
+        }
+
+        return null;
+    }
+
+    private List<Participant> readParticipants(File file) {
+
+        List<Participant> participants = new ArrayList<Participant>();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            while (true) {
+                byte[] content;
+                try {
+                    content = new byte[in.readInt()];
+                    in.readFully(content);
+                } catch (EOFException e) {
+                    // end of file, or a record torn by a crash while it was being appended
+                    break;
+                }
+                participants.add((Participant) serializer.deserialize(content));
+            }
+
+            return participants;
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw new TransactionIOException(e);
+                }
+            }
+        }
+    }
+
+    private byte[] readFile(File file) {
+
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(file);
@@ -178,9 +430,7 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
 
             fis.read(content);
 
-            if (content != null) {
-                return TransactionSerializer.deserialize(serializer, content);
-            }
+            return content;
         } catch (Exception e) {
             throw new TransactionIOException(e);
         } finally {
@@ -192,7 +442,5 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
                 }
             }
         }
-
-        return null;
     }
 }
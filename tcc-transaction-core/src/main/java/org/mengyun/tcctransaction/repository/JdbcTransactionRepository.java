@@ -1,8 +1,13 @@
 package org.mengyun.tcctransaction.repository;
 
 
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.JdbcGroupCommitter;
+import org.mengyun.tcctransaction.repository.helper.JdbcTransactionSql;
 import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 import org.mengyun.tcctransaction.utils.CollectionUtils;
@@ -13,7 +18,10 @@ import javax.transaction.xa.Xid;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by changmingxie on 10/30/15.
@@ -28,12 +36,23 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
 
     private ObjectSerializer serializer = new JdkSerializationSerializer();
 
+    private boolean groupCommitEnabled = false;
+
+    private int groupCommitInterval = 5;
+
+    private int groupCommitMaxBatchSize = 100;
+
+    private volatile JdbcGroupCommitter groupCommitter;
+
+    private volatile JdbcTransactionSql sql = new JdbcTransactionSql(getTableName(), getParticipantTableName(), domain);
+
     public String getDomain() {
         return domain;
     }
 
     public void setDomain(String domain) {
         this.domain = domain;
+        this.sql = new JdbcTransactionSql(getTableName(), getParticipantTableName(), domain);
     }
 
     public String getTbSuffix() {
@@ -42,6 +61,7 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
 
     public void setTbSuffix(String tbSuffix) {
         this.tbSuffix = tbSuffix;
+        this.sql = new JdbcTransactionSql(getTableName(), getParticipantTableName(), domain);
     }
 
     public void setSerializer(ObjectSerializer serializer) {
@@ -56,7 +76,40 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         return dataSource;
     }
 
-    protected int doCreate(Transaction transaction) {
+    /**
+     * When enabled, create/update/delete statements from concurrent threads are written in JDBC batches
+     * with one commit per flush instead of one round trip each. The calling thread still blocks until its
+     * own record is committed. Batched statements are written on their own connection and do not join
+     * a transaction of the calling thread.
+     */
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    /**
+     * @param groupCommitInterval max milliseconds a statement waits for others to join its batch
+     */
+    public void setGroupCommitInterval(int groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    /**
+     * @param groupCommitMaxBatchSize statements written per flush at most
+     */
+    public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    }
+
+    protected int doCreate(final Transaction transaction) {
+
+        if (groupCommitEnabled) {
+            return getGroupCommitter().execute(new JdbcGroupCommitter.Operation(sql.getInsertSql(), transaction.getXid()) {
+                @Override
+                protected void bind(PreparedStatement stmt) throws SQLException {
+                    bindInsert(stmt, transaction);
+                }
+            });
+        }
 
         Connection connection = null;
         PreparedStatement stmt = null;
@@ -64,26 +117,9 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("INSERT INTO " + getTableName() +
-                    "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN ) VALUES (?,?,?,?,?,?,?,?,?,?)" : ") VALUES (?,?,?,?,?,?,?,?,?)");
-
-            stmt = connection.prepareStatement(builder.toString());
+            stmt = connection.prepareStatement(sql.getInsertSql());
 
-            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
-            stmt.setInt(3, transaction.getTransactionType().getId());
-            stmt.setBytes(4, serializer.serialize(transaction));
-            stmt.setInt(5, transaction.getStatus().getId());
-            stmt.setInt(6, transaction.getRetriedCount());
-            stmt.setTimestamp(7, new java.sql.Timestamp(transaction.getCreateTime().getTime()));
-            stmt.setTimestamp(8, new java.sql.Timestamp(transaction.getLastUpdateTime().getTime()));
-            stmt.setLong(9, transaction.getVersion());
-
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(10, domain);
-            }
+            bindInsert(stmt, transaction);
 
             return stmt.executeUpdate();
 
@@ -95,43 +131,74 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         }
     }
 
-    protected int doUpdate(Transaction transaction) {
+    protected int doUpdate(final Transaction transaction) {
         Connection connection = null;
         PreparedStatement stmt = null;
 
         java.util.Date lastUpdateTime = transaction.getLastUpdateTime();
-        long currentVersion = transaction.getVersion();
+        final long currentVersion = transaction.getVersion();
 
         transaction.updateTime();
         transaction.updateVersion();
 
         try {
+            if (groupCommitEnabled) {
+                return getGroupCommitter().execute(new JdbcGroupCommitter.Operation(sql.getUpdateSql(), transaction.getXid()) {
+                    @Override
+                    protected void bind(PreparedStatement stmt) throws SQLException {
+                        bindUpdate(stmt, transaction, currentVersion);
+                    }
+                });
+            }
+
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("UPDATE " + getTableName() + " SET " +
-                    "CONTENT = ?,STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
+            stmt = connection.prepareStatement(sql.getUpdateSql());
 
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+            bindUpdate(stmt, transaction, currentVersion);
 
-            stmt = connection.prepareStatement(builder.toString());
+            int result = stmt.executeUpdate();
 
-            stmt.setBytes(1, serializer.serialize(transaction));
-            stmt.setInt(2, transaction.getStatus().getId());
-            stmt.setTimestamp(3, new Timestamp(transaction.getLastUpdateTime().getTime()));
+            return result;
 
-            stmt.setInt(4, transaction.getRetriedCount());
-            stmt.setBytes(5, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(6, transaction.getXid().getBranchQualifier());
-            stmt.setLong(7, currentVersion);
+        } catch (Throwable e) {
+            transaction.setLastUpdateTime(lastUpdateTime);
+            transaction.setVersion(currentVersion);
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+    }
 
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(8, domain);
+    @Override
+    protected int doUpdateStatus(final Transaction transaction) {
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        java.util.Date lastUpdateTime = transaction.getLastUpdateTime();
+        final long currentVersion = transaction.getVersion();
+
+        transaction.updateTime();
+        transaction.updateVersion();
+
+        try {
+            if (groupCommitEnabled) {
+                return getGroupCommitter().execute(new JdbcGroupCommitter.Operation(sql.getUpdateStatusSql(), transaction.getXid()) {
+                    @Override
+                    protected void bind(PreparedStatement stmt) throws SQLException {
+                        bindUpdateStatus(stmt, transaction, currentVersion);
+                    }
+                });
             }
 
-            int result = stmt.executeUpdate();
+            connection = this.getConnection();
 
-            return result;
+            stmt = connection.prepareStatement(sql.getUpdateStatusSql());
+
+            bindUpdateStatus(stmt, transaction, currentVersion);
+
+            return stmt.executeUpdate();
 
         } catch (Throwable e) {
             transaction.setLastUpdateTime(lastUpdateTime);
@@ -143,27 +210,202 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         }
     }
 
-    protected int doDelete(Transaction transaction) {
+    /**
+     * Bumps the version of the transaction and inserts the participant in one database transaction, group committed
+     * when enabled, so a failed insert does not leave the stored version ahead of the one in memory.
+     */
+    @Override
+    protected int doAppendParticipant(final Transaction transaction, final Participant participant) {
+
+        java.util.Date lastUpdateTime = transaction.getLastUpdateTime();
+        final long currentVersion = transaction.getVersion();
+
+        transaction.updateTime();
+        transaction.updateVersion();
+
+        try {
+            int result = executeTogether(new JdbcGroupCommitter.MultiStatementOperation(transaction.getXid()) {
+                @Override
+                public int execute(Connection connection) throws SQLException {
+
+                    PreparedStatement stmt = connection.prepareStatement(sql.getTouchSql());
+
+                    try {
+                        stmt.setTimestamp(1, new Timestamp(transaction.getLastUpdateTime().getTime()));
+                        stmt.setBytes(2, transaction.getTransactionXid().getGlobalTransactionId());
+                        stmt.setBytes(3, transaction.getTransactionXid().getBranchQualifier());
+                        stmt.setLong(4, currentVersion);
+
+                        if (StringUtils.isNotEmpty(domain)) {
+                            stmt.setString(5, domain);
+                        }
+
+                        int result = stmt.executeUpdate();
+
+                        if (result <= 0) {
+                            return result;
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+
+                    stmt = connection.prepareStatement(sql.getInsertParticipantSql());
+
+                    try {
+                        stmt.setBytes(1, transaction.getTransactionXid().getGlobalTransactionId());
+                        stmt.setBytes(2, transaction.getTransactionXid().getBranchQualifier());
+                        stmt.setBytes(3, serializer.serialize(participant));
+                        stmt.setTimestamp(4, new Timestamp(transaction.getLastUpdateTime().getTime()));
+
+                        if (StringUtils.isNotEmpty(domain)) {
+                            stmt.setString(5, domain);
+                        }
+
+                        stmt.executeUpdate();
+                    } finally {
+                        stmt.close();
+                    }
+
+                    return 1;
+                }
+            });
+
+            if (result <= 0) {
+                transaction.setLastUpdateTime(lastUpdateTime);
+                transaction.setVersion(currentVersion);
+            }
+
+            return result;
+
+        } catch (RuntimeException e) {
+            transaction.setLastUpdateTime(lastUpdateTime);
+            transaction.setVersion(currentVersion);
+            throw e;
+        }
+    }
+
+    protected int doDelete(final Transaction transaction) {
+
+        if (!isParticipantLogEnabled()) {
+            return doDelete(transaction, sql.getDeleteSql());
+        }
+
+        // 事务与参与者日志一起删除, 避免留下孤立的参与者记录
+        return executeTogether(new JdbcGroupCommitter.MultiStatementOperation(transaction.getXid()) {
+            @Override
+            public int execute(Connection connection) throws SQLException {
+
+                PreparedStatement stmt = connection.prepareStatement(sql.getDeleteSql());
+
+                int result;
+
+                try {
+                    bindDelete(stmt, transaction);
+                    result = stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+
+                stmt = connection.prepareStatement(sql.getDeleteParticipantsSql());
+
+                try {
+                    bindDelete(stmt, transaction);
+                    stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs the statements of the operation in one database transaction, through the group committer when enabled.
+     * A connection already in a transaction, e.g. one bound to the calling thread by spring, is left to it.
+     */
+    private int executeTogether(JdbcGroupCommitter.MultiStatementOperation operation) {
+
+        if (groupCommitEnabled) {
+            return getGroupCommitter().execute(operation);
+        }
+
         Connection connection = null;
-        PreparedStatement stmt = null;
+        boolean autoCommit = false;
 
         try {
             connection = this.getConnection();
+            autoCommit = connection.getAutoCommit();
+
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("DELETE FROM " + getTableName() +
-                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?");
+            int result = operation.execute(connection);
 
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+            if (autoCommit) {
+                connection.commit();
+            }
+            return result;
 
-            stmt = connection.prepareStatement(builder.toString());
+        } catch (SQLException e) {
+            if (autoCommit) {
+                rollback(connection);
+            }
+            throw new TransactionIOException(e);
+        } catch (RuntimeException e) {
+            if (autoCommit) {
+                rollback(connection);
+            }
+            throw e;
+        } finally {
+            if (autoCommit) {
+                restoreAutoCommit(connection);
+            }
+            this.releaseConnection(connection);
+        }
+    }
 
-            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+    private void rollback(Connection connection) {
+        try {
+            if (connection != null) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            // the failure that caused the rollback is rethrown
+        }
+    }
 
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(3, domain);
+    private void restoreAutoCommit(Connection connection) {
+        try {
+            if (!connection.isClosed()) {
+                connection.setAutoCommit(true);
             }
+        } catch (SQLException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private int doDelete(final Transaction transaction, String deleteSql) {
+
+        if (groupCommitEnabled) {
+            return getGroupCommitter().execute(new JdbcGroupCommitter.Operation(deleteSql, transaction.getXid()) {
+                @Override
+                protected void bind(PreparedStatement stmt) throws SQLException {
+                    bindDelete(stmt, transaction);
+                }
+            });
+        }
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
+
+            stmt = connection.prepareStatement(deleteSql);
+
+            bindDelete(stmt, transaction);
 
             return stmt.executeUpdate();
 
@@ -175,6 +417,84 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         }
     }
 
+    private void bindInsert(PreparedStatement stmt, Transaction transaction) throws SQLException {
+        stmt.setBytes(1, transaction.getTransactionXid().getGlobalTransactionId());
+        stmt.setBytes(2, transaction.getTransactionXid().getBranchQualifier());
+        stmt.setInt(3, transaction.getTransactionType().getId());
+        stmt.setBytes(4, serializer.serialize(transaction));
+        stmt.setInt(5, transaction.getStatus().getId());
+        stmt.setInt(6, transaction.getRetriedCount());
+        stmt.setTimestamp(7, new java.sql.Timestamp(transaction.getCreateTime().getTime()));
+        stmt.setTimestamp(8, new java.sql.Timestamp(transaction.getLastUpdateTime().getTime()));
+        stmt.setLong(9, transaction.getVersion());
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(10, domain);
+        }
+    }
+
+    private void bindUpdate(PreparedStatement stmt, Transaction transaction, long currentVersion) throws SQLException {
+        stmt.setBytes(1, serializer.serialize(transaction));
+        stmt.setInt(2, transaction.getStatus().getId());
+        stmt.setTimestamp(3, new Timestamp(transaction.getLastUpdateTime().getTime()));
+
+        stmt.setInt(4, transaction.getRetriedCount());
+        stmt.setBytes(5, transaction.getTransactionXid().getGlobalTransactionId());
+        stmt.setBytes(6, transaction.getTransactionXid().getBranchQualifier());
+        stmt.setLong(7, currentVersion);
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(8, domain);
+        }
+    }
+
+    private void bindUpdateStatus(PreparedStatement stmt, Transaction transaction, long currentVersion) throws SQLException {
+        stmt.setInt(1, transaction.getStatus().getId());
+        stmt.setTimestamp(2, new Timestamp(transaction.getLastUpdateTime().getTime()));
+        stmt.setInt(3, transaction.getRetriedCount());
+        stmt.setBytes(4, transaction.getTransactionXid().getGlobalTransactionId());
+        stmt.setBytes(5, transaction.getTransactionXid().getBranchQualifier());
+        stmt.setLong(6, currentVersion);
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(7, domain);
+        }
+    }
+
+    private void bindDelete(PreparedStatement stmt, Transaction transaction) throws SQLException {
+        stmt.setBytes(1, transaction.getTransactionXid().getGlobalTransactionId());
+        stmt.setBytes(2, transaction.getTransactionXid().getBranchQualifier());
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(3, domain);
+        }
+    }
+
+    /**
+     * Stops the group commit thread once the statements already submitted are written. A later write starts it again.
+     */
+    public void close() {
+
+        synchronized (this) {
+            if (groupCommitter != null) {
+                groupCommitter.close();
+                groupCommitter = null;
+            }
+        }
+    }
+
+    private JdbcGroupCommitter getGroupCommitter() {
+
+        if (groupCommitter == null) {
+            synchronized (this) {
+                if (groupCommitter == null) {
+                    groupCommitter = new JdbcGroupCommitter(dataSource, groupCommitInterval, groupCommitMaxBatchSize);
+                }
+            }
+        }
+        return groupCommitter;
+    }
+
     protected Transaction doFindOne(Xid xid) {
 
         List<Transaction> transactions = doFind(Arrays.asList(xid));
@@ -186,9 +506,12 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
     }
 
     @Override
-    protected List<Transaction> doFindAllUnmodifiedSince(java.util.Date date) {
+    protected List<Transaction> doFindByXids(List<Xid> xids) {
+        return doFind(xids);
+    }
 
-        List<Transaction> transactions = new ArrayList<Transaction>();
+    @Override
+    protected long doFindVersion(Xid xid) {
 
         Connection connection = null;
         PreparedStatement stmt = null;
@@ -196,14 +519,38 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
+            stmt = connection.prepareStatement(sql.getFindVersionSql());
+
+            stmt.setBytes(1, xid.getGlobalTransactionId());
+            stmt.setBytes(2, xid.getBranchQualifier());
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(3, domain);
+            }
+
+            ResultSet resultSet = stmt.executeQuery();
+
+            return resultSet.next() ? resultSet.getLong(1) : VERSION_NOT_FOUND;
+        } catch (SQLException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+    }
 
-            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE LAST_UPDATE_TIME < ?");
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(java.util.Date date) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
 
-            stmt = connection.prepareStatement(builder.toString());
+            stmt = connection.prepareStatement(sql.getFindAllUnmodifiedSinceSql());
 
             stmt.setTimestamp(1, new Timestamp(date.getTime()));
 
@@ -214,6 +561,10 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
             ResultSet resultSet = stmt.executeQuery();
 
             this.constructTransactions(resultSet, transactions);
+
+            if (isParticipantLogEnabled()) {
+                attachParticipants(connection, transactions);
+            }
         } catch (Throwable e) {
             throw new TransactionIOException(e);
         } finally {
@@ -224,6 +575,62 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         return transactions;
     }
 
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(java.util.Date date, String offset, int pageSize) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        String nextOffset = null;
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
+
+            stmt = connection.prepareStatement(offset == null ? sql.getFindFirstPageSql() : sql.getFindNextPageSql());
+            stmt.setMaxRows(pageSize);
+
+            int i = 0;
+
+            stmt.setTimestamp(++i, new Timestamp(date.getTime()));
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(++i, domain);
+            }
+
+            if (offset != null) {
+                // offset is "<last update time in millis>:<transaction id>" of the last row returned
+                int separator = offset.indexOf(':');
+                Timestamp lastUpdateTime = new Timestamp(Long.parseLong(offset.substring(0, separator)));
+
+                stmt.setTimestamp(++i, lastUpdateTime);
+                stmt.setTimestamp(++i, lastUpdateTime);
+                stmt.setLong(++i, Long.parseLong(offset.substring(separator + 1)));
+            }
+
+            ResultSet resultSet = stmt.executeQuery();
+
+            while (resultSet.next()) {
+                transactions.add(constructTransaction(resultSet));
+
+                if (transactions.size() == pageSize) {
+                    nextOffset = resultSet.getTimestamp(7).getTime() + ":" + resultSet.getLong(10);
+                }
+            }
+
+            if (isParticipantLogEnabled()) {
+                attachParticipants(connection, transactions);
+            }
+        } catch (Throwable e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+
+        return new Page<Transaction>(transactions, nextOffset);
+    }
+
     protected List<Transaction> doFind(List<Xid> xids) {
 
         List<Transaction> transactions = new ArrayList<Transaction>();
@@ -233,31 +640,41 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         }
 
         Connection connection = null;
-        PreparedStatement stmt = null;
 
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE");
-
-            if (!CollectionUtils.isEmpty(xids)) {
-                for (Xid xid : xids) {
-                    builder.append(" ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? ) OR");
-                }
+            for (int from = 0; from < xids.size(); from += JdbcTransactionSql.MAX_FIND_BATCH_SIZE) {
+                int to = Math.min(from + JdbcTransactionSql.MAX_FIND_BATCH_SIZE, xids.size());
+                doFind(connection, xids.subList(from, to), transactions);
+            }
 
-                builder.delete(builder.length() - 2, builder.length());
+            if (isParticipantLogEnabled()) {
+                attachParticipants(connection, transactions);
             }
+        } catch (SQLException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            this.releaseConnection(connection);
+        }
+
+        return transactions;
+    }
+
+    private void doFind(Connection connection, List<Xid> xids, List<Transaction> transactions) {
 
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+        PreparedStatement stmt = null;
+
+        try {
+            int bucketSize = JdbcTransactionSql.bucketSize(xids.size());
 
-            stmt = connection.prepareStatement(builder.toString());
+            stmt = connection.prepareStatement(sql.getFindSql(bucketSize));
 
             int i = 0;
 
-            for (Xid xid : xids) {
+            for (int index = 0; index < bucketSize; index++) {
+                // pad the fixed-size statement by repeating the last xid
+                Xid xid = xids.get(Math.min(index, xids.size() - 1));
                 stmt.setBytes(++i, xid.getGlobalTransactionId());
                 stmt.setBytes(++i, xid.getBranchQualifier());
             }
@@ -273,24 +690,83 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
             throw new TransactionIOException(e);
         } finally {
             closeStatement(stmt);
-            this.releaseConnection(connection);
         }
+    }
 
-        return transactions;
+    private void attachParticipants(Connection connection, List<Transaction> transactions) throws SQLException {
+
+        Map<Xid, Transaction> transactionMap = new HashMap<Xid, Transaction>();
+
+        for (Transaction transaction : transactions) {
+            transactionMap.put(transaction.getXid(), transaction);
+        }
+
+        Map<Transaction, List<Participant>> appendedParticipants = new LinkedHashMap<Transaction, List<Participant>>();
+
+        for (int from = 0; from < transactions.size(); from += JdbcTransactionSql.MAX_FIND_BATCH_SIZE) {
+
+            List<Transaction> chunk = transactions.subList(from, Math.min(from + JdbcTransactionSql.MAX_FIND_BATCH_SIZE, transactions.size()));
+            int bucketSize = JdbcTransactionSql.bucketSize(chunk.size());
+
+            PreparedStatement stmt = null;
+
+            try {
+                stmt = connection.prepareStatement(sql.getFindParticipantsSql(bucketSize));
+
+                int i = 0;
+
+                for (int index = 0; index < bucketSize; index++) {
+                    Xid xid = chunk.get(Math.min(index, chunk.size() - 1)).getXid();
+                    stmt.setBytes(++i, xid.getGlobalTransactionId());
+                    stmt.setBytes(++i, xid.getBranchQualifier());
+                }
+
+                if (StringUtils.isNotEmpty(domain)) {
+                    stmt.setString(++i, domain);
+                }
+
+                ResultSet resultSet = stmt.executeQuery();
+
+                while (resultSet.next()) {
+                    Transaction transaction = transactionMap.get(new TransactionXid(resultSet.getBytes(1), resultSet.getBytes(2)));
+
+                    if (transaction == null) {
+                        continue;
+                    }
+
+                    List<Participant> participants = appendedParticipants.get(transaction);
+                    if (participants == null) {
+                        participants = new ArrayList<Participant>();
+                        appendedParticipants.put(transaction, participants);
+                    }
+                    participants.add((Participant) serializer.deserialize(resultSet.getBytes(3)));
+                }
+            } finally {
+                closeStatement(stmt);
+            }
+        }
+
+        for (Map.Entry<Transaction, List<Participant>> entry : appendedParticipants.entrySet()) {
+            mergeParticipants(entry.getKey(), entry.getValue());
+        }
     }
 
     protected void constructTransactions(ResultSet resultSet, List<Transaction> transactions) throws SQLException {
         while (resultSet.next()) {
-            byte[] transactionBytes = resultSet.getBytes(3);
-            Transaction transaction = (Transaction) serializer.deserialize(transactionBytes);
-            transaction.changeStatus(TransactionStatus.valueOf(resultSet.getInt(4)));
-            transaction.setLastUpdateTime(resultSet.getDate(7));
-            transaction.setVersion(resultSet.getLong(9));
-            transaction.resetRetriedCount(resultSet.getInt(8));
-            transactions.add(transaction);
+            transactions.add(constructTransaction(resultSet));
         }
     }
 
+    protected Transaction constructTransaction(ResultSet resultSet) throws SQLException {
+        byte[] transactionBytes = resultSet.getBytes(3);
+        Transaction transaction = (Transaction) serializer.deserialize(transactionBytes);
+        transaction.changeStatus(TransactionStatus.valueOf(resultSet.getInt(4)));
+        transaction.setLastUpdateTime(resultSet.getDate(7));
+        transaction.setVersion(resultSet.getLong(9));
+        transaction.resetRetriedCount(resultSet.getInt(8));
+        return transaction;
+    }
+
 
     protected Connection getConnection() {
         try {
@@ -323,4 +799,8 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
     private String getTableName() {
         return StringUtils.isNotEmpty(tbSuffix) ? "TCC_TRANSACTION" + tbSuffix : "TCC_TRANSACTION";
     }
+
+    private String getParticipantTableName() {
+        return StringUtils.isNotEmpty(tbSuffix) ? "TCC_TRANSACTION_PARTICIPANT" + tbSuffix : "TCC_TRANSACTION_PARTICIPANT";
+    }
 }
@@ -1,15 +1,22 @@
 package org.mengyun.tcctransaction.repository;
 
 import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.repository.helper.ExpandTransactionSerializer;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
 import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
 
 import javax.transaction.xa.Xid;
 import java.util.*;
@@ -21,25 +28,104 @@ import java.util.*;
  * set below directives in your redis.conf
  * appendonly yes
  * appendfsync always
+ * <p/>
+ * Besides a hash per transaction, a sorted set scored by last update time indexes every transaction for recovery.
  */
 public class RedisTransactionRepository extends CachableTransactionRepository {
 
     static final Logger logger = Logger.getLogger(RedisTransactionRepository.class.getSimpleName());
 
+    private static final byte[] VERSION_FIELD = "VERSION".getBytes();
+
+    private static final String INDEX_IF_LATER_SCRIPT = "if redis.call('exists', KEYS[2]) == 1 then "
+            + "local score = redis.call('zscore', KEYS[1], KEYS[2]); "
+            + "if not score or tonumber(score) < tonumber(ARGV[1]) then redis.call('zadd', KEYS[1], ARGV[1], KEYS[2]); end; end; "
+            + "return 0;";
+
     private JedisPool jedisPool;
 
     private String keyPrefix = "TCC:";
 
+    private int fetchPageSize = 1000;
+
+    private XidKeyFormat keyFormat = XidKeyFormat.LEGACY;
+
+    private volatile boolean indexChecked;
+
+    private boolean indexComplete = false;
+
+    private long indexRebuildInterval = 5 * 60 * 1000L;
+
+    private volatile long lastIndexRebuildTime;
+
     public void setKeyPrefix(String keyPrefix) {
         this.keyPrefix = keyPrefix;
     }
 
+    /**
+     * @param fetchPageSize transactions fetched per round trip when scanning the time index
+     */
+    public void setFetchPageSize(int fetchPageSize) {
+        this.fetchPageSize = fetchPageSize;
+    }
+
+    /**
+     * Nodes of versions before the time index write transactions without indexing them. Until every node sharing
+     * the key prefix runs a version maintaining the index, a recovery scan starts by indexing the transactions
+     * stored under the prefix again, an incremental SCAN of the keys, at most once per indexRebuildInterval.
+     * <p/>
+     * Upgrade: deploy with indexComplete false, the default, then once the last older node is gone set it to true
+     * on every node to skip the rescans.
+     */
+    public void setIndexComplete(boolean indexComplete) {
+        this.indexComplete = indexComplete;
+    }
+
+    /**
+     * @param indexRebuildInterval milliseconds between two rescans of the keys while the index is not complete,
+     *                             5 minutes by default. Transactions written by older nodes meanwhile are recovered
+     *                             that much later.
+     */
+    public void setIndexRebuildInterval(long indexRebuildInterval) {
+        this.indexRebuildInterval = indexRebuildInterval;
+    }
+
     private ObjectSerializer serializer = new JdkSerializationSerializer();
 
+    private boolean contentViewEnabled = false;
+
+    private boolean epochMillisDates = false;
+
     public void setSerializer(ObjectSerializer serializer) {
         this.serializer = serializer;
     }
 
+    /**
+     * @param contentViewEnabled store a JSON rendering of each transaction in CONTENT_VIEW on every write,
+     *                           by default the management console renders it from CONTENT on demand
+     */
+    public void setContentViewEnabled(boolean contentViewEnabled) {
+        this.contentViewEnabled = contentViewEnabled;
+    }
+
+    /**
+     * @param epochMillisDates write CREATE_TIME and LAST_UPDATE_TIME as epoch milliseconds instead of
+     *                         "yyyy-MM-dd HH:mm:ss", keeping the milliseconds and saving the formatting. Both are read,
+     *                         but nodes of versions before the format only read the latter: enable it once every node
+     *                         sharing the key prefix runs this version.
+     */
+    public void setEpochMillisDates(boolean epochMillisDates) {
+        this.epochMillisDates = epochMillisDates;
+    }
+
+    /**
+     * @param keyFormat how the xid is written into the redis keys, LEGACY by default. The management console
+     *                  addresses the records by their LEGACY keys.
+     */
+    public void setKeyFormat(XidKeyFormat keyFormat) {
+        this.keyFormat = keyFormat;
+    }
+
     public JedisPool getJedisPool() {
         return jedisPool;
     }
@@ -61,13 +147,15 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
                     List<byte[]> params = new ArrayList<byte[]>();
 
-                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serialize(serializer, transaction).entrySet()) {
+                    params.add(indexScore(transaction));
+
+                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serialize(serializer, transaction, contentViewEnabled, epochMillisDates).entrySet()) {
                         params.add(entry.getKey());
                         params.add(entry.getValue());
                     }
 
-                    Object result = jedis.eval("if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;".getBytes(),
-                            Arrays.asList(RedisHelper.getRedisKey(keyPrefix, transaction.getXid())), params);
+                    Object result = jedis.eval("if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV, 2)); redis.call('zadd', KEYS[2], ARGV[1], KEYS[1]); return 1; end; return 0;".getBytes(),
+                            Arrays.asList(getRedisKey(transaction.getTransactionXid()), RedisHelper.getIndexKey(keyPrefix)), params);
 
                     return (Long) result;
                 }
@@ -80,6 +168,53 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
     @Override
     protected int doUpdate(final Transaction transaction) {
+        return doUpdate(transaction, false);
+    }
+
+    @Override
+    protected int doUpdateStatus(final Transaction transaction) {
+        return doUpdate(transaction, true);
+    }
+
+    private int doUpdate(final Transaction transaction, final boolean statusOnly) {
+
+        try {
+
+            Long statusCode = RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
+                @Override
+                public Long doInJedis(Jedis jedis) {
+
+                    transaction.updateTime();
+                    transaction.updateVersion();
+
+                    Map<byte[], byte[]> fields = statusOnly ? ExpandTransactionSerializer.serializeStatus(transaction, epochMillisDates)
+                            : ExpandTransactionSerializer.serialize(serializer, transaction, contentViewEnabled, epochMillisDates);
+
+                    List<byte[]> params = new ArrayList<byte[]>();
+
+                    params.add(indexScore(transaction));
+
+                    for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+                        params.add(entry.getKey());
+                        params.add(entry.getValue());
+                    }
+
+                    Object result = jedis.eval(String.format("if redis.call('hget',KEYS[1],'VERSION') == '%s' then redis.call('hmset', KEYS[1], unpack(ARGV, 2)); redis.call('zadd', KEYS[2], ARGV[1], KEYS[1]); return 1; end; return 0;",
+                                    transaction.getVersion() - 1).getBytes(),
+                            Arrays.asList(getRedisKey(transaction.getTransactionXid()), RedisHelper.getIndexKey(keyPrefix)), params);
+
+                    return (Long) result;
+                }
+            });
+
+            return statusCode.intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    @Override
+    protected int doAppendParticipant(final Transaction transaction, final Participant participant) {
 
         try {
 
@@ -92,14 +227,17 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
                     List<byte[]> params = new ArrayList<byte[]>();
 
-                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serialize(serializer, transaction).entrySet()) {
+                    params.add(indexScore(transaction));
+                    params.add(serializer.serialize(participant));
+
+                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serializeTouch(transaction, epochMillisDates).entrySet()) {
                         params.add(entry.getKey());
                         params.add(entry.getValue());
                     }
 
-                    Object result = jedis.eval(String.format("if redis.call('hget',KEYS[1],'VERSION') == '%s' then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;",
+                    Object result = jedis.eval(String.format("if redis.call('hget',KEYS[1],'VERSION') == '%s' then redis.call('hmset', KEYS[1], unpack(ARGV, 3)); redis.call('zadd', KEYS[2], ARGV[1], KEYS[1]); redis.call('rpush', KEYS[3], ARGV[2]); return 1; end; return 0;",
                                     transaction.getVersion() - 1).getBytes(),
-                            Arrays.asList(RedisHelper.getRedisKey(keyPrefix, transaction.getXid())), params);
+                            Arrays.asList(getRedisKey(transaction.getTransactionXid()), RedisHelper.getIndexKey(keyPrefix), RedisHelper.getParticipantKey(getRedisKey(transaction.getTransactionXid()))), params);
 
                     return (Long) result;
                 }
@@ -119,7 +257,19 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
                 @Override
                 public Long doInJedis(Jedis jedis) {
 
-                    return jedis.del(RedisHelper.getRedisKey(keyPrefix, transaction.getXid()));
+                    List<byte[]> keys = new ArrayList<byte[]>();
+
+                    keys.add(getRedisKey(transaction.getTransactionXid()));
+                    keys.add(RedisHelper.getIndexKey(keyPrefix));
+
+                    if (isParticipantLogEnabled()) {
+                        keys.add(RedisHelper.getParticipantKey(getRedisKey(transaction.getTransactionXid())));
+                    }
+
+                    Object result = jedis.eval("local result = redis.call('del', KEYS[1]); redis.call('zrem', KEYS[2], KEYS[1]); if #KEYS > 2 then redis.call('del', KEYS[3]); end; return result;".getBytes(),
+                            keys, new ArrayList<byte[]>());
+
+                    return (Long) result;
                 }
             });
 
@@ -134,16 +284,27 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
         try {
             Long startTime = System.currentTimeMillis();
-            Map<byte[], byte[]> content = RedisHelper.execute(jedisPool, new JedisCallback<Map<byte[], byte[]>>() {
+            List<Object> result = RedisHelper.execute(jedisPool, new JedisCallback<List<Object>>() {
                 @Override
-                public Map<byte[], byte[]> doInJedis(Jedis jedis) {
-                    return jedis.hgetAll(RedisHelper.getRedisKey(keyPrefix, xid));
+                public List<Object> doInJedis(Jedis jedis) {
+
+                    Pipeline pipeline = jedis.pipelined();
+
+                    pipeline.hgetAll(getRedisKey(xid));
+
+                    if (isParticipantLogEnabled()) {
+                        pipeline.lrange(RedisHelper.getParticipantKey(getRedisKey(xid)), 0, -1);
+                    }
+
+                    return pipeline.syncAndReturnAll();
                 }
             });
             logger.info("redis find cost time :" + (System.currentTimeMillis() - startTime));
 
+            Map<byte[], byte[]> content = (Map<byte[], byte[]>) result.get(0);
+
             if (content != null && content.size() > 0) {
-                return ExpandTransactionSerializer.deserialize(serializer, content);
+                return deserialize(content, isParticipantLogEnabled() ? (List<byte[]>) result.get(1) : null);
             }
             return null;
         } catch (Exception e) {
@@ -152,61 +313,304 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
     }
 
     @Override
-    protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
+    protected List<Transaction> doFindByXids(List<Xid> xids) {
 
-        List<Transaction> allTransactions = doFindAll();
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
 
-        List<Transaction> allUnmodifiedSince = new ArrayList<Transaction>();
+        try {
+            for (int from = 0; from < xids.size(); from += fetchPageSize) {
+
+                List<byte[]> keys = new ArrayList<byte[]>();
 
-        for (Transaction transaction : allTransactions) {
-            if (transaction.getLastUpdateTime().compareTo(date) < 0) {
-                allUnmodifiedSince.add(transaction);
+                for (Xid xid : xids.subList(from, Math.min(from + fetchPageSize, xids.size()))) {
+                    keys.add(getRedisKey(xid));
+                }
+
+                transactions.addAll(findByRedisKeys(keys));
             }
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
         }
 
-        return allUnmodifiedSince;
+        return transactions;
     }
 
-    //    @Override
-    protected List<Transaction> doFindAll() {
+    @Override
+    protected long doFindVersion(final Xid xid) {
 
         try {
-
-            final Set<byte[]> keys = RedisHelper.execute(jedisPool, new JedisCallback<Set<byte[]>>() {
+            byte[] version = RedisHelper.execute(jedisPool, new JedisCallback<byte[]>() {
                 @Override
-                public Set<byte[]> doInJedis(Jedis jedis) {
-                    return jedis.keys((keyPrefix + "*").getBytes());
+                public byte[] doInJedis(Jedis jedis) {
+                    return jedis.hget(getRedisKey(xid), VERSION_FIELD);
                 }
             });
 
+            return version != null ? ByteUtils.bytesToLong(version) : VERSION_NOT_FOUND;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
 
-            return RedisHelper.execute(jedisPool, new JedisCallback<List<Transaction>>() {
-                @Override
-                public List<Transaction> doInJedis(Jedis jedis) {
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
 
-                    Pipeline pipeline = jedis.pipelined();
+        List<Transaction> allUnmodifiedSince = new ArrayList<Transaction>();
+
+        String offset = null;
+
+        do {
+            Page<Transaction> page = doFindAllUnmodifiedSince(date, offset, fetchPageSize);
+            allUnmodifiedSince.addAll(page.getData());
+            offset = page.getNextOffset();
+        } while (offset != null);
 
-                    for (final byte[] key : keys) {
-                        pipeline.hgetAll(key);
+        return allUnmodifiedSince;
+    }
+
+    /**
+     * Reads the transactions scored before the date in the time index. The offset is the score and the member of
+     * the last index entry returned, members sharing that score are ordered by their bytes as redis does.
+     */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, final int pageSize) {
+
+        if (offset == null && !indexComplete) {
+            // 旧版本节点写入的事务不在索引中, 恢复开始时按间隔补齐
+            rebuildIndexIfDue();
+        } else {
+            rebuildIndexIfNecessary();
+        }
+
+        final byte[] indexKey = RedisHelper.getIndexKey(keyPrefix);
+        final byte[] max = ("(" + date.getTime()).getBytes();
+
+        final long lastScore = offset == null ? 0 : Long.parseLong(offset.substring(0, offset.indexOf(':')));
+        final byte[] lastMember = offset == null ? null : offset.substring(offset.indexOf(':') + 1).getBytes();
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        Tuple last = null;
+        boolean exhausted;
+
+        try {
+            int skip = 0;
+
+            while (true) {
+
+                final int from = skip;
+
+                Set<Tuple> tuples = RedisHelper.execute(jedisPool, new JedisCallback<Set<Tuple>>() {
+                    @Override
+                    public Set<Tuple> doInJedis(Jedis jedis) {
+                        return jedis.zrangeByScoreWithScores(indexKey,
+                                lastMember == null ? "-inf".getBytes() : String.valueOf(lastScore).getBytes(), max, from, pageSize);
+                    }
+                });
+
+                for (Tuple tuple : tuples) {
+                    last = tuple;
+
+                    if (lastMember != null && (long) tuple.getScore() == lastScore && compare(tuple.getBinaryElement(), lastMember) <= 0) {
+                        // already returned with the previous page
+                        continue;
                     }
-                    List<Object> result = pipeline.syncAndReturnAll();
+                    keys.add(tuple.getBinaryElement());
+                }
+
+                exhausted = tuples.size() < pageSize;
+
+                if (!keys.isEmpty() || exhausted) {
+                    break;
+                }
+
+                // a whole page of entries sharing the last score were returned before, look past them
+                skip += pageSize;
+            }
+
+            String nextOffset = exhausted ? null : (long) last.getScore() + ":" + new String(last.getBinaryElement());
 
-                    List<Transaction> list = new ArrayList<Transaction>();
-                    for (Object data : result) {
+            return new Page<Transaction>(findByRedisKeys(keys), nextOffset);
 
-                        if (data != null && ((Map<byte[], byte[]>) data).size() > 0) {
+        } catch (TransactionIOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /**
+     * Adds every transaction stored under the key prefix to the time index. Transactions written before the index
+     * existed, or by nodes not maintaining it, are found by an incremental SCAN, so the server is never blocked
+     * the way KEYS does. An entry is only ever moved to a later time.
+     */
+    public void rebuildIndex() {
+
+        try {
+            RedisHelper.execute(jedisPool, new JedisCallback<Void>() {
+                @Override
+                public Void doInJedis(Jedis jedis) {
+
+                    byte[] indexKey = RedisHelper.getIndexKey(keyPrefix);
+                    ScanParams params = new ScanParams().match((keyPrefix + "*").getBytes()).count(fetchPageSize);
+                    byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
 
-                            list.add(ExpandTransactionSerializer.deserialize(serializer, (Map<byte[], byte[]>) data));
+                    do {
+                        ScanResult<byte[]> scanResult = jedis.scan(cursor, params);
+
+                        List<byte[]> keys = scanResult.getResult();
+
+                        Pipeline pipeline = jedis.pipelined();
+                        for (byte[] key : keys) {
+                            pipeline.hget(key, "LAST_UPDATE_TIME".getBytes());
+                        }
+                        List<Object> lastUpdateTimes = pipeline.syncAndReturnAll();
+
+                        pipeline = jedis.pipelined();
+                        for (int i = 0; i < keys.size(); i++) {
+                            byte[] lastUpdateTime = (byte[]) lastUpdateTimes.get(i);
+                            if (lastUpdateTime != null) {
+                                // only raises the score, a node updating the transaction meanwhile indexed a later time
+                                // pipelines only take string scripts, the keys are built from strings
+                                pipeline.eval(INDEX_IF_LATER_SCRIPT, Arrays.asList(new String(indexKey), new String(keys.get(i))),
+                                        Arrays.asList(String.valueOf(ExpandTransactionSerializer.parseDate(lastUpdateTime).getTime())));
+                            }
                         }
+                        pipeline.sync();
 
-                    }
+                        cursor = scanResult.getCursorAsBytes();
+                    } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
 
-                    return list;
+                    return null;
                 }
             });
-
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
     }
+
+    private void rebuildIndexIfDue() {
+
+        if (System.currentTimeMillis() - lastIndexRebuildTime < indexRebuildInterval) {
+            return;
+        }
+
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastIndexRebuildTime >= indexRebuildInterval) {
+                rebuildIndex();
+                indexChecked = true;
+                lastIndexRebuildTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void rebuildIndexIfNecessary() {
+
+        if (!indexChecked) {
+            synchronized (this) {
+                if (!indexChecked) {
+                    Boolean exists = RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
+                        @Override
+                        public Boolean doInJedis(Jedis jedis) {
+                            return jedis.exists(RedisHelper.getIndexKey(keyPrefix));
+                        }
+                    });
+
+                    if (!exists) {
+                        logger.info("time index not found, rebuilding it for key prefix " + keyPrefix);
+                        rebuildIndex();
+                    }
+                    indexChecked = true;
+                }
+            }
+        }
+    }
+
+    private List<Transaction> findByRedisKeys(final Collection<byte[]> keys) {
+
+        if (keys.isEmpty()) {
+            return new ArrayList<Transaction>();
+        }
+
+        return RedisHelper.execute(jedisPool, new JedisCallback<List<Transaction>>() {
+            @Override
+            public List<Transaction> doInJedis(Jedis jedis) {
+
+                Pipeline pipeline = jedis.pipelined();
+
+                boolean participantLogEnabled = isParticipantLogEnabled();
+
+                for (final byte[] key : keys) {
+                    pipeline.hgetAll(key);
+                    if (participantLogEnabled) {
+                        pipeline.lrange(RedisHelper.getParticipantKey(key), 0, -1);
+                    }
+                }
+                List<Object> result = pipeline.syncAndReturnAll();
+
+                int step = participantLogEnabled ? 2 : 1;
+
+                List<Transaction> list = new ArrayList<Transaction>();
+                List<byte[]> staleKeys = new ArrayList<byte[]>();
+
+                Iterator<byte[]> iterator = keys.iterator();
+
+                for (int i = 0; i < result.size(); i += step) {
+
+                    Object data = result.get(i);
+                    byte[] key = iterator.next();
+
+                    if (data != null && ((Map<byte[], byte[]>) data).size() > 0) {
+
+                        list.add(deserialize((Map<byte[], byte[]>) data, participantLogEnabled ? (List<byte[]>) result.get(i + 1) : null));
+                    } else {
+                        staleKeys.add(key);
+                    }
+                }
+
+                if (!staleKeys.isEmpty()) {
+                    // deleted without going through this repository
+                    jedis.zrem(RedisHelper.getIndexKey(keyPrefix), staleKeys.toArray(new byte[staleKeys.size()][]));
+                }
+
+                return list;
+            }
+        });
+    }
+
+    private byte[] getRedisKey(Xid xid) {
+        return RedisHelper.getRedisKey(keyPrefix, keyFormat.encode(xid));
+    }
+
+    private static int compare(byte[] left, byte[] right) {
+
+        for (int i = 0; i < Math.min(left.length, right.length); i++) {
+            int result = (left[i] & 0xff) - (right[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return left.length - right.length;
+    }
+
+    private static byte[] indexScore(Transaction transaction) {
+        return String.valueOf(transaction.getLastUpdateTime().getTime()).getBytes();
+    }
+
+    private Transaction deserialize(Map<byte[], byte[]> content, List<byte[]> appendedParticipants) {
+
+        Transaction transaction = ExpandTransactionSerializer.deserialize(serializer, content);
+
+        if (appendedParticipants != null && !appendedParticipants.isEmpty()) {
+
+            List<Participant> participants = new ArrayList<Participant>();
+
+            for (byte[] participant : appendedParticipants) {
+                participants.add((Participant) serializer.deserialize(participant));
+            }
+
+            mergeParticipants(transaction, participants);
+        }
+
+        return transaction;
+    }
 }
@@ -0,0 +1,627 @@
+package org.mengyun.tcctransaction.repository;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.LogSegment;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A local repository keeping transactions in memory-mapped, segmented, append-only log files under rootPath.
+ * <p/>
+ * Every create/update appends the whole transaction as a new record and delete appends a tombstone. An in-memory
+ * index maps each xid to its latest record and is rebuilt at startup by scanning the segments in order.
+ * Concurrent writers share fsyncs: a writer returns once a force covering its record completed, and a force started
+ * while others are still appending covers all of them.
+ * <p/>
+ * A background thread compacts the segments whose live records fell under compactionThreshold of their size:
+ * live records and still needed tombstones are copied to the active segment and the old file is removed.
+ * <p/>
+ * Like FileSystemTransactionRepository, this repository is suitable for single node, not for cluster nodes.
+ */
+public class SegmentedLogTransactionRepository extends CachableTransactionRepository {
+
+    static final Logger logger = Logger.getLogger(SegmentedLogTransactionRepository.class.getSimpleName());
+
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    private static final byte PUT = 1;
+
+    private static final byte TOMBSTONE = 2;
+
+    private String rootPath = "/tcc";
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    private long compactionInterval = 60 * 1000L;
+
+    private double compactionThreshold = 0.5;
+
+    private ObjectSerializer serializer = new JdkSerializationSerializer();
+
+    private final ConcurrentMap<Xid, Entry> index = new ConcurrentHashMap<Xid, Entry>();
+
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+
+    private final Object writeLock = new Object();
+
+    private final Set<LogSegment> dirtySegments = new LinkedHashSet<LogSegment>();
+
+    private volatile LogSegment activeSegment;
+
+    private long writeSequence;
+
+    private final Object syncLock = new Object();
+
+    private long durableSequence;
+
+    private boolean syncing;
+
+    private volatile boolean initialized;
+
+    private volatile Thread compactor;
+
+    public void setRootPath(String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * @param segmentSize bytes mapped per segment file, a transaction record must fit in one segment
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param compactionInterval milliseconds between two compaction runs, 0 or less disables background compaction
+     */
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * @param compactionThreshold a sealed segment is compacted once its live bytes fall to this ratio of its written bytes
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+
+        initializeIfNecessary();
+
+        long sequence;
+
+        synchronized (writeLock) {
+            if (index.containsKey(transaction.getTransactionXid())) {
+                return 0;
+            }
+            sequence = put(transaction);
+        }
+
+        sync(sequence);
+        return 1;
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+
+        initializeIfNecessary();
+
+        long sequence;
+
+        synchronized (writeLock) {
+
+            Entry entry = index.get(transaction.getTransactionXid());
+
+            if (entry == null || entry.version != transaction.getVersion()) {
+                return 0;
+            }
+
+            Date lastUpdateTime = transaction.getLastUpdateTime();
+            long currentVersion = transaction.getVersion();
+
+            transaction.updateVersion();
+            transaction.updateTime();
+
+            try {
+                sequence = put(transaction);
+            } catch (RuntimeException e) {
+                transaction.setLastUpdateTime(lastUpdateTime);
+                transaction.setVersion(currentVersion);
+                throw e;
+            }
+        }
+
+        sync(sequence);
+        return 1;
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+
+        initializeIfNecessary();
+
+        long sequence;
+
+        synchronized (writeLock) {
+
+            Xid xid = transaction.getXid();
+            Entry entry = index.remove(xid);
+
+            if (entry == null) {
+                return 0;
+            }
+
+            entry.segment.addLiveBytes(-entry.size);
+            append(encode(TOMBSTONE, xid, entry.version, System.currentTimeMillis(), new byte[0]));
+            sequence = writeSequence;
+        }
+
+        sync(sequence);
+        return 1;
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+
+        initializeIfNecessary();
+
+        Entry entry = index.get(xid);
+
+        if (entry == null) {
+            return null;
+        }
+
+        return read(entry);
+    }
+
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
+
+        initializeIfNecessary();
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (Entry entry : index.values()) {
+            if (entry.lastUpdateTime < date.getTime()) {
+                transactions.add(read(entry));
+            }
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Pages over the index entries older than the date in xid order, the offset being the last xid returned.
+     * Entries are filtered on the indexed last update time, only the records of the page are read.
+     */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        initializeIfNecessary();
+
+        TreeMap<String, Entry> candidates = new TreeMap<String, Entry>();
+
+        for (Map.Entry<Xid, Entry> entry : index.entrySet()) {
+            if (entry.getValue().lastUpdateTime < date.getTime()) {
+                candidates.put(entry.getKey().toString(), entry.getValue());
+            }
+        }
+
+        SortedMap<String, Entry> remaining = offset == null ? candidates : candidates.tailMap(offset, false);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        String last = null;
+
+        for (Map.Entry<String, Entry> entry : remaining.entrySet()) {
+            if (transactions.size() == pageSize) {
+                return new Page<Transaction>(transactions, last);
+            }
+            transactions.add(read(entry.getValue()));
+            last = entry.getKey();
+        }
+
+        return new Page<Transaction>(transactions, null);
+    }
+
+    /**
+     * Compacts the sealed segments whose live bytes fell under the threshold, oldest first.
+     */
+    public void compact() {
+
+        initializeIfNecessary();
+
+        for (LogSegment segment : new ArrayList<LogSegment>(segments.values())) {
+
+            if (segment == activeSegment) {
+                break;
+            }
+
+            if (segment.getLiveBytes() <= segment.getWritePosition() * compactionThreshold) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * Stops background compaction and forces the pending writes.
+     */
+    public void close() {
+
+        Thread thread = compactor;
+        compactor = null;
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+
+        if (initialized) {
+            long sequence;
+            synchronized (writeLock) {
+                sequence = writeSequence;
+            }
+            sync(sequence);
+        }
+    }
+
+    private void compact(final LogSegment segment) {
+
+        final boolean oldest = segments.firstKey() == segment.getId();
+
+        segment.scan(new LogSegment.RecordVisitor() {
+            @Override
+            public void visit(int offset, byte[] body) {
+
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte type = buffer.get();
+                long version = buffer.getLong();
+                long lastUpdateTime = buffer.getLong();
+                Xid xid = readXid(buffer);
+
+                synchronized (writeLock) {
+                    if (type == PUT) {
+                        Entry entry = index.get(xid);
+
+                        if (entry != null && entry.segment == segment && entry.offset == offset) {
+                            index.put(xid, append(xid, body, version, lastUpdateTime));
+                            segment.addLiveBytes(-entry.size);
+                        }
+                    } else if (!oldest && !index.containsKey(xid)) {
+                        // older segments may still hold records of this xid, keep shadowing them
+                        append(body);
+                    }
+                }
+            }
+        });
+
+        long sequence;
+        synchronized (writeLock) {
+            sequence = writeSequence;
+        }
+        sync(sequence);
+
+        segments.remove(segment.getId());
+        segment.delete();
+
+        logger.info(String.format("compacted log segment %d", segment.getId()));
+    }
+
+    private long put(Transaction transaction) {
+
+        Xid xid = transaction.getXid();
+
+        byte[] body = encode(PUT, xid, transaction.getVersion(), transaction.getLastUpdateTime().getTime(),
+                TransactionSerializer.serialize(serializer, transaction, true));
+
+        Entry entry = append(xid, body, transaction.getVersion(), transaction.getLastUpdateTime().getTime());
+
+        Entry previous = index.put(xid, entry);
+
+        if (previous != null) {
+            previous.segment.addLiveBytes(-previous.size);
+        }
+
+        return writeSequence;
+    }
+
+    private Entry append(Xid xid, byte[] body, long version, long lastUpdateTime) {
+
+        int offset = append(body);
+        LogSegment segment = activeSegment;
+
+        int size = LogSegment.HEADER_SIZE + body.length;
+        segment.addLiveBytes(size);
+
+        return new Entry(segment, offset, size, version, lastUpdateTime);
+    }
+
+    private int append(byte[] body) {
+
+        int offset = activeSegment.append(body);
+
+        if (offset < 0) {
+            roll();
+            offset = activeSegment.append(body);
+
+            if (offset < 0) {
+                throw new TransactionIOException(String.format("record of %d bytes does not fit in a segment of %d bytes", body.length, segmentSize));
+            }
+        }
+
+        dirtySegments.add(activeSegment);
+        writeSequence++;
+
+        return offset;
+    }
+
+    private void roll() {
+
+        long id = activeSegment.getId() + 1;
+
+        LogSegment segment = new LogSegment(new File(rootPath, segmentFileName(id)), id, segmentSize);
+        segments.put(id, segment);
+
+        activeSegment = segment;
+    }
+
+    /**
+     * Waits until a force covering the given write sequence completed. The first waiter forces everything appended
+     * so far on behalf of the others, writers arriving meanwhile are covered by the next force.
+     */
+    private void sync(long sequence) {
+
+        while (true) {
+
+            boolean interrupted = false;
+
+            synchronized (syncLock) {
+                while (durableSequence < sequence && syncing) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (durableSequence >= sequence) {
+                    return;
+                }
+
+                syncing = true;
+            }
+
+            long target;
+            List<LogSegment> toForce;
+
+            synchronized (writeLock) {
+                target = writeSequence;
+                toForce = new ArrayList<LogSegment>(dirtySegments);
+                dirtySegments.clear();
+            }
+
+            boolean forced = false;
+
+            try {
+                for (LogSegment segment : toForce) {
+                    segment.force();
+                }
+                forced = true;
+            } finally {
+                if (!forced) {
+                    synchronized (writeLock) {
+                        dirtySegments.addAll(toForce);
+                    }
+                }
+
+                synchronized (syncLock) {
+                    if (forced && target > durableSequence) {
+                        durableSequence = target;
+                    }
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private Transaction read(Entry entry) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(entry.segment.read(entry.offset));
+        buffer.position(1 + 8 + 8);
+        readXid(buffer);
+
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+
+        return TransactionSerializer.deserialize(serializer, content);
+    }
+
+    private void initializeIfNecessary() {
+
+        if (!initialized) {
+            synchronized (this) {
+                if (!initialized) {
+                    initialize();
+                    initialized = true;
+                }
+            }
+        }
+    }
+
+    private void initialize() {
+
+        File root = new File(rootPath);
+
+        if (!root.exists() && !root.mkdirs()) {
+            throw new TransactionIOException("cannot create root path, the path to create is:" + rootPath);
+        } else if (!root.isDirectory()) {
+            throw new TransactionIOException("rootPath is not directory");
+        }
+
+        String[] fileNames = root.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+
+        // zero padded ids, name order is log order
+        Arrays.sort(fileNames);
+
+        for (String fileName : fileNames) {
+
+            File file = new File(root, fileName);
+            long id = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+
+            final LogSegment segment = new LogSegment(file, id, (int) Math.max(segmentSize, file.length()));
+
+            segment.recover(new LogSegment.RecordVisitor() {
+                @Override
+                public void visit(int offset, byte[] body) {
+
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    byte type = buffer.get();
+                    long version = buffer.getLong();
+                    long lastUpdateTime = buffer.getLong();
+                    Xid xid = readXid(buffer);
+
+                    Entry previous;
+
+                    if (type == PUT) {
+                        int size = LogSegment.HEADER_SIZE + body.length;
+                        segment.addLiveBytes(size);
+                        previous = index.put(xid, new Entry(segment, offset, size, version, lastUpdateTime));
+                    } else {
+                        previous = index.remove(xid);
+                    }
+
+                    if (previous != null) {
+                        previous.segment.addLiveBytes(-previous.size);
+                    }
+                }
+            });
+
+            segments.put(id, segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(0L, new LogSegment(new File(root, segmentFileName(0)), 0, segmentSize));
+        }
+
+        activeSegment = segments.lastEntry().getValue();
+
+        logger.info(String.format("recovered %d transactions from %d log segments under %s", index.size(), segments.size(), rootPath));
+
+        if (compactionInterval > 0) {
+            startCompactor();
+        }
+    }
+
+    private void startCompactor() {
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (compactor == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(compactionInterval);
+                        compact();
+                    } catch (InterruptedException e) {
+                        // closed, or a spurious wake up checked by the loop condition
+                    } catch (Throwable e) {
+                        logger.error("log compaction failed", e);
+                    }
+                }
+            }
+        }, "tcc-log-compaction");
+
+        thread.setDaemon(true);
+        compactor = thread;
+        thread.start();
+    }
+
+    private static String segmentFileName(long id) {
+        return String.format("%020d%s", id, SEGMENT_FILE_SUFFIX);
+    }
+
+    private static byte[] encode(byte type, Xid xid, long version, long lastUpdateTime, byte[] content) {
+
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8 + 2 + globalTransactionId.length + 2 + branchQualifier.length + content.length);
+
+        buffer.put(type);
+        buffer.putLong(version);
+        buffer.putLong(lastUpdateTime);
+        buffer.putShort((short) globalTransactionId.length);
+        buffer.put(globalTransactionId);
+        buffer.putShort((short) branchQualifier.length);
+        buffer.put(branchQualifier);
+        buffer.put(content);
+
+        return buffer.array();
+    }
+
+    private static Xid readXid(ByteBuffer buffer) {
+
+        byte[] globalTransactionId = new byte[buffer.getShort()];
+        buffer.get(globalTransactionId);
+
+        byte[] branchQualifier = new byte[buffer.getShort()];
+        buffer.get(branchQualifier);
+
+        return new TransactionXid(globalTransactionId, branchQualifier);
+    }
+
+    private static class Entry {
+
+        private final LogSegment segment;
+
+        private final int offset;
+
+        private final int size;
+
+        private final long version;
+
+        private final long lastUpdateTime;
+
+        Entry(LogSegment segment, int offset, int size, long version, long lastUpdateTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.version = version;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+}
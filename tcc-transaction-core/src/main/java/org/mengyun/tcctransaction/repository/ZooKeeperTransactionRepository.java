@@ -2,19 +2,26 @@ package org.mengyun.tcctransaction.repository;
 
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
+import org.mengyun.tcctransaction.Page;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
 import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 
 import javax.transaction.xa.Xid;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Created by changming.xie on 2/18/16.
+ * <p/>
+ * Scans and bulk lookups issue their reads asynchronously, pipelined over the session, and wait for the callbacks
+ * of a whole window at once instead of one round trip per znode.
  */
 public class ZooKeeperTransactionRepository extends CachableTransactionRepository {
 
@@ -28,6 +35,14 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
 
     private ObjectSerializer serializer = new JdkSerializationSerializer();
 
+    private XidKeyFormat keyFormat = XidKeyFormat.LEGACY;
+
+    private int bucketCount = 0;
+
+    private int readWindowSize = 1000;
+
+    private boolean envelopeFormat = false;
+
     public ZooKeeperTransactionRepository() {
         super();
     }
@@ -36,6 +51,42 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
         this.serializer = serializer;
     }
 
+    /**
+     * @param keyFormat how the xid is written into the znode names, LEGACY by default
+     */
+    public void setKeyFormat(XidKeyFormat keyFormat) {
+        this.keyFormat = keyFormat;
+    }
+
+    /**
+     * @param bucketCount 0 to keep the transaction znodes right under the root path, as before, or the number of
+     *                    bucket znodes spreading them, so listing them takes several small getChildren calls instead
+     *                    of one returning the whole namespace. New transactions go to the buckets, those stored
+     *                    right under the root path before the switch are still found, updated and deleted there.
+     *                    Switching back to 0 requires the bucketed transactions to be finished first, the bucket
+     *                    znodes are skipped then.
+     */
+    public void setBucketCount(int bucketCount) {
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * @param envelopeFormat write the transaction znodes as envelopes, whose status updates reuse the serialized
+     *                       CONTENT, instead of the map format. Both are read, but nodes of versions before the
+     *                       envelope only read the latter: enable it once every node sharing the root path runs
+     *                       this version.
+     */
+    public void setEnvelopeFormat(boolean envelopeFormat) {
+        this.envelopeFormat = envelopeFormat;
+    }
+
+    /**
+     * @param readWindowSize asynchronous reads in flight at most during a scan or a bulk lookup
+     */
+    public void setReadWindowSize(int readWindowSize) {
+        this.readWindowSize = readWindowSize;
+    }
+
     public void setZkRootPath(String zkRootPath) {
         this.zkRootPath = zkRootPath;
     }
@@ -51,9 +102,20 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
     @Override
     protected int doCreate(Transaction transaction) {
 
+        String path = getTxidPath(transaction.getTransactionXid());
+        byte[] content = TransactionSerializer.serialize(serializer, transaction, envelopeFormat);
+
         try {
-            getZk().create(getTxidPath(transaction.getXid()),
-                    TransactionSerializer.serialize(serializer, transaction), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            try {
+                getZk().create(path, content, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NoNodeException e) {
+                if (bucketCount <= 0) {
+                    throw e;
+                }
+                // 桶节点按需创建
+                createIfAbsent(path.substring(0, path.lastIndexOf('/')));
+                getZk().create(path, content, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
             return 1;
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -67,7 +129,49 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
 
             transaction.updateTime();
             transaction.updateVersion();
-            Stat stat = getZk().setData(getTxidPath(transaction.getXid()), TransactionSerializer.serialize(serializer, transaction), (int) transaction.getVersion() - 2);
+            byte[] content = TransactionSerializer.serialize(serializer, transaction, envelopeFormat);
+            int expectedVersion = (int) transaction.getVersion() - 2;
+
+            try {
+                getZk().setData(getTxidPath(transaction.getTransactionXid()), content, expectedVersion);
+            } catch (KeeperException.NoNodeException e) {
+                if (bucketCount <= 0) {
+                    throw e;
+                }
+                getZk().setData(getFlatTxidPath(transaction.getTransactionXid()), content, expectedVersion);
+            }
+            return 1;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    @Override
+    protected int doUpdateStatus(Transaction transaction) {
+
+        if (!envelopeFormat) {
+            // nothing of the stored record can be reused by the map format
+            return doUpdate(transaction);
+        }
+
+        try {
+
+            transaction.updateTime();
+            transaction.updateVersion();
+            String path = getTxidPath(transaction.getTransactionXid());
+            byte[] content;
+
+            try {
+                content = getZk().getData(path, false, new Stat());
+            } catch (KeeperException.NoNodeException e) {
+                if (bucketCount <= 0) {
+                    throw e;
+                }
+                path = getFlatTxidPath(transaction.getTransactionXid());
+                content = getZk().getData(path, false, new Stat());
+            }
+
+            getZk().setData(path, TransactionSerializer.serializeStatus(serializer, content, transaction, true), (int) transaction.getVersion() - 2);
             return 1;
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -77,7 +181,14 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
     @Override
     protected int doDelete(Transaction transaction) {
         try {
-            getZk().delete(getTxidPath(transaction.getXid()), (int) transaction.getVersion() - 1);
+            try {
+                getZk().delete(getTxidPath(transaction.getTransactionXid()), (int) transaction.getVersion() - 1);
+            } catch (KeeperException.NoNodeException e) {
+                if (bucketCount <= 0) {
+                    throw e;
+                }
+                getZk().delete(getFlatTxidPath(transaction.getTransactionXid()), (int) transaction.getVersion() - 1);
+            }
             return 1;
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -94,13 +205,59 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
             Transaction transaction = TransactionSerializer.deserialize(serializer, content);
             return transaction;
         } catch (KeeperException.NoNodeException e) {
-
+            if (bucketCount > 0) {
+                return readTransactions(Collections.singletonList(getFlatTxidPath(xid)))[0];
+            }
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
         return null;
     }
 
+    @Override
+    protected List<Transaction> doFindByXids(List<Xid> xids) {
+
+        List<String> paths = new ArrayList<String>(xids.size());
+
+        for (Xid xid : xids) {
+            paths.add(getTxidPath(xid));
+        }
+
+        Transaction[] found = readTransactions(paths);
+
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
+        List<String> flatPaths = new ArrayList<String>();
+
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                transactions.add(found[i]);
+            } else if (bucketCount > 0) {
+                // stored before the switch to buckets
+                flatPaths.add(getFlatTxidPath(xids.get(i)));
+            }
+        }
+
+        addFound(transactions, readTransactions(flatPaths));
+
+        return transactions;
+    }
+
+    @Override
+    protected long doFindVersion(Xid xid) {
+
+        try {
+            Stat stat = getZk().exists(getTxidPath(xid), false);
+
+            if (stat == null && bucketCount > 0) {
+                stat = getZk().exists(getFlatTxidPath(xid), false);
+            }
+            // 节点版本从0开始, 事务版本从1开始
+            return stat != null ? stat.getVersion() + 1 : VERSION_NOT_FOUND;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
     @Override
     protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
 
@@ -117,51 +274,251 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
         return allUnmodifiedSince;
     }
 
-    protected List<Transaction> doFindAll() {
+    /**
+     * Pages over the transaction znodes in name order, the offset being the name of the last znode visited,
+     * relative to the root path. The znode names are listed once per page, only the znodes of the page are read.
+     */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        List<String> znodeNames = listTransactionNames();
+
+        Collections.sort(znodeNames);
+
+        int from = 0;
+
+        if (offset != null) {
+            int index = Collections.binarySearch(znodeNames, offset);
+            from = index >= 0 ? index + 1 : -(index + 1);
+        }
+
+        int to = Math.min(from + pageSize, znodeNames.size());
+
+        List<String> paths = new ArrayList<String>(to - from);
+
+        for (String znodeName : znodeNames.subList(from, to)) {
+            paths.add(getTxidPath(znodeName));
+        }
 
         List<Transaction> transactions = new ArrayList<Transaction>();
 
-        List<String> znodePaths = null;
+        // 列出后被删除的节点已被跳过
+        for (Transaction transaction : readTransactions(paths)) {
+            if (transaction != null && transaction.getLastUpdateTime().compareTo(date) < 0) {
+                transactions.add(transaction);
+            }
+        }
+
+        return new Page<Transaction>(transactions, to < znodeNames.size() ? znodeNames.get(to - 1) : null);
+    }
+
+    protected List<Transaction> doFindAll() {
+
+        List<String> paths = new ArrayList<String>();
+
+        for (String znodeName : listTransactionNames()) {
+            paths.add(getTxidPath(znodeName));
+        }
+
+        List<Transaction> transactions = new ArrayList<Transaction>(paths.size());
+        addFound(transactions, readTransactions(paths));
+        return transactions;
+    }
+
+    /**
+     * Closes the zookeeper session, the next operation opens a new one.
+     */
+    public void close() {
+
+        synchronized (this) {
+            if (zk != null) {
+                try {
+                    zk.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    zk = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the names of the transaction znodes relative to the root path, in no particular order, including
+     * in bucket mode those stored right under the root path before the switch
+     */
+    private List<String> listTransactionNames() {
+
+        List<String> znodeNames = new ArrayList<String>();
+
+        List<String> rootChildren;
         try {
-            znodePaths = getZk().getChildren(zkRootPath, false);
+            rootChildren = getZk().getChildren(zkRootPath, false);
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
 
-        for (String znodePath : znodePaths) {
+        for (String name : rootChildren) {
+            if (!isBucketName(name)) {
+                znodeNames.add(name);
+            }
+        }
+
+        if (bucketCount <= 0) {
+            return znodeNames;
+        }
 
-            byte[] content = null;
-            try {
-                Stat stat = new Stat();
-                content = getZk().getData(getTxidPath(znodePath), false, stat);
-                Transaction transaction =  TransactionSerializer.deserialize(serializer, content);
-                transactions.add(transaction);
-            } catch (Exception e) {
-                throw new TransactionIOException(e);
+        final List<String>[] children = new List[bucketCount];
+        final int[] resultCodes = new int[bucketCount];
+        final CountDownLatch latch = new CountDownLatch(bucketCount);
+
+        AsyncCallback.ChildrenCallback callback = new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> names) {
+                int index = (Integer) ctx;
+                resultCodes[index] = rc;
+                children[index] = names;
+                latch.countDown();
+            }
+        };
+
+        ZooKeeper zooKeeper = getZk();
+
+        for (int i = 0; i < bucketCount; i++) {
+            zooKeeper.getChildren(getTxidPath(String.valueOf(i)), false, callback, i);
+        }
+
+        await(latch);
+
+        for (int i = 0; i < bucketCount; i++) {
+
+            KeeperException.Code code = KeeperException.Code.get(resultCodes[i]);
+
+            if (code == KeeperException.Code.OK) {
+                for (String name : children[i]) {
+                    znodeNames.add(i + "/" + name);
+                }
+            } else if (code != KeeperException.Code.NONODE) {
+                throw new TransactionIOException(KeeperException.create(code, getTxidPath(String.valueOf(i))));
+            }
+        }
+
+        return znodeNames;
+    }
+
+    /**
+     * Reads the transaction znodes asynchronously, at most readWindowSize at a time.
+     *
+     * @return the transactions in the order of the paths, null for those not found
+     */
+    private Transaction[] readTransactions(List<String> paths) {
+
+        Transaction[] transactions = new Transaction[paths.size()];
+
+        ZooKeeper zooKeeper = getZk();
+
+        for (int from = 0; from < paths.size(); from += readWindowSize) {
+
+            int size = Math.min(readWindowSize, paths.size() - from);
+
+            final byte[][] contents = new byte[size][];
+            final int[] resultCodes = new int[size];
+            final CountDownLatch latch = new CountDownLatch(size);
+
+            AsyncCallback.DataCallback callback = new AsyncCallback.DataCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                    int index = (Integer) ctx;
+                    resultCodes[index] = rc;
+                    contents[index] = data;
+                    latch.countDown();
+                }
+            };
+
+            for (int i = 0; i < size; i++) {
+                zooKeeper.getData(paths.get(from + i), false, callback, i);
+            }
+
+            await(latch);
+
+            // 在调用线程反序列化, 不阻塞 zookeeper 的事件线程
+            for (int i = 0; i < size; i++) {
+
+                KeeperException.Code code = KeeperException.Code.get(resultCodes[i]);
+
+                if (code == KeeperException.Code.OK) {
+                    transactions[from + i] = TransactionSerializer.deserialize(serializer, contents[i]);
+                } else if (code != KeeperException.Code.NONODE) {
+                    throw new TransactionIOException(KeeperException.create(code, paths.get(from + i)));
+                }
             }
         }
 
         return transactions;
     }
 
+    private static void addFound(List<Transaction> transactions, Transaction[] found) {
+        for (Transaction transaction : found) {
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+    }
+
+    /**
+     * Bucket znodes are named by their number, transaction znode names always contain a ':'.
+     */
+    private static boolean isBucketName(String name) {
+
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return name.length() > 0;
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private void createIfAbsent(String path) throws KeeperException, InterruptedException {
+        try {
+            getZk().create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // created by another node meanwhile
+        }
+    }
+
     private ZooKeeper getZk() {
 
         if (zk == null) {
-            synchronized (ZooKeeperTransactionRepository.class) {
+            synchronized (this) {
                 if (zk == null) {
                     try {
-                        zk = new ZooKeeper(zkServers, zkTimeout, new Watcher() {
+                        ZooKeeper zooKeeper = new ZooKeeper(zkServers, zkTimeout, new Watcher() {
                             @Override
                             public void process(WatchedEvent watchedEvent) {
 
                             }
                         });
 
-                        Stat stat = zk.exists(zkRootPath, false);
+                        Stat stat = zooKeeper.exists(zkRootPath, false);
 
                         if (stat == null) {
-                            zk.create(zkRootPath, zkRootPath.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                            try {
+                                zooKeeper.create(zkRootPath, zkRootPath.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                            } catch (KeeperException.NodeExistsException e) {
+                                // created by another node meanwhile
+                            }
                         }
+
+                        zk = zooKeeper;
                     } catch (Exception e) {
                         throw new TransactionIOException(e);
                     }
@@ -172,12 +529,24 @@ public class ZooKeeperTransactionRepository extends CachableTransactionRepositor
     }
 
     private String getTxidPath(Xid xid) {
-        return String.format("%s/%s", zkRootPath, xid);
-    }
 
-    private String getTxidPath(String znodePath) {
-        return String.format("%s/%s", zkRootPath, znodePath);
+        if (bucketCount <= 0) {
+            return getFlatTxidPath(xid);
+        }
+
+        String key = keyFormat.encode(xid);
+
+        return zkRootPath + "/" + ((key.hashCode() & Integer.MAX_VALUE) % bucketCount) + "/" + key;
     }
 
+    /**
+     * @return the path of the transaction znode right under the root path, where it is stored without buckets
+     */
+    private String getFlatTxidPath(Xid xid) {
+        return zkRootPath + "/" + keyFormat.encode(xid);
+    }
 
+    private String getTxidPath(String znodeName) {
+        return zkRootPath + "/" + znodeName;
+    }
 }
@@ -0,0 +1,108 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.mengyun.tcctransaction.Transaction;
+
+import javax.transaction.xa.Xid;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A guava cache of the transactions in the form of V, evicting the least recently read ones beyond the maximum size,
+ * or beyond the maximum weight when set, and those not read within the expire duration.
+ * <p/>
+ * The cache is built on first use, the settings apply when changed before.
+ */
+public abstract class AbstractTransactionCache<V> implements TransactionCache {
+
+    private int maximumSize = 1000;
+
+    private long maximumWeight = 0;
+
+    private int expireDuration = 120;
+
+    private volatile Cache<Xid, V> cache;
+
+    /**
+     * @param maximumSize transactions kept at most, ignored when the maximum weight is set
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @param maximumWeight serialized bytes of the transactions kept at most, 0 to bound the number of transactions instead
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    public void setExpireDuration(int durationInSeconds) {
+        this.expireDuration = durationInSeconds;
+    }
+
+    @Override
+    public Transaction get(Xid xid) {
+        V value = getCache().getIfPresent(xid);
+        return value == null ? null : fromValue(value);
+    }
+
+    @Override
+    public void put(Transaction transaction) {
+        getCache().put(transaction.getTransactionXid(), toValue(transaction));
+    }
+
+    @Override
+    public void remove(Xid xid) {
+        getCache().invalidate(xid);
+    }
+
+    @Override
+    public TransactionCacheStats getStats() {
+        Cache<Xid, V> current = getCache();
+        CacheStats stats = current.stats();
+        return new TransactionCacheStats(stats.hitCount(), stats.missCount(), stats.evictionCount(), current.size());
+    }
+
+    protected abstract V toValue(Transaction transaction);
+
+    protected abstract Transaction fromValue(V value);
+
+    /**
+     * @return the serialized size of the value, only asked for when the maximum weight is set
+     */
+    protected abstract int weigh(V value);
+
+    private Cache<Xid, V> getCache() {
+
+        if (cache == null) {
+            synchronized (this) {
+                if (cache == null) {
+                    cache = buildCache();
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    private Cache<Xid, V> buildCache() {
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .expireAfterAccess(expireDuration, TimeUnit.SECONDS)
+                .recordStats();
+
+        if (maximumWeight > 0) {
+            return builder.maximumWeight(maximumWeight).weigher(new Weigher<Xid, V>() {
+                @Override
+                public int weigh(Xid key, V value) {
+                    return AbstractTransactionCache.this.weigh(value);
+                }
+            }).build();
+        }
+
+        return builder.maximumSize(maximumSize).build();
+    }
+}
@@ -0,0 +1,36 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+/**
+ * Keeps the transactions as they are, the default cache of the repositories. With a maximum weight set, each
+ * transaction is serialized once more when cached to be weighed.
+ */
+public class HeapTransactionCache extends AbstractTransactionCache<Transaction> {
+
+    private ObjectSerializer serializer = new JdkSerializationSerializer();
+
+    /**
+     * @param serializer weighs the transactions, use the serializer of the repository for weights matching the storage
+     */
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected Transaction toValue(Transaction transaction) {
+        return transaction;
+    }
+
+    @Override
+    protected Transaction fromValue(Transaction value) {
+        return value;
+    }
+
+    @Override
+    protected int weigh(Transaction value) {
+        return serializer.serialize(value).length;
+    }
+}
@@ -0,0 +1,22 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.mengyun.tcctransaction.api.TransactionXid;
+
+/**
+ * Carries the xids of the transactions changed by one node to the other nodes sharing the storage, which evict
+ * them from their caches. A node is not notified of its own changes.
+ * <p/>
+ * Delivery is best effort: a missed message leaves a stale entry behind until it expires, or until the version
+ * check of the repository catches it.
+ */
+public interface InvalidationChannel {
+
+    void publish(TransactionXid xid);
+
+    void subscribe(Listener listener);
+
+    interface Listener {
+
+        void onInvalidate(TransactionXid xid);
+    }
+}
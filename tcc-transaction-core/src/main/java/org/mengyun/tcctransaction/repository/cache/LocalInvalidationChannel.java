@@ -0,0 +1,53 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.mengyun.tcctransaction.api.TransactionXid;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process InvalidationChannel, for tests running several repositories as nodes in one JVM: each node gets
+ * its own channel by {@link #join()}, and the messages it publishes are delivered synchronously to the others.
+ */
+public class LocalInvalidationChannel implements InvalidationChannel {
+
+    private final List<LocalInvalidationChannel> nodes;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public LocalInvalidationChannel() {
+        this(new CopyOnWriteArrayList<LocalInvalidationChannel>());
+    }
+
+    private LocalInvalidationChannel(List<LocalInvalidationChannel> nodes) {
+        this.nodes = nodes;
+        nodes.add(this);
+    }
+
+    /**
+     * @return the channel of another node connected to this one
+     */
+    public LocalInvalidationChannel join() {
+        return new LocalInvalidationChannel(nodes);
+    }
+
+    @Override
+    public void publish(TransactionXid xid) {
+        for (LocalInvalidationChannel node : nodes) {
+            if (node != this) {
+                node.deliver(xid);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void deliver(TransactionXid xid) {
+        for (Listener listener : listeners) {
+            listener.onInvalidate(xid);
+        }
+    }
+}
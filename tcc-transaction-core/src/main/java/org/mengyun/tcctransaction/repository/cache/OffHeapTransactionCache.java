@@ -0,0 +1,60 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.serializer.BufferedObjectSerializer;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the transactions serialized in direct buffers, out of the heap and out of reach of the collector, and
+ * deserializes them when read. Every read returns a new copy of the transaction.
+ * <p/>
+ * The memory of an evicted transaction is released with its buffer, -XX:MaxDirectMemorySize must leave room above
+ * the maximum weight for buffers not collected yet.
+ */
+public class OffHeapTransactionCache extends AbstractTransactionCache<ByteBuffer> {
+
+    private ObjectSerializer serializer = new JdkSerializationSerializer();
+
+    /**
+     * @param serializer a BufferedObjectSerializer reads the buffers in place, other serializers from a heap copy
+     */
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected ByteBuffer toValue(Transaction transaction) {
+
+        byte[] bytes = serializer.serialize(transaction);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    protected Transaction fromValue(ByteBuffer value) {
+
+        // readers share the buffer, each reads through its own position
+        ByteBuffer buffer = value.duplicate();
+
+        if (serializer instanceof BufferedObjectSerializer) {
+            return (Transaction) ((BufferedObjectSerializer) serializer).deserialize(buffer);
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        return (Transaction) serializer.deserialize(bytes);
+    }
+
+    @Override
+    protected int weigh(ByteBuffer value) {
+        return value.capacity();
+    }
+}
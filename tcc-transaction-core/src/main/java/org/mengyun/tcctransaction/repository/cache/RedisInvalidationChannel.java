@@ -0,0 +1,189 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.JedisCallback;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An InvalidationChannel over redis pub/sub. Each message is the id of the publishing node and the hex key of the
+ * xid, separated by a space.
+ * <p/>
+ * The first subscription starts a daemon thread holding one connection of the pool subscribed to the channel,
+ * reconnecting after failures until {@link #close()}. Messages published while it is disconnected are lost.
+ */
+public class RedisInvalidationChannel implements InvalidationChannel {
+
+    static final Logger logger = Logger.getLogger(RedisInvalidationChannel.class.getSimpleName());
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private JedisPool jedisPool;
+
+    private String channel = "TCC:INVALIDATION";
+
+    private long reconnectInterval = 1000L;
+
+    private volatile boolean closed = false;
+
+    private volatile JedisPubSub subscriber;
+
+    private Thread subscriberThread;
+
+    public void setJedisPool(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    /**
+     * @param channel the redis channel shared by the nodes of one domain
+     */
+    public void setChannel(String channel) {
+        this.channel = channel;
+    }
+
+    public void setReconnectInterval(long reconnectInterval) {
+        this.reconnectInterval = reconnectInterval;
+    }
+
+    @Override
+    public void publish(TransactionXid xid) {
+
+        final String message = nodeId + " " + XidKeyFormat.HEX.encode(xid);
+
+        try {
+            RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
+                @Override
+                public Long doInJedis(Jedis jedis) {
+                    return jedis.publish(channel, message);
+                }
+            });
+        } catch (Exception e) {
+            // the transaction is stored already, the other nodes fall back to expiry or the version check
+            logger.warn("publish transaction invalidation failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void subscribe(Listener listener) {
+
+        listeners.add(listener);
+
+        if (subscriberThread == null) {
+            subscriberThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    listen();
+                }
+            }, "tcc-invalidation-subscriber");
+            subscriberThread.setDaemon(true);
+            subscriberThread.start();
+        }
+    }
+
+    public void close() {
+
+        closed = true;
+
+        JedisPubSub current = subscriber;
+
+        if (current != null && current.isSubscribed()) {
+            current.unsubscribe();
+        }
+    }
+
+    private void listen() {
+
+        while (!closed) {
+
+            Jedis jedis = null;
+
+            try {
+                jedis = jedisPool.getResource();
+                subscriber = new InvalidationSubscriber();
+
+                if (closed) {
+                    break;
+                }
+
+                jedis.subscribe(subscriber, channel);
+            } catch (Exception e) {
+                if (!closed) {
+                    logger.warn("transaction invalidation subscription lost, reconnecting", e);
+                }
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+
+            if (!closed) {
+                try {
+                    Thread.sleep(reconnectInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliver(String message) {
+
+        int separator = message.indexOf(' ');
+
+        if (separator < 0 || separator == nodeId.length() && message.startsWith(nodeId)) {
+            return;
+        }
+
+        TransactionXid xid;
+
+        try {
+            xid = XidKeyFormat.decodeHex(message.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            logger.warn("ignored malformed transaction invalidation: " + message);
+            return;
+        }
+
+        for (Listener listener : listeners) {
+            listener.onInvalidate(xid);
+        }
+    }
+
+    private class InvalidationSubscriber extends JedisPubSub {
+
+        @Override
+        public void onMessage(String channel, String message) {
+            deliver(message);
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+}
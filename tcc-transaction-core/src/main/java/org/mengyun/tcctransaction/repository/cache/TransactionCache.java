@@ -0,0 +1,23 @@
+package org.mengyun.tcctransaction.repository.cache;
+
+import org.mengyun.tcctransaction.Transaction;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * The cache of a CachableTransactionRepository, serving the transactions read by xid without a round trip
+ * to the storage.
+ */
+public interface TransactionCache {
+
+    /**
+     * @return the cached transaction, null if not cached
+     */
+    Transaction get(Xid xid);
+
+    void put(Transaction transaction);
+
+    void remove(Xid xid);
+
+    TransactionCacheStats getStats();
+}
@@ -10,15 +10,37 @@ import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 
 import java.text.ParseException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Created by changming.xie on 9/15/16.
+ * <p/>
+ * Dates are written in the "yyyy-MM-dd HH:mm:ss" format read by every version, or as epoch milliseconds once
+ * opted in. Both are parsed.
  */
 public class ExpandTransactionSerializer {
 
+    private static final String LEGACY_DATE_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
     public static Map<byte[], byte[]> serialize(ObjectSerializer serializer, Transaction transaction) {
+        return serialize(serializer, transaction, false);
+    }
+
+    /**
+     * @param contentViewEnabled also store the transaction rendered as JSON in CONTENT_VIEW, otherwise the
+     *                           management console renders it from CONTENT when displayed
+     */
+    public static Map<byte[], byte[]> serialize(ObjectSerializer serializer, Transaction transaction, boolean contentViewEnabled) {
+        return serialize(serializer, transaction, contentViewEnabled, false);
+    }
+
+    /**
+     * @param epochMillisDates write the dates as epoch milliseconds, which nodes of versions before the format
+     *                         cannot parse
+     */
+    public static Map<byte[], byte[]> serialize(ObjectSerializer serializer, Transaction transaction, boolean contentViewEnabled, boolean epochMillisDates) {
 
         Map<byte[], byte[]> map = new HashMap<byte[], byte[]>();
 
@@ -27,11 +49,47 @@ public class ExpandTransactionSerializer {
         map.put("STATUS".getBytes(), ByteUtils.intToBytes(transaction.getStatus().getId()));
         map.put("TRANSACTION_TYPE".getBytes(), ByteUtils.intToBytes(transaction.getTransactionType().getId()));
         map.put("RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(transaction.getRetriedCount()));
-        map.put("CREATE_TIME".getBytes(), DateFormatUtils.format(transaction.getCreateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
-        map.put("LAST_UPDATE_TIME".getBytes(), DateFormatUtils.format(transaction.getLastUpdateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
+        map.put("CREATE_TIME".getBytes(), formatDate(transaction.getCreateTime(), epochMillisDates));
+        map.put("LAST_UPDATE_TIME".getBytes(), formatDate(transaction.getLastUpdateTime(), epochMillisDates));
         map.put("VERSION".getBytes(), ByteUtils.longToBytes(transaction.getVersion()));
         map.put("CONTENT".getBytes(), serializer.serialize(transaction));
-        map.put("CONTENT_VIEW".getBytes(), JSON.toJSONString(transaction).getBytes());
+        if (contentViewEnabled) {
+            map.put("CONTENT_VIEW".getBytes(), JSON.toJSONString(transaction).getBytes());
+        }
+        return map;
+    }
+
+    /**
+     * The fields changed by a status-only update, CONTENT is kept as stored.
+     */
+    public static Map<byte[], byte[]> serializeStatus(Transaction transaction) {
+        return serializeStatus(transaction, false);
+    }
+
+    public static Map<byte[], byte[]> serializeStatus(Transaction transaction, boolean epochMillisDates) {
+
+        Map<byte[], byte[]> map = new HashMap<byte[], byte[]>();
+
+        map.put("STATUS".getBytes(), ByteUtils.intToBytes(transaction.getStatus().getId()));
+        map.put("RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(transaction.getRetriedCount()));
+        map.put("LAST_UPDATE_TIME".getBytes(), formatDate(transaction.getLastUpdateTime(), epochMillisDates));
+        map.put("VERSION".getBytes(), ByteUtils.longToBytes(transaction.getVersion()));
+        return map;
+    }
+
+    /**
+     * The fields changed when a participant is appended to the participant log.
+     */
+    public static Map<byte[], byte[]> serializeTouch(Transaction transaction) {
+        return serializeTouch(transaction, false);
+    }
+
+    public static Map<byte[], byte[]> serializeTouch(Transaction transaction, boolean epochMillisDates) {
+
+        Map<byte[], byte[]> map = new HashMap<byte[], byte[]>();
+
+        map.put("LAST_UPDATE_TIME".getBytes(), formatDate(transaction.getLastUpdateTime(), epochMillisDates));
+        map.put("VERSION".getBytes(), ByteUtils.longToBytes(transaction.getVersion()));
         return map;
     }
 
@@ -48,13 +106,44 @@ public class ExpandTransactionSerializer {
         transaction.changeStatus(TransactionStatus.valueOf(ByteUtils.bytesToInt(propertyMap.get("STATUS"))));
         transaction.resetRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
 
+        transaction.setLastUpdateTime(parseDate(propertyMap.get("LAST_UPDATE_TIME")));
+
+        transaction.setVersion(ByteUtils.bytesToLong(propertyMap.get("VERSION")));
+        return transaction;
+    }
+
+    /**
+     * Renders a stored CONTENT as JSON, for records stored without CONTENT_VIEW.
+     */
+    public static String renderContentView(ObjectSerializer serializer, byte[] content) {
+        return JSON.toJSONString(serializer.deserialize(content));
+    }
+
+    public static byte[] formatDate(Date date) {
+        return formatDate(date, false);
+    }
+
+    public static byte[] formatDate(Date date, boolean epochMillis) {
+
+        if (epochMillis) {
+            return String.valueOf(date.getTime()).getBytes();
+        }
+
+        return DateFormatUtils.format(date, LEGACY_DATE_PATTERN).getBytes();
+    }
+
+    public static Date parseDate(byte[] value) {
+
+        String text = new String(value);
+
+        if (text.indexOf('-') < 0) {
+            return new Date(Long.parseLong(text));
+        }
+
         try {
-            transaction.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
+            return DateUtils.parseDate(text, LEGACY_DATE_PATTERN);
         } catch (ParseException e) {
             throw new SystemException(e);
         }
-
-        transaction.setVersion(ByteUtils.bytesToLong(propertyMap.get("VERSION")));
-        return transaction;
     }
 }
@@ -0,0 +1,435 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+
+import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers statements submitted concurrently by many threads and writes them in JDBC batches,
+ * one database commit per flush. A flush happens every {@code flushInterval} milliseconds or as soon as
+ * {@code maxBatchSize} statements are pending, whichever comes first.
+ * <p/>
+ * Callers block in {@link Operation#await()} until their own statement is committed, so nothing is
+ * acknowledged before it is durable. Statements still queued when the committer is closed, or when its thread dies,
+ * are failed rather than left waiting.
+ * <p/>
+ * Statements are written on a connection borrowed directly from the data source, they never join
+ * a transaction of the calling thread. A {@link MultiStatementOperation} runs its statements one after the other
+ * on the connection of the flush, so they are committed, or rolled back, together.
+ */
+public class JdbcGroupCommitter {
+
+    static final Logger logger = Logger.getLogger(JdbcGroupCommitter.class.getSimpleName());
+
+    private final DataSource dataSource;
+
+    private final long flushInterval;
+
+    private final int maxBatchSize;
+
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<Operation>();
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    /**
+     * Set once the driver answered a batch of updates or deletes without per-row counts, e.g. Oracle before 12c or
+     * MySQL rewriting batches. Those statements are then executed one by one within the flush, an optimistic lock
+     * miss being only visible in a real update count.
+     */
+    private volatile boolean rowCountsUnreported = false;
+
+    public JdbcGroupCommitter(DataSource dataSource, long flushInterval, int maxBatchSize) {
+        this.dataSource = dataSource;
+        this.flushInterval = flushInterval;
+        this.maxBatchSize = maxBatchSize;
+
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "tcc-jdbc-group-commit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Submits the operation and waits until it has been committed.
+     *
+     * @return the update count of the statement
+     */
+    public int execute(Operation operation) {
+
+        if (!running) {
+            throw new TransactionIOException("group committer is closed");
+        }
+
+        queue.add(operation);
+
+        // closed meanwhile, the flusher may have drained the queue for the last time already
+        if (!running && queue.remove(operation)) {
+            throw new TransactionIOException("group committer is closed");
+        }
+
+        return operation.await();
+    }
+
+    /**
+     * Stops accepting statements and waits until the pending ones are written.
+     */
+    public void close() {
+        running = false;
+        flusher.interrupt();
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+
+        LinkedList<Operation> pending = new LinkedList<Operation>();
+
+        try {
+            doFlushLoop(pending);
+        } finally {
+            running = false;
+            queue.drainTo(pending);
+
+            if (!pending.isEmpty()) {
+                logger.error(String.format("group commit stopped with %d statements pending, failing them", pending.size()));
+            }
+
+            for (Operation operation : pending) {
+                operation.fail(new TransactionIOException("group committer is closed"));
+            }
+        }
+    }
+
+    private void doFlushLoop(LinkedList<Operation> pending) {
+
+        while (running || !queue.isEmpty() || !pending.isEmpty()) {
+            try {
+                if (pending.isEmpty()) {
+                    Operation first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    pending.add(first);
+                }
+
+                long deadline = System.currentTimeMillis() + flushInterval;
+
+                while (pending.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Operation next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    pending.add(next);
+                }
+
+                flush(takeBatch(pending));
+
+            } catch (InterruptedException e) {
+                if (running) {
+                    continue;
+                }
+                queue.drainTo(pending);
+            } catch (Throwable e) {
+                logger.error("group commit flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Takes the operations to flush together. A record touched twice in the same flush would have its
+     * statements reordered by the grouping, so the second one and everything after it wait for the next flush.
+     */
+    private List<Operation> takeBatch(LinkedList<Operation> pending) {
+
+        List<Operation> batch = new ArrayList<Operation>();
+        Set<Object> keys = new HashSet<Object>();
+
+        Iterator<Operation> iterator = pending.iterator();
+
+        while (iterator.hasNext() && batch.size() < maxBatchSize) {
+            Operation operation = iterator.next();
+            if (!keys.add(operation.getKey())) {
+                break;
+            }
+            batch.add(operation);
+            iterator.remove();
+        }
+
+        return batch;
+    }
+
+    private void flush(List<Operation> batch) {
+
+        Map<String, List<Operation>> groups = new LinkedHashMap<String, List<Operation>>();
+        List<Operation> multiStatementOperations = new ArrayList<Operation>();
+
+        for (Operation operation : batch) {
+
+            if (operation.getSql() == null) {
+                multiStatementOperations.add(operation);
+                continue;
+            }
+
+            List<Operation> group = groups.get(operation.getSql());
+            if (group == null) {
+                group = new ArrayList<Operation>();
+                groups.put(operation.getSql(), group);
+            }
+            group.add(operation);
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+
+            Map<Operation, Integer> results = new LinkedHashMap<Operation, Integer>();
+
+            for (Map.Entry<String, List<Operation>> entry : groups.entrySet()) {
+                if (rowCountsUnreported && needsRowCount(entry.getKey())) {
+                    for (Operation operation : entry.getValue()) {
+                        results.put(operation, operation.execute(connection));
+                    }
+                } else {
+                    executeGroup(connection, entry.getKey(), entry.getValue(), results);
+                }
+            }
+
+            for (Operation operation : multiStatementOperations) {
+                results.put(operation, operation.execute(connection));
+            }
+
+            connection.commit();
+
+            for (Map.Entry<Operation, Integer> entry : results.entrySet()) {
+                entry.getKey().complete(entry.getValue());
+            }
+
+        } catch (RowCountUnreportedException e) {
+            rollbackQuietly(connection);
+            logger.warn("the driver does not report the row counts of batched updates, executing them one by one from now on");
+            executeOneByOne(batch);
+        } catch (Throwable e) {
+            rollbackQuietly(connection);
+            logger.warn(String.format("group commit of %d statements failed, executing them one by one", batch.size()), e);
+            executeOneByOne(batch);
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    private void executeGroup(Connection connection, String sql, List<Operation> group, Map<Operation, Integer> results) throws SQLException {
+
+        PreparedStatement stmt = null;
+
+        try {
+            stmt = connection.prepareStatement(sql);
+
+            for (Operation operation : group) {
+                operation.bind(stmt);
+                stmt.addBatch();
+            }
+
+            int[] counts = stmt.executeBatch();
+
+            for (int i = 0; i < group.size(); i++) {
+                // drivers rewriting batches (e.g. MySQL rewriteBatchedStatements) may not report per-row counts
+                int count = i < counts.length ? counts[i] : Statement.SUCCESS_NO_INFO;
+                if (count == Statement.EXECUTE_FAILED) {
+                    throw new BatchUpdateException(counts);
+                }
+                if (count == Statement.SUCCESS_NO_INFO) {
+                    if (needsRowCount(sql)) {
+                        rowCountsUnreported = true;
+                        throw new RowCountUnreportedException();
+                    }
+                    // an insert failing raises an error, success is enough
+                    count = 1;
+                }
+                results.put(group.get(i), count);
+            }
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * @return whether the statement may match no row, e.g. an optimistic lock update, so its count matters
+     */
+    private static boolean needsRowCount(String sql) {
+        return !sql.regionMatches(true, 0, "INSERT", 0, 6);
+    }
+
+    private void executeOneByOne(List<Operation> batch) {
+
+        for (Operation operation : batch) {
+
+            Connection connection = null;
+            PreparedStatement stmt = null;
+
+            try {
+                connection = dataSource.getConnection();
+                connection.setAutoCommit(false);
+                int result = operation.execute(connection);
+                connection.commit();
+                operation.complete(result);
+            } catch (Throwable e) {
+                rollbackQuietly(connection);
+                operation.fail(e);
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private void rollbackQuietly(Connection connection) {
+        try {
+            if (connection != null) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            logger.warn("rollback group commit failed", e);
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            if (connection != null && !connection.isClosed()) {
+                connection.setAutoCommit(true);
+                connection.close();
+            }
+        } catch (SQLException e) {
+            logger.warn("release group commit connection failed", e);
+        }
+    }
+
+    private static class RowCountUnreportedException extends SQLException {
+    }
+
+    /**
+     * A single statement waiting for group commit.
+     */
+    public static abstract class Operation {
+
+        private final String sql;
+
+        private final Object key;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile int result;
+
+        private volatile Throwable error;
+
+        public Operation(String sql, Object key) {
+            this.sql = sql;
+            this.key = key;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        protected abstract void bind(PreparedStatement stmt) throws SQLException;
+
+        /**
+         * Runs the operation alone on the connection, the caller commits.
+         *
+         * @return the update count of the operation
+         */
+        public int execute(Connection connection) throws SQLException {
+
+            PreparedStatement stmt = connection.prepareStatement(sql);
+
+            try {
+                bind(stmt);
+                return stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+        }
+
+        void complete(int result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        void fail(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * An interrupted caller stops waiting, its statement may still be committed by the flush in progress.
+         */
+        int await() {
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionIOException(e);
+            }
+
+            if (error != null) {
+                throw new TransactionIOException(error);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Several statements on one record that must be committed together, e.g. a header update and a participant
+     * insert. They are not batched with the statements of other operations, but run in the same flush.
+     */
+    public static abstract class MultiStatementOperation extends Operation {
+
+        public MultiStatementOperation(Object key) {
+            super(null, key);
+        }
+
+        @Override
+        protected void bind(PreparedStatement stmt) {
+        }
+
+        @Override
+        public abstract int execute(Connection connection) throws SQLException;
+    }
+}
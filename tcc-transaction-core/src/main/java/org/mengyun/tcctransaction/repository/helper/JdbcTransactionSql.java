@@ -0,0 +1,215 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.utils.StringUtils;
+
+/**
+ * The statements of a JdbcTransactionRepository, built once per (table name, participant table name, domain).
+ * <p/>
+ * Lookups by xid use a fixed number of shapes: the xid list is padded up to the next bucket size,
+ * so the same few SQL strings are prepared again and again and drivers with a server side
+ * prepared statement cache get hits instead of a new statement per list length.
+ */
+public class JdbcTransactionSql {
+
+    public static final int MAX_FIND_BATCH_SIZE = 64;
+
+    private static final String SELECT_COLUMNS = "SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION";
+
+    private final String tableName;
+
+    private final boolean domainEnabled;
+
+    private final String insertSql;
+
+    private final String updateSql;
+
+    private final String updateStatusSql;
+
+    private final String deleteSql;
+
+    private final String findVersionSql;
+
+    private final String findAllUnmodifiedSinceSql;
+
+    private final String findFirstPageSql;
+
+    private final String findNextPageSql;
+
+    private final String[] findSqls;
+
+    private final String participantTableName;
+
+    private final String touchSql;
+
+    private final String insertParticipantSql;
+
+    private final String deleteParticipantsSql;
+
+    private final String[] findParticipantsSqls;
+
+    public JdbcTransactionSql(String tableName, String participantTableName, String domain) {
+
+        this.tableName = tableName;
+        this.participantTableName = participantTableName;
+        this.domainEnabled = StringUtils.isNotEmpty(domain);
+
+        this.insertSql = "INSERT INTO " + tableName +
+                "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION" +
+                (domainEnabled ? ",DOMAIN ) VALUES (?,?,?,?,?,?,?,?,?,?)" : ") VALUES (?,?,?,?,?,?,?,?,?)");
+
+        this.updateSql = "UPDATE " + tableName + " SET " +
+                "CONTENT = ?,STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?" +
+                domainCondition();
+
+        this.updateStatusSql = "UPDATE " + tableName + " SET " +
+                "STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?" +
+                domainCondition();
+
+        this.deleteSql = "DELETE FROM " + tableName +
+                " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?" +
+                domainCondition();
+
+        this.findVersionSql = "SELECT VERSION FROM " + tableName +
+                " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?" +
+                domainCondition();
+
+        this.findAllUnmodifiedSinceSql = selectFrom() + " WHERE LAST_UPDATE_TIME < ?" + domainCondition();
+
+        // keyset pagination on (LAST_UPDATE_TIME, TRANSACTION_ID), TRANSACTION_ID is the 10th column
+        String selectPage = SELECT_COLUMNS + ",TRANSACTION_ID FROM " + tableName + " WHERE LAST_UPDATE_TIME < ?" + domainCondition();
+
+        this.findFirstPageSql = selectPage + " ORDER BY LAST_UPDATE_TIME, TRANSACTION_ID";
+
+        this.findNextPageSql = selectPage +
+                " AND ( LAST_UPDATE_TIME > ? OR ( LAST_UPDATE_TIME = ? AND TRANSACTION_ID > ? ) ) ORDER BY LAST_UPDATE_TIME, TRANSACTION_ID";
+
+        this.touchSql = "UPDATE " + tableName + " SET " +
+                "LAST_UPDATE_TIME = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?" +
+                domainCondition();
+
+        this.insertParticipantSql = "INSERT INTO " + participantTableName +
+                "(GLOBAL_TX_ID,BRANCH_QUALIFIER,CONTENT,CREATE_TIME" +
+                (domainEnabled ? ",DOMAIN ) VALUES (?,?,?,?,?)" : ") VALUES (?,?,?,?)");
+
+        this.deleteParticipantsSql = "DELETE FROM " + participantTableName +
+                " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?" +
+                domainCondition();
+
+        int bucketCount = Integer.numberOfTrailingZeros(MAX_FIND_BATCH_SIZE) + 1;
+        this.findSqls = new String[bucketCount];
+        this.findParticipantsSqls = new String[bucketCount];
+
+        for (int i = 0; i < bucketCount; i++) {
+            findSqls[i] = buildFindSql(selectFrom(), 1 << i, "");
+            findParticipantsSqls[i] = buildFindSql("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT FROM " + participantTableName,
+                    1 << i, " ORDER BY PARTICIPANT_ID");
+        }
+    }
+
+    /**
+     * @return the smallest bucket size able to hold {@code size} xids, at most {@link #MAX_FIND_BATCH_SIZE}
+     */
+    public static int bucketSize(int size) {
+        if (size <= 1) {
+            return 1;
+        }
+        if (size >= MAX_FIND_BATCH_SIZE) {
+            return MAX_FIND_BATCH_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * @param bucketSize a value returned by {@link #bucketSize(int)}
+     */
+    public String getFindSql(int bucketSize) {
+        return findSqls[Integer.numberOfTrailingZeros(bucketSize)];
+    }
+
+    /**
+     * @param bucketSize a value returned by {@link #bucketSize(int)}
+     */
+    public String getFindParticipantsSql(int bucketSize) {
+        return findParticipantsSqls[Integer.numberOfTrailingZeros(bucketSize)];
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getParticipantTableName() {
+        return participantTableName;
+    }
+
+    public boolean isDomainEnabled() {
+        return domainEnabled;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    public String getUpdateSql() {
+        return updateSql;
+    }
+
+    public String getUpdateStatusSql() {
+        return updateStatusSql;
+    }
+
+    public String getDeleteSql() {
+        return deleteSql;
+    }
+
+    public String getFindVersionSql() {
+        return findVersionSql;
+    }
+
+    public String getFindAllUnmodifiedSinceSql() {
+        return findAllUnmodifiedSinceSql;
+    }
+
+    public String getFindFirstPageSql() {
+        return findFirstPageSql;
+    }
+
+    public String getFindNextPageSql() {
+        return findNextPageSql;
+    }
+
+    public String getTouchSql() {
+        return touchSql;
+    }
+
+    public String getInsertParticipantSql() {
+        return insertParticipantSql;
+    }
+
+    public String getDeleteParticipantsSql() {
+        return deleteParticipantsSql;
+    }
+
+    private String buildFindSql(String selectFrom, int bucketSize, String orderBy) {
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(selectFrom).append(" WHERE (");
+
+        for (int i = 0; i < bucketSize; i++) {
+            if (i > 0) {
+                builder.append(" OR");
+            }
+            builder.append(" ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? )");
+        }
+
+        builder.append(" )").append(domainCondition()).append(orderBy);
+        return builder.toString();
+    }
+
+    private String selectFrom() {
+        return SELECT_COLUMNS + (domainEnabled ? ",DOMAIN" : "") + "  FROM " + tableName;
+    }
+
+    private String domainCondition() {
+        return domainEnabled ? " AND DOMAIN = ?" : "";
+    }
+}
@@ -0,0 +1,202 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped, fixed-capacity, append-only file of a segmented log.
+ * <p/>
+ * Each record is framed as {@code [int length][int crc32][body]}. The unused tail of a segment is zero,
+ * so a zero length marks the end of the written records. A record whose length or checksum does not match,
+ * e.g. one torn by a crash, also ends the segment.
+ * <p/>
+ * append is not thread safe, callers serialize writes. Reads of already appended records may run concurrently.
+ */
+public class LogSegment {
+
+    public static final int HEADER_SIZE = 8;
+
+    private final long id;
+
+    private final File file;
+
+    private final int capacity;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private volatile int writePosition;
+
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    public LogSegment(File file, long id, int capacity) {
+        this.id = id;
+        this.file = file;
+        this.capacity = capacity;
+
+        try {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /**
+     * @return the offset of the appended record, or -1 if the segment has no room left for it
+     */
+    public int append(byte[] body) {
+
+        int position = writePosition;
+
+        if ((long) position + HEADER_SIZE + body.length > capacity) {
+            return -1;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.putInt(body.length);
+        view.putInt((int) crc.getValue());
+        view.put(body);
+
+        writePosition = position + HEADER_SIZE + body.length;
+        return position;
+    }
+
+    public byte[] read(int offset) {
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+
+        int length = view.getInt();
+        int checksum = view.getInt();
+
+        byte[] body = new byte[length];
+        view.get(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        if ((int) crc.getValue() != checksum) {
+            throw new TransactionIOException(String.format("corrupted record at offset %d of segment %s", offset, file));
+        }
+
+        return body;
+    }
+
+    /**
+     * Visits the valid records in order.
+     *
+     * @return the position right after the last valid record
+     */
+    public int scan(RecordVisitor visitor) {
+
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+
+        while (position + HEADER_SIZE <= capacity) {
+
+            int length = view.getInt(position);
+
+            if (length <= 0 || (long) position + HEADER_SIZE + length > capacity) {
+                break;
+            }
+
+            int checksum = view.getInt(position + 4);
+
+            byte[] body = new byte[length];
+            view.position(position + HEADER_SIZE);
+            view.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            visitor.visit(position, body);
+            position += HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    /**
+     * Scans the segment after a restart, positions the writer after the last valid record and
+     * zeroes the remains of a torn record so they can never be taken for the end of a later one.
+     */
+    public void recover(RecordVisitor visitor) {
+
+        int position = scan(visitor);
+
+        if (position + HEADER_SIZE <= capacity) {
+
+            int length = buffer.getInt(position);
+
+            if (length != 0) {
+                int end = length > 0 && (long) position + HEADER_SIZE + length <= capacity ? position + HEADER_SIZE + length : capacity;
+
+                for (int i = position; i < end; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.force();
+            }
+        }
+
+        writePosition = position;
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes and removes the file. The mapping itself is released by the garbage collector, so records
+     * still referenced by concurrent readers stay readable until then.
+     */
+    public void delete() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new TransactionIOException("cannot delete segment " + file);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getWritePosition() {
+        return writePosition;
+    }
+
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    public void addLiveBytes(long delta) {
+        liveBytes.addAndGet(delta);
+    }
+
+    public interface RecordVisitor {
+
+        void visit(int offset, byte[] body);
+    }
+}
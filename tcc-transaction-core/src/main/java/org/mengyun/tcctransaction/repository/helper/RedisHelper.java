@@ -15,6 +15,10 @@ public class RedisHelper {
         return new StringBuilder().append(keyPrefix).append(xid.toString()).toString().getBytes();
     }
 
+    public static byte[] getRedisKey(String keyPrefix, String xidKey) {
+        return new StringBuilder().append(keyPrefix).append(xidKey).toString().getBytes();
+    }
+
     public static byte[] getRedisKey(String keyPrefix, String globalTransactionId, String branchQualifier) {
         return new StringBuilder().append(keyPrefix).append(globalTransactionId).append(":").append(branchQualifier).toString().getBytes();
     }
@@ -27,6 +31,18 @@ public class RedisHelper {
         return new StringBuilder().append("VER:").append(keyPrefix).append(globalTransactionId).append(":").append(branchQualifier).toString().getBytes();
     }
 
+    public static byte[] getParticipantKey(String keyPrefix, Xid xid) {
+        return getParticipantKey(getRedisKey(keyPrefix, xid));
+    }
+
+    public static byte[] getParticipantKey(byte[] redisKey) {
+        return new StringBuilder().append("PTC:").append(new String(redisKey)).toString().getBytes();
+    }
+
+    public static byte[] getIndexKey(String keyPrefix) {
+        return new StringBuilder().append("IDX:").append(keyPrefix).toString().getBytes();
+    }
+
     public static <T> T execute(JedisPool jedisPool, JedisCallback<T> callback) {
         Jedis jedis = null;
         try {
@@ -1,19 +1,71 @@
 package org.mengyun.tcctransaction.repository.helper;
 
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Created by changming.xie on 9/15/16.
+ * <p/>
+ * A stored transaction is an envelope of a fixed binary header followed by the serialized transaction:
+ * <pre>
+ * 'T' 'C' version(1) | STATUS(4) RETRIED_COUNT(4) LAST_UPDATE_TIME(8) VERSION(8) | TRANSACTION_TYPE(4) CREATE_TIME(8)
+ * | GLOBAL_TX_ID length(2) + bytes | BRANCH_QUALIFIER length(2) + bytes | CONTENT
+ * </pre>
+ * The fields changed by status updates sit at fixed offsets. A store able to write at an offset, the file system,
+ * rewrites only them, see {@link #serializeStatusFields(Transaction)}; the others reuse the serialized CONTENT as is.
+ * <p/>
+ * Records are written in the map format of earlier versions, a serialized map of the header fields and CONTENT,
+ * unless the envelope is enabled: nodes of earlier versions only read the former. Both are read.
  */
 public class TransactionSerializer {
 
+    private static final byte MAGIC_0 = 'T';
+
+    private static final byte MAGIC_1 = 'C';
+
+    private static final byte VERSION = 1;
+
+    private static final int STATUS_OFFSET = 3;
+
+    private static final int RETRIED_COUNT_OFFSET = 7;
+
+    private static final int LAST_UPDATE_TIME_OFFSET = 11;
+
+    private static final int VERSION_OFFSET = 19;
+
+    private static final int TRANSACTION_TYPE_OFFSET = 27;
+
+    private static final int CREATE_TIME_OFFSET = 31;
+
+    private static final int XID_OFFSET = 39;
+
+    public static final int MAGIC_LENGTH = 3;
+
+    public static final int STATUS_FIELDS_OFFSET = STATUS_OFFSET;
+
+    public static final int VERSION_FIELDS_OFFSET = LAST_UPDATE_TIME_OFFSET;
+
     public static byte[] serialize(ObjectSerializer serializer, Transaction transaction) {
-        Map<String, Object> map = new HashMap<String, Object>();
+        return serialize(serializer, transaction, false);
+    }
+
+    /**
+     * @param envelope write the envelope instead of the map format
+     */
+    public static byte[] serialize(ObjectSerializer serializer, Transaction transaction, boolean envelope) {
+
+        if (envelope) {
+            return envelope(transaction, serializer.serialize(transaction));
+        }
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
 
         map.put("GLOBAL_TX_ID", transaction.getXid().getGlobalTransactionId());
         map.put("BRANCH_QUALIFIER", transaction.getXid().getBranchQualifier());
@@ -30,10 +82,111 @@ public class TransactionSerializer {
 
     public static Transaction deserialize(ObjectSerializer serializer, byte[] value) {
 
+        if (!isEnvelope(value)) {
+            return deserializeLegacy(serializer, value);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+
+        Transaction transaction = (Transaction) serializer.deserialize(Arrays.copyOfRange(value, contentOffset(buffer), value.length));
+        transaction.changeStatus(TransactionStatus.valueOf(buffer.getInt(STATUS_OFFSET)));
+        transaction.resetRetriedCount(buffer.getInt(RETRIED_COUNT_OFFSET));
+        transaction.setLastUpdateTime(new Date(buffer.getLong(LAST_UPDATE_TIME_OFFSET)));
+        transaction.setVersion(buffer.getLong(VERSION_OFFSET));
+        return transaction;
+    }
+
+    /**
+     * Rewrites the header fields of a serialized transaction, the serialized CONTENT of an envelope is reused as is.
+     * A record of the map format is serialized again: nodes of earlier versions read the status from CONTENT.
+     *
+     * @param envelope write a record of the map format as an envelope
+     */
+    public static byte[] serializeStatus(ObjectSerializer serializer, byte[] value, Transaction transaction, boolean envelope) {
+
+        if (!isEnvelope(value)) {
+            if (!envelope) {
+                return serialize(serializer, transaction, false);
+            }
+            Map<String, Object> map = (Map<String, Object>) serializer.deserialize(value);
+            return envelope(transaction, (byte[]) map.get("CONTENT"));
+        }
+
+        byte[] content = Arrays.copyOf(value, value.length);
+        writeStatus(ByteBuffer.wrap(content), transaction);
+        return content;
+    }
+
+    /**
+     * @return STATUS, RETRIED_COUNT, LAST_UPDATE_TIME and VERSION as laid out from {@link #STATUS_FIELDS_OFFSET}
+     */
+    public static byte[] serializeStatusFields(Transaction transaction) {
+        ByteBuffer buffer = ByteBuffer.allocate(LAST_UPDATE_TIME_OFFSET + 8 + 8);
+        writeStatus(buffer, transaction);
+        return Arrays.copyOfRange(buffer.array(), STATUS_OFFSET, buffer.capacity());
+    }
+
+    /**
+     * @return LAST_UPDATE_TIME and VERSION as laid out from {@link #VERSION_FIELDS_OFFSET}
+     */
+    public static byte[] serializeVersionFields(Transaction transaction) {
+        ByteBuffer buffer = ByteBuffer.allocate(LAST_UPDATE_TIME_OFFSET + 8 + 8);
+        writeStatus(buffer, transaction);
+        return Arrays.copyOfRange(buffer.array(), LAST_UPDATE_TIME_OFFSET, buffer.capacity());
+    }
+
+    /**
+     * @param head at least the first {@link #MAGIC_LENGTH} bytes of a stored transaction
+     */
+    public static boolean isEnvelopeHeader(byte[] head) {
+        return head.length >= MAGIC_LENGTH && head[0] == MAGIC_0 && head[1] == MAGIC_1 && head[2] == VERSION;
+    }
+
+    private static byte[] envelope(Transaction transaction, byte[] content) {
+
+        byte[] globalTransactionId = transaction.getXid().getGlobalTransactionId();
+        byte[] branchQualifier = transaction.getXid().getBranchQualifier();
+
+        ByteBuffer buffer = ByteBuffer.allocate(XID_OFFSET + 4 + globalTransactionId.length + branchQualifier.length + content.length);
+
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION);
+        writeStatus(buffer, transaction);
+        buffer.putInt(TRANSACTION_TYPE_OFFSET, transaction.getTransactionType().getId());
+        buffer.putLong(CREATE_TIME_OFFSET, transaction.getCreateTime().getTime());
+
+        buffer.position(XID_OFFSET);
+        buffer.putShort((short) globalTransactionId.length).put(globalTransactionId);
+        buffer.putShort((short) branchQualifier.length).put(branchQualifier);
+        buffer.put(content);
+
+        return buffer.array();
+    }
+
+    private static void writeStatus(ByteBuffer buffer, Transaction transaction) {
+        buffer.putInt(STATUS_OFFSET, transaction.getStatus().getId());
+        buffer.putInt(RETRIED_COUNT_OFFSET, transaction.getRetriedCount());
+        buffer.putLong(LAST_UPDATE_TIME_OFFSET, transaction.getLastUpdateTime().getTime());
+        buffer.putLong(VERSION_OFFSET, transaction.getVersion());
+    }
+
+    private static int contentOffset(ByteBuffer buffer) {
+        int position = XID_OFFSET;
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        return position;
+    }
+
+    private static boolean isEnvelope(byte[] value) {
+        return value.length > XID_OFFSET && value[0] == MAGIC_0 && value[1] == MAGIC_1 && value[2] == VERSION;
+    }
+
+    private static Transaction deserializeLegacy(ObjectSerializer serializer, byte[] value) {
+
         Map<String, Object> map = (Map<String, Object>) serializer.deserialize(value);
 
         byte[] content = (byte[]) map.get("CONTENT");
         Transaction transaction = (Transaction) serializer.deserialize(content);
+        transaction.changeStatus(TransactionStatus.valueOf((Integer) map.get("STATUS")));
         transaction.resetRetriedCount((Integer) map.get("RETRIED_COUNT"));
         transaction.setLastUpdateTime((Date) map.get("LAST_UPDATE_TIME"));
         transaction.setVersion((Long) map.get("VERSION"));
@@ -0,0 +1,79 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.api.TransactionXid;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * How a repository names the record of a transaction, e.g. its redis key, znode or file.
+ * <p/>
+ * A repository keeps finding the records stored with one format only, switching formats leaves the records
+ * stored before behind.
+ */
+public enum XidKeyFormat {
+
+    /**
+     * Two name based UUIDs of the global transaction id and the branch qualifier, the format of
+     * TransactionXid.toString(). Hashes both with MD5 and cannot be decoded.
+     */
+    LEGACY {
+        @Override
+        public String encode(Xid xid) {
+            return xid.toString();
+        }
+    },
+
+    /**
+     * The global transaction id and the branch qualifier in hex separated by ':'.
+     */
+    HEX {
+        @Override
+        public String encode(Xid xid) {
+
+            if (xid instanceof TransactionXid) {
+                return ((TransactionXid) xid).toHexString();
+            }
+
+            return new TransactionXid(xid.getGlobalTransactionId(), xid.getBranchQualifier()).toHexString();
+        }
+    };
+
+    public abstract String encode(Xid xid);
+
+    /**
+     * Reads back a key written by HEX, the only format that can be decoded.
+     */
+    public static TransactionXid decodeHex(String key) {
+
+        int separator = key.indexOf(':');
+
+        if (separator < 0) {
+            throw new IllegalArgumentException("not a hex xid key: " + key);
+        }
+
+        return new TransactionXid(fromHex(key, 0, separator), fromHex(key, separator + 1, key.length()));
+    }
+
+    private static byte[] fromHex(String key, int from, int to) {
+
+        if ((to - from) % 2 != 0) {
+            throw new IllegalArgumentException("not a hex xid key: " + key);
+        }
+
+        byte[] bytes = new byte[(to - from) / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+
+            int high = Character.digit(key.charAt(from + 2 * i), 16);
+            int low = Character.digit(key.charAt(from + 2 * i + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("not a hex xid key: " + key);
+            }
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+}
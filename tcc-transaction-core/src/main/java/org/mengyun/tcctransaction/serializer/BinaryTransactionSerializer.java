@@ -0,0 +1,533 @@
+package org.mengyun.tcctransaction.serializer;
+
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionContextEditor;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand-written binary encoding of Transaction and Participant.
+ * <p/>
+ * A record starts with the magic bytes 0xB1 0x7C, a format version and the record type. Xids of two
+ * 16 byte ids are written without length, counters as varints and the class and method names of the
+ * invocation contexts through a per-record dictionary, so the confirm and cancel contexts of a participant
+ * share their strings. Business arguments and attachment values are written by the fallback serializer,
+ * which also handles every other object, e.g. the header maps of the file system and zookeeper repositories.
+ * <p/>
+ * Records not starting with the magic bytes are handed to the fallback serializer, so existing records
+ * written by it stay readable.
+ */
+public class BinaryTransactionSerializer implements ObjectSerializer<Object> {
+
+    static final byte MAGIC_0 = (byte) 0xB1;
+
+    static final byte MAGIC_1 = (byte) 0x7C;
+
+    static final byte VERSION = 1;
+
+    private static final byte TYPE_OBJECT = 0;
+
+    private static final byte TYPE_TRANSACTION = 1;
+
+    private static final byte TYPE_PARTICIPANT = 2;
+
+    private static final byte XID_NULL = 0;
+
+    private static final byte XID_UUID = 1;
+
+    private static final byte XID_VARIABLE = 2;
+
+    private static final int UUID_LENGTH = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, Class> PRIMITIVE_TYPES = new HashMap<String, Class>();
+
+    static {
+        for (Class type : new Class[]{boolean.class, byte.class, char.class, short.class, int.class, long.class,
+                float.class, double.class, void.class}) {
+            PRIMITIVE_TYPES.put(type.getName(), type);
+        }
+    }
+
+    private final Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+
+    private ObjectSerializer fallbackSerializer;
+
+    public BinaryTransactionSerializer() {
+        this(new JdkSerializationSerializer());
+    }
+
+    public BinaryTransactionSerializer(ObjectSerializer fallbackSerializer) {
+        this.fallbackSerializer = fallbackSerializer;
+    }
+
+    public void setFallbackSerializer(ObjectSerializer fallbackSerializer) {
+        this.fallbackSerializer = fallbackSerializer;
+    }
+
+    @Override
+    public byte[] serialize(Object object) {
+
+        Writer writer = new Writer();
+        writer.writeByte(MAGIC_0);
+        writer.writeByte(MAGIC_1);
+        writer.writeByte(VERSION);
+
+        if (object instanceof Transaction) {
+            writer.writeByte(TYPE_TRANSACTION);
+            writeTransaction(writer, (Transaction) object);
+        } else if (object instanceof Participant) {
+            writer.writeByte(TYPE_PARTICIPANT);
+            writeParticipant(writer, (Participant) object);
+        } else {
+            writer.writeByte(TYPE_OBJECT);
+            byte[] bytes = fallbackSerializer.serialize(object);
+            writer.writeBytes(bytes, 0, bytes.length);
+        }
+
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+
+        if (bytes == null) {
+            return null;
+        }
+
+        if (bytes.length < 4 || bytes[0] != MAGIC_0 || bytes[1] != MAGIC_1) {
+            return fallbackSerializer.deserialize(bytes);
+        }
+
+        if (bytes[2] != VERSION) {
+            throw new SystemException(String.format("unsupported binary transaction format version %d", bytes[2]));
+        }
+
+        Reader reader = new Reader(bytes, 4);
+
+        switch (bytes[3]) {
+            case TYPE_TRANSACTION:
+                return readTransaction(reader);
+            case TYPE_PARTICIPANT:
+                return readParticipant(reader);
+            case TYPE_OBJECT:
+                return fallbackSerializer.deserialize(Arrays.copyOfRange(bytes, 4, bytes.length));
+            default:
+                throw new SystemException(String.format("unknown binary transaction record type %d", bytes[3]));
+        }
+    }
+
+    @Override
+    public Object clone(Object object) {
+        return deserialize(serialize(object));
+    }
+
+    private void writeTransaction(Writer writer, Transaction transaction) {
+
+        writeXid(writer, (TransactionXid) transaction.getXid());
+        writer.writeVarInt(transaction.getStatus().getId());
+        writer.writeVarInt(transaction.getTransactionType().getId());
+        writer.writeVarInt(transaction.getRetriedCount());
+        writer.writeVarLong(transaction.getVersion());
+        writer.writeLong(transaction.getCreateTime().getTime());
+        writer.writeLong(transaction.getLastUpdateTime().getTime());
+
+        List<Participant> participants = transaction.getParticipants();
+        writer.writeVarInt(participants.size());
+
+        for (Participant participant : participants) {
+            writeParticipant(writer, participant);
+        }
+
+        Map<String, Object> attachments = transaction.getAttachments();
+        writer.writeVarInt(attachments.size());
+
+        for (Map.Entry<String, Object> entry : attachments.entrySet()) {
+            writer.writeString(entry.getKey());
+            writeObject(writer, entry.getValue());
+        }
+    }
+
+    private Transaction readTransaction(Reader reader) {
+
+        TransactionXid xid = readXid(reader);
+        TransactionStatus status = TransactionStatus.valueOf(reader.readVarInt());
+        TransactionType transactionType = TransactionType.valueOf(reader.readVarInt());
+        int retriedCount = reader.readVarInt();
+        long version = reader.readVarLong();
+        Date createTime = new Date(reader.readLong());
+        Date lastUpdateTime = new Date(reader.readLong());
+
+        Transaction transaction = new Transaction(xid, status, transactionType, createTime);
+        transaction.resetRetriedCount(retriedCount);
+        transaction.setVersion(version);
+        transaction.setLastUpdateTime(lastUpdateTime);
+
+        int participantCount = reader.readVarInt();
+
+        for (int i = 0; i < participantCount; i++) {
+            transaction.enlistParticipant(readParticipant(reader));
+        }
+
+        int attachmentCount = reader.readVarInt();
+
+        for (int i = 0; i < attachmentCount; i++) {
+            String key = reader.readString();
+            Object value = readObject(reader);
+            if (value != null) {
+                transaction.getAttachments().put(key, value);
+            }
+        }
+
+        return transaction;
+    }
+
+    private void writeParticipant(Writer writer, Participant participant) {
+
+        writeXid(writer, participant.getXid());
+
+        Class<? extends TransactionContextEditor> editorClass = participant.getTransactionContextEditorClass();
+        writer.writeName(editorClass == null ? null : editorClass.getName());
+
+        writeInvocationContext(writer, participant.getConfirmInvocationContext());
+        writeInvocationContext(writer, participant.getCancelInvocationContext());
+    }
+
+    private Participant readParticipant(Reader reader) {
+
+        TransactionXid xid = readXid(reader);
+        Class<? extends TransactionContextEditor> editorClass = classOf(reader.readName());
+
+        InvocationContext confirmInvocationContext = readInvocationContext(reader);
+        InvocationContext cancelInvocationContext = readInvocationContext(reader);
+
+        return new Participant(xid, confirmInvocationContext, cancelInvocationContext, editorClass);
+    }
+
+    private void writeInvocationContext(Writer writer, InvocationContext invocationContext) {
+
+        if (invocationContext == null) {
+            writer.writeByte((byte) 0);
+            return;
+        }
+
+        writer.writeByte((byte) 1);
+
+        Class targetClass = invocationContext.getTargetClass();
+        writer.writeName(targetClass == null ? null : targetClass.getName());
+        writer.writeName(invocationContext.getMethodName());
+
+        Class[] parameterTypes = invocationContext.getParameterTypes();
+
+        if (parameterTypes == null) {
+            writer.writeVarInt(0);
+        } else {
+            writer.writeVarInt(parameterTypes.length + 1);
+            for (Class parameterType : parameterTypes) {
+                writer.writeName(parameterType.getName());
+            }
+        }
+
+        writeObject(writer, invocationContext.getArgs());
+    }
+
+    private InvocationContext readInvocationContext(Reader reader) {
+
+        if (reader.readByte() == 0) {
+            return null;
+        }
+
+        Class targetClass = classOf(reader.readName());
+        String methodName = reader.readName();
+
+        Class[] parameterTypes = null;
+        int parameterCount = reader.readVarInt() - 1;
+
+        if (parameterCount >= 0) {
+            parameterTypes = new Class[parameterCount];
+            for (int i = 0; i < parameterCount; i++) {
+                parameterTypes[i] = classOf(reader.readName());
+            }
+        }
+
+        Object[] args = (Object[]) readObject(reader);
+
+        return new InvocationContext(targetClass, methodName, parameterTypes, args);
+    }
+
+    private void writeXid(Writer writer, TransactionXid xid) {
+
+        if (xid == null) {
+            writer.writeByte(XID_NULL);
+            return;
+        }
+
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        if (globalTransactionId.length == UUID_LENGTH && branchQualifier.length == UUID_LENGTH) {
+            writer.writeByte(XID_UUID);
+            writer.writeBytes(globalTransactionId, 0, UUID_LENGTH);
+            writer.writeBytes(branchQualifier, 0, UUID_LENGTH);
+        } else {
+            writer.writeByte(XID_VARIABLE);
+            writer.writeVarInt(globalTransactionId.length);
+            writer.writeBytes(globalTransactionId, 0, globalTransactionId.length);
+            writer.writeVarInt(branchQualifier.length);
+            writer.writeBytes(branchQualifier, 0, branchQualifier.length);
+        }
+    }
+
+    private TransactionXid readXid(Reader reader) {
+
+        byte layout = reader.readByte();
+
+        switch (layout) {
+            case XID_NULL:
+                return null;
+            case XID_UUID:
+                return new TransactionXid(reader.readBytes(UUID_LENGTH), reader.readBytes(UUID_LENGTH));
+            case XID_VARIABLE:
+                byte[] globalTransactionId = reader.readBytes(reader.readVarInt());
+                byte[] branchQualifier = reader.readBytes(reader.readVarInt());
+                return new TransactionXid(globalTransactionId, branchQualifier);
+            default:
+                throw new SystemException(String.format("unknown xid layout %d", layout));
+        }
+    }
+
+    private void writeObject(Writer writer, Object object) {
+
+        if (object == null) {
+            writer.writeVarInt(0);
+            return;
+        }
+
+        byte[] bytes = fallbackSerializer.serialize(object);
+        writer.writeVarInt(bytes.length + 1);
+        writer.writeBytes(bytes, 0, bytes.length);
+    }
+
+    private Object readObject(Reader reader) {
+
+        int length = reader.readVarInt() - 1;
+
+        if (length < 0) {
+            return null;
+        }
+
+        return fallbackSerializer.deserialize(reader.readBytes(length));
+    }
+
+    private Class classOf(String name) {
+
+        if (name == null) {
+            return null;
+        }
+
+        Class type = classes.get(name);
+
+        if (type == null) {
+
+            type = PRIMITIVE_TYPES.get(name);
+
+            if (type == null) {
+                try {
+                    type = Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+                } catch (ClassNotFoundException e) {
+                    throw new SystemException(e);
+                }
+            }
+
+            classes.put(name, type);
+        }
+
+        return type;
+    }
+
+    /**
+     * Growing output buffer. Names written through writeName are interned: the first occurrence is written
+     * in full, later ones as the index of the first.
+     */
+    private static class Writer {
+
+        private byte[] buffer = new byte[256];
+
+        private int position;
+
+        private Map<String, Integer> names;
+
+        void writeByte(byte value) {
+            ensureCapacity(1);
+            buffer[position++] = value;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        /**
+         * 0 for null, index + 1 for a name already written, otherwise {@code size + 1} followed by the name.
+         */
+        void writeName(String name) {
+
+            if (name == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            if (names == null) {
+                names = new HashMap<String, Integer>();
+            }
+
+            Integer index = names.get(name);
+
+            if (index != null) {
+                writeVarInt(index + 1);
+            } else {
+                index = names.size();
+                names.put(name, index);
+                writeVarInt(index + 1);
+                writeString(name);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + length));
+            }
+        }
+    }
+
+    private static class Reader {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private final List<String> names = new ArrayList<String>();
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        byte readByte() {
+            checkAvailable(1);
+            return buffer[position++];
+        }
+
+        byte[] readBytes(int length) {
+            checkAvailable(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        long readLong() {
+            checkAvailable(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SystemException("malformed varint in binary transaction record");
+        }
+
+        String readString() {
+            int length = readVarInt();
+            checkAvailable(length);
+            String value = new String(buffer, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+
+        String readName() {
+
+            int index = readVarInt() - 1;
+
+            if (index < 0) {
+                return null;
+            }
+
+            if (index < names.size()) {
+                return names.get(index);
+            }
+
+            if (index != names.size()) {
+                throw new SystemException(String.format("name index %d out of order in binary transaction record", index));
+            }
+
+            String name = readString();
+            names.add(name);
+            return name;
+        }
+
+        private void checkAvailable(int length) {
+            if (length < 0 || position + length > buffer.length) {
+                throw new SystemException("truncated binary transaction record");
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.mengyun.tcctransaction.serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An ObjectSerializer able to write to and read from a caller supplied buffer, without an intermediate byte array.
+ */
+public interface BufferedObjectSerializer<T> extends ObjectSerializer<T> {
+
+    /**
+     * Serializes the object at the position of the buffer and moves the position past it.
+     *
+     * @return the number of bytes written
+     */
+    int serialize(T t, ByteBuffer buffer);
+
+    /**
+     * Deserializes an object starting at the position of the buffer and moves the position past it.
+     */
+    T deserialize(ByteBuffer buffer);
+}
@@ -0,0 +1,154 @@
+package org.mengyun.tcctransaction.serializer;
+
+import org.mengyun.tcctransaction.SystemException;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses what another serializer writes once it reaches a size threshold, for repositories whose records
+ * carry large invocation arguments.
+ * <p/>
+ * A compressed record is {@code 0x5A 0xC1 algorithm(1) originalLength(4)} followed by the deflated bytes. Records
+ * below the threshold, or not getting smaller, are stored as written by the delegate, so compressed and plain
+ * records, including those stored before compression was enabled, are read side by side.
+ */
+public class CompressingObjectSerializer<T> implements ObjectSerializer<T> {
+
+    static final byte MAGIC_0 = (byte) 0x5A;
+
+    static final byte MAGIC_1 = (byte) 0xC1;
+
+    static final byte ALGORITHM_DEFLATE = 1;
+
+    private static final int HEADER_SIZE = 7;
+
+    private ObjectSerializer<T> delegate;
+
+    private int threshold = 1024;
+
+    private int level = Deflater.BEST_SPEED;
+
+    public CompressingObjectSerializer() {
+        this(new JdkSerializationSerializer());
+    }
+
+    public CompressingObjectSerializer(ObjectSerializer<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setDelegate(ObjectSerializer<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param threshold records of at least this many bytes are compressed
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param level the deflate level, from 1 (Deflater.BEST_SPEED, the default) to 9 (Deflater.BEST_COMPRESSION)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte[] serialize(T object) {
+
+        byte[] bytes = delegate.serialize(object);
+
+        if (bytes.length < threshold) {
+            return bytes;
+        }
+
+        byte[] compressed = deflate(bytes);
+
+        return compressed.length < bytes.length ? compressed : bytes;
+    }
+
+    @Override
+    public T deserialize(byte[] bytes) {
+
+        if (bytes != null && isCompressed(bytes)) {
+            return delegate.deserialize(inflate(bytes));
+        }
+
+        return delegate.deserialize(bytes);
+    }
+
+    @Override
+    public T clone(T object) {
+        return delegate.clone(object);
+    }
+
+    private byte[] deflate(byte[] bytes) {
+
+        Deflater deflater = new Deflater(level);
+
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            byte[] buffer = new byte[HEADER_SIZE + bytes.length];
+            buffer[0] = MAGIC_0;
+            buffer[1] = MAGIC_1;
+            buffer[2] = ALGORITHM_DEFLATE;
+            buffer[3] = (byte) (bytes.length >>> 24);
+            buffer[4] = (byte) (bytes.length >>> 16);
+            buffer[5] = (byte) (bytes.length >>> 8);
+            buffer[6] = (byte) bytes.length;
+
+            int length = HEADER_SIZE;
+
+            // a result not fitting into the size of the input is not worth keeping
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] bytes) {
+
+        int originalLength = ((bytes[3] & 0xFF) << 24) | ((bytes[4] & 0xFF) << 16) | ((bytes[5] & 0xFF) << 8) | (bytes[6] & 0xFF);
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+
+            byte[] original = new byte[originalLength];
+            int length = 0;
+
+            while (length < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(original, length, originalLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+
+            if (length != originalLength) {
+                throw new SystemException(String.format("corrupted compressed record, %d of %d bytes inflated", length, originalLength));
+            }
+
+            return original;
+        } catch (DataFormatException e) {
+            throw new SystemException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isCompressed(byte[] bytes) {
+        return bytes.length > HEADER_SIZE && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1 && bytes[2] == ALGORITHM_DEFLATE;
+    }
+}
@@ -0,0 +1,255 @@
+package org.mengyun.tcctransaction.serializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Terminator;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Kryo serializer pooling each Kryo instance together with its Output and Input, so serializing allocates
+ * nothing but the returned array, and deserializing reads the given array in place.
+ * <p/>
+ * The tcc-transaction classes are registered with fixed ids, so their class names are not written into every record.
+ * Other classes, e.g. business arguments, are still accepted unregistered. The ids are part of the stored format:
+ * new classes must be appended with new ids, existing ids must never change.
+ * <p/>
+ * Buffers handed to {@link #serialize(Object, ByteBuffer)} and {@link #deserialize(ByteBuffer)} must be big endian,
+ * the order of the byte array methods, so records written either way can be read either way.
+ */
+public class KryoBufferPoolSerializer<T> implements BufferedObjectSerializer<T> {
+
+    private static final int FIRST_REGISTRATION_ID = 20;
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private static final Class[] REGISTERED_CLASSES = new Class[]{
+            TransactionXid.class,
+            Transaction.class,
+            Participant.class,
+            InvocationContext.class,
+            Terminator.class,
+            TransactionStatus.class,
+            TransactionType.class,
+            Compensable.DefaultTransactionContextEditor.class,
+            Compensable.NullableTransactionContextEditor.class,
+            ArrayList.class,
+            HashMap.class,
+            ConcurrentHashMap.class,
+            Date.class,
+            byte[].class,
+            Object[].class,
+            Class.class,
+            Class[].class
+    };
+
+    private final Queue<Holder> pool = new ConcurrentLinkedQueue<Holder>();
+
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private int maxPoolSize = 256;
+
+    private int bufferSize = 4 * 1024;
+
+    private int maxRetainedBufferSize = 256 * 1024;
+
+    /**
+     * @param maxPoolSize idle Kryo instances kept for reuse
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * @param bufferSize initial size of the pooled output buffers
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param maxRetainedBufferSize output buffers grown beyond it are dropped after use instead of being pooled
+     */
+    public void setMaxRetainedBufferSize(int maxRetainedBufferSize) {
+        this.maxRetainedBufferSize = maxRetainedBufferSize;
+    }
+
+    @Override
+    public byte[] serialize(T object) {
+
+        Holder holder = borrow();
+
+        try {
+            Output output = holder.output;
+            output.clear();
+            holder.kryo.writeClassAndObject(output, object);
+            return output.toBytes();
+        } finally {
+            release(holder);
+        }
+    }
+
+    @Override
+    public T deserialize(byte[] bytes) {
+
+        if (bytes == null) {
+            return null;
+        }
+
+        Holder holder = borrow();
+
+        try {
+            holder.input.setBuffer(bytes);
+            return (T) holder.kryo.readClassAndObject(holder.input);
+        } finally {
+            holder.input.setBuffer(EMPTY_BYTES);
+            release(holder);
+        }
+    }
+
+    /**
+     * The buffer is not grown, a KryoException is thrown when the object does not fit into its remaining space.
+     */
+    @Override
+    public int serialize(T object, ByteBuffer buffer) {
+
+        checkOrder(buffer);
+
+        Holder holder = borrow();
+
+        try {
+            int start = buffer.position();
+
+            ByteBufferOutput output = holder.byteBufferOutput;
+            output.setBuffer(buffer, buffer.capacity());
+            holder.kryo.writeClassAndObject(output, object);
+
+            int end = output.position();
+            buffer.position(end);
+            return end - start;
+        } finally {
+            // drop the caller's buffer, release() would free it when direct
+            holder.byteBufferOutput.setBuffer(EMPTY_BUFFER, 0);
+            release(holder);
+        }
+    }
+
+    @Override
+    public T deserialize(ByteBuffer buffer) {
+
+        checkOrder(buffer);
+
+        Holder holder = borrow();
+
+        try {
+            ByteBufferInput input = holder.byteBufferInput;
+            input.setBuffer(buffer);
+
+            T object = (T) holder.kryo.readClassAndObject(input);
+
+            buffer.position(input.position());
+            return object;
+        } finally {
+            holder.byteBufferInput.setBuffer(EMPTY_BUFFER);
+            release(holder);
+        }
+    }
+
+    @Override
+    public T clone(T object) {
+
+        Holder holder = borrow();
+
+        try {
+            return holder.kryo.copy(object);
+        } finally {
+            release(holder);
+        }
+    }
+
+    private Holder borrow() {
+
+        Holder holder = pool.poll();
+
+        if (holder == null) {
+            return new Holder(createKryo(), new Output(bufferSize, -1));
+        }
+
+        pooledCount.decrementAndGet();
+        return holder;
+    }
+
+    private void release(Holder holder) {
+
+        if (holder.output.getBuffer().length > maxRetainedBufferSize) {
+            holder.output.setBuffer(new byte[bufferSize], -1);
+        }
+
+        if (pooledCount.incrementAndGet() <= maxPoolSize) {
+            pool.offer(holder);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    private static void checkOrder(ByteBuffer buffer) {
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("buffer must be big endian");
+        }
+    }
+
+    private static Kryo createKryo() {
+
+        Kryo kryo = new Kryo();
+        kryo.setReferences(true);
+        kryo.setRegistrationRequired(false);
+        //Fix the NPE bug when deserializing Collections.
+        ((Kryo.DefaultInstantiatorStrategy) kryo.getInstantiatorStrategy())
+                .setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
+
+        for (int i = 0; i < REGISTERED_CLASSES.length; i++) {
+            kryo.register(REGISTERED_CLASSES[i], FIRST_REGISTRATION_ID + i);
+        }
+
+        return kryo;
+    }
+
+    private static class Holder {
+
+        private final Kryo kryo;
+
+        private final Output output;
+
+        private final Input input = new Input();
+
+        private final ByteBufferOutput byteBufferOutput = new ByteBufferOutput();
+
+        private final ByteBufferInput byteBufferInput = new ByteBufferInput();
+
+        Holder(Kryo kryo, Output output) {
+            this.kryo = kryo;
+            this.output = output;
+        }
+    }
+}
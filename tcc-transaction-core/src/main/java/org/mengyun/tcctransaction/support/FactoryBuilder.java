@@ -1,8 +1,7 @@
 package org.mengyun.tcctransaction.support;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by changming.xie on 2/23/17.
@@ -14,30 +13,44 @@ public final class FactoryBuilder {
 
     }
 
-    private static List<BeanFactory> beanFactories = new ArrayList<BeanFactory>();
+    private static CopyOnWriteArrayList<BeanFactory> beanFactories = new CopyOnWriteArrayList<BeanFactory>();
 
+    /**
+     * Classes no bean factory provides are cached as well, with a factory creating the instance itself, so a class
+     * asks the bean factories only once.
+     */
     private static ConcurrentHashMap<Class, SingeltonFactory> classFactoryMap = new ConcurrentHashMap<Class, SingeltonFactory>();
 
     public static <T> SingeltonFactory<T> factoryOf(Class<T> clazz) {
 
-        if (!classFactoryMap.containsKey(clazz)) {
+        SingeltonFactory<T> factory = classFactoryMap.get(clazz);
 
-            for (BeanFactory beanFactory : beanFactories) {
-                if (beanFactory.isFactoryOf(clazz)) {
-                    classFactoryMap.putIfAbsent(clazz, new SingeltonFactory<T>(clazz, beanFactory.getBean(clazz)));
-                }
+        if (factory == null) {
+
+            factory = createFactory(clazz);
+
+            SingeltonFactory<T> existing = classFactoryMap.putIfAbsent(clazz, factory);
+            if (existing != null) {
+                factory = existing;
             }
+        }
+
+        return factory;
+    }
+
+    private static <T> SingeltonFactory<T> createFactory(Class<T> clazz) {
 
-            if (!classFactoryMap.containsKey(clazz)) {
-                classFactoryMap.putIfAbsent(clazz, new SingeltonFactory<T>(clazz));
+        for (BeanFactory beanFactory : beanFactories) {
+            if (beanFactory.isFactoryOf(clazz)) {
+                return new SingeltonFactory<T>(clazz, beanFactory.getBean(clazz));
             }
         }
 
-        return classFactoryMap.get(clazz);
+        return new SingeltonFactory<T>(clazz);
     }
 
     public static void registerBeanFactory(BeanFactory beanFactory) {
-        beanFactories.add(beanFactory);
+        beanFactories.addIfAbsent(beanFactory);
     }
 
     public static class SingeltonFactory<T> {
@@ -58,7 +71,7 @@ public final class FactoryBuilder {
         public T getInstance() {
 
             if (instance == null) {
-                synchronized (SingeltonFactory.class) {
+                synchronized (this) {
                     if (instance == null) {
                         try {
                             ClassLoader loader = Thread.currentThread().getContextClassLoader();
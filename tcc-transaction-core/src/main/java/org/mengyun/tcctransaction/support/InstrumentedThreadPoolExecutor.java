@@ -0,0 +1,244 @@
+package org.mengyun.tcctransaction.support;
+
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool counting its tasks: submitted, completed, failed and rejected tasks,
+ * the time tasks wait in the queue and the time they run.
+ * <p/>
+ * Threads are daemon threads named after the pool. The metrics can be exported as an MBean
+ * under {@code org.mengyun.tcctransaction:type=ThreadPool,name=<pool name>}.
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor implements InstrumentedThreadPoolExecutorMBean {
+
+    static final Logger logger = Logger.getLogger(InstrumentedThreadPoolExecutor.class.getSimpleName());
+
+    private final String name;
+
+    private final Map<Runnable, Long> enqueueTimes = new ConcurrentHashMap<Runnable, Long>();
+
+    private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+
+    private final AtomicLong submittedTaskCount = new AtomicLong();
+
+    private final AtomicLong failedTaskCount = new AtomicLong();
+
+    private final AtomicLong rejectedTaskCount = new AtomicLong();
+
+    private final AtomicLong finishedTaskCount = new AtomicLong();
+
+    private final AtomicLong totalTaskTime = new AtomicLong();
+
+    private final AtomicLong totalQueueTime = new AtomicLong();
+
+    private final AtomicBoolean mbeanRegistered = new AtomicBoolean();
+
+    public InstrumentedThreadPoolExecutor(final String name, int poolSize, int queueCapacity, RejectedExecutionHandler rejectedExecutionHandler) {
+
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(queueCapacity, 1)), new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, rejectedExecutionHandler);
+
+        this.name = name;
+        setRejectedExecutionHandler(new CountingRejectedExecutionHandler(rejectedExecutionHandler));
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submittedTaskCount.incrementAndGet();
+        enqueueTimes.put(command, System.nanoTime());
+        super.execute(command);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+
+        long now = System.nanoTime();
+        Long enqueueTime = enqueueTimes.remove(runnable);
+
+        if (enqueueTime != null) {
+            totalQueueTime.addAndGet(now - enqueueTime);
+        }
+        startTime.set(now);
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+        try {
+            Long start = startTime.get();
+
+            if (start != null) {
+                totalTaskTime.addAndGet(System.nanoTime() - start);
+                startTime.remove();
+            }
+
+            finishedTaskCount.incrementAndGet();
+
+            if (throwable != null || failedInFuture(runnable)) {
+                failedTaskCount.incrementAndGet();
+            }
+        } finally {
+            super.afterExecute(runnable, throwable);
+        }
+    }
+
+    /**
+     * Tasks given to submit() are wrapped in a FutureTask which catches their exception,
+     * afterExecute is then called without a throwable.
+     */
+    private boolean failedInFuture(Runnable runnable) {
+
+        if (!(runnable instanceof Future) || !((Future<?>) runnable).isDone()) {
+            return false;
+        }
+
+        try {
+            ((Future<?>) runnable).get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (CancellationException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Exports the metrics through the platform MBean server, failures are only logged.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, getObjectName());
+            mbeanRegistered.set(true);
+        } catch (Exception e) {
+            logger.warn("register thread pool mbean failed, pool:" + name, e);
+        }
+    }
+
+    /**
+     * Unregisters the MBean registered by this pool, if any. A pool of the same name registered since is left alone.
+     */
+    public void unregisterMBean() {
+
+        if (!mbeanRegistered.compareAndSet(true, false)) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (Exception e) {
+            logger.warn("unregister thread pool mbean failed, pool:" + name, e);
+        }
+    }
+
+    @Override
+    protected void terminated() {
+        try {
+            unregisterMBean();
+        } finally {
+            super.terminated();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getQueueRemainingCapacity() {
+        return getQueue().remainingCapacity();
+    }
+
+    @Override
+    public long getSubmittedTaskCount() {
+        return submittedTaskCount.get();
+    }
+
+    @Override
+    public long getFailedTaskCount() {
+        return failedTaskCount.get();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
+
+    /**
+     * @return average milliseconds a task ran
+     */
+    @Override
+    public double getAverageTaskTime() {
+        long finished = finishedTaskCount.get();
+        return finished == 0 ? 0 : totalTaskTime.get() / 1000000.0 / finished;
+    }
+
+    /**
+     * @return average milliseconds a task waited in the queue
+     */
+    @Override
+    public double getAverageQueueTime() {
+        long finished = finishedTaskCount.get();
+        return finished == 0 ? 0 : totalQueueTime.get() / 1000000.0 / finished;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[active:%d, pool:%d, queue:%d, submitted:%d, completed:%d, failed:%d, rejected:%d, avg task:%.1fms, avg queue:%.1fms]",
+                name, getActiveCount(), getPoolSize(), getQueueDepth(), getSubmittedTaskCount(), getCompletedTaskCount(),
+                getFailedTaskCount(), getRejectedTaskCount(), getAverageTaskTime(), getAverageQueueTime());
+    }
+
+    private ObjectName getObjectName() throws Exception {
+        return new ObjectName("org.mengyun.tcctransaction:type=ThreadPool,name=" + ObjectName.quote(name));
+    }
+
+    private class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+
+        private final RejectedExecutionHandler delegate;
+
+        CountingRejectedExecutionHandler(RejectedExecutionHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            rejectedTaskCount.incrementAndGet();
+            enqueueTimes.remove(runnable);
+            delegate.rejectedExecution(runnable, executor);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.mengyun.tcctransaction.support;
+
+/**
+ * The metrics of an InstrumentedThreadPoolExecutor exported through JMX.
+ */
+public interface InstrumentedThreadPoolExecutorMBean {
+
+    int getActiveCount();
+
+    int getPoolSize();
+
+    int getMaximumPoolSize();
+
+    int getQueueDepth();
+
+    int getQueueRemainingCapacity();
+
+    long getSubmittedTaskCount();
+
+    long getCompletedTaskCount();
+
+    long getFailedTaskCount();
+
+    long getRejectedTaskCount();
+
+    double getAverageTaskTime();
+
+    double getAverageQueueTime();
+}
@@ -11,15 +11,29 @@ import java.lang.reflect.Method;
 
 /**
  * Created by changming.xie on 1/19/17.
+ * <p/>
+ * Reads the transaction context in both the JSON and the compact form of TransactionContextCodec, and writes JSON
+ * unless the compact form is enabled. Enable it once every provider reads it, by declaring this editor as a spring
+ * bean with compactFormat set to true.
  */
 public class DubboTransactionContextEditor implements TransactionContextEditor {
+
+    private boolean compactFormat = false;
+
+    public void setCompactFormat(boolean compactFormat) {
+        this.compactFormat = compactFormat;
+    }
+
     @Override
     public TransactionContext get(Object target, Method method, Object[] args) {
 
         String context = RpcContext.getContext().getAttachment(TransactionContextConstants.TRANSACTION_CONTEXT);
 
         if (StringUtils.isNotEmpty(context)) {
-            return JSON.parseObject(context, TransactionContext.class);
+            if (TransactionContextCodec.isJson(context)) {
+                return JSON.parseObject(context, TransactionContext.class);
+            }
+            return TransactionContextCodec.decode(context);
         }
 
         return null;
@@ -28,6 +42,7 @@ public class DubboTransactionContextEditor implements TransactionContextEditor {
     @Override
     public void set(TransactionContext transactionContext, Object target, Method method, Object[] args) {
 
-        RpcContext.getContext().setAttachment(TransactionContextConstants.TRANSACTION_CONTEXT, JSON.toJSONString(transactionContext));
+        RpcContext.getContext().setAttachment(TransactionContextConstants.TRANSACTION_CONTEXT,
+                compactFormat ? TransactionContextCodec.encode(transactionContext) : JSON.toJSONString(transactionContext));
     }
 }
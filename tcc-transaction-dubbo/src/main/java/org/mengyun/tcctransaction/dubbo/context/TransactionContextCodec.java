@@ -0,0 +1,233 @@
+package org.mengyun.tcctransaction.dubbo.context;
+
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionXid;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact attachment form of a TransactionContext: base64url without padding of
+ * <pre>
+ * version(1) status(4) globalTransactionIdLength(1) globalTransactionId branchQualifierLength(1) branchQualifier
+ * attachmentCount(2) { keyLength(2) key valueLength(2) value }
+ * </pre>
+ * with the attachment keys and values in UTF-8. Base64url never starts with '{', so a reader tells it apart from
+ * the JSON form of earlier versions by the first character.
+ */
+public final class TransactionContextCodec {
+
+    static final byte VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final int[] INDEX = new int[128];
+
+    static {
+        for (int i = 0; i < INDEX.length; i++) {
+            INDEX[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            INDEX[ALPHABET[i]] = i;
+        }
+    }
+
+    private TransactionContextCodec() {
+    }
+
+    public static boolean isJson(String value) {
+        return value.length() > 0 && value.charAt(0) == '{';
+    }
+
+    public static String encode(TransactionContext transactionContext) {
+
+        TransactionXid xid = transactionContext.getXid();
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        Map<String, String> attachments = transactionContext.getAttachments();
+
+        int size = 1 + 4 + 1 + globalTransactionId.length + 1 + branchQualifier.length + 2;
+
+        List<byte[]> encodedAttachments = new ArrayList<byte[]>(attachments.size() * 2);
+
+        for (Map.Entry<String, String> entry : attachments.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            byte[] attachment = entry.getValue().getBytes(UTF_8);
+            encodedAttachments.add(key);
+            encodedAttachments.add(attachment);
+            size += 4 + key.length + attachment.length;
+        }
+
+        byte[] bytes = new byte[size];
+        int position = 0;
+
+        bytes[position++] = VERSION;
+        position = putInt(bytes, position, transactionContext.getStatus());
+        position = putBytes(bytes, position, globalTransactionId, 1);
+        position = putBytes(bytes, position, branchQualifier, 1);
+        position = putShort(bytes, position, encodedAttachments.size() / 2);
+
+        for (byte[] encoded : encodedAttachments) {
+            position = putBytes(bytes, position, encoded, 2);
+        }
+
+        return toBase64(bytes, position);
+    }
+
+    public static TransactionContext decode(String value) {
+
+        byte[] bytes = fromBase64(value);
+
+        if (bytes.length == 0 || bytes[0] != VERSION) {
+            throw new IllegalArgumentException(String.format("unsupported transaction context version %d", bytes.length == 0 ? -1 : bytes[0]));
+        }
+
+        try {
+            int position = 1;
+
+            int status = getInt(bytes, position);
+            position += 4;
+
+            byte[] globalTransactionId = new byte[bytes[position] & 0xFF];
+            System.arraycopy(bytes, position + 1, globalTransactionId, 0, globalTransactionId.length);
+            position += 1 + globalTransactionId.length;
+
+            byte[] branchQualifier = new byte[bytes[position] & 0xFF];
+            System.arraycopy(bytes, position + 1, branchQualifier, 0, branchQualifier.length);
+            position += 1 + branchQualifier.length;
+
+            TransactionContext transactionContext = new TransactionContext(new TransactionXid(globalTransactionId, branchQualifier), status);
+
+            int attachmentCount = getShort(bytes, position);
+            position += 2;
+
+            for (int i = 0; i < attachmentCount; i++) {
+                int keyLength = getShort(bytes, position);
+                String key = new String(bytes, position + 2, keyLength, UTF_8);
+                position += 2 + keyLength;
+
+                int valueLength = getShort(bytes, position);
+                String attachment = new String(bytes, position + 2, valueLength, UTF_8);
+                position += 2 + valueLength;
+
+                transactionContext.getAttachments().put(key, attachment);
+            }
+
+            return transactionContext;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated transaction context", e);
+        }
+    }
+
+    private static int putInt(byte[] bytes, int position, int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private static int putShort(byte[] bytes, int position, int value) {
+
+        if (value > 0xFFFF) {
+            throw new IllegalArgumentException(String.format("transaction context value of %d exceeds 65535", value));
+        }
+
+        bytes[position] = (byte) (value >>> 8);
+        bytes[position + 1] = (byte) value;
+        return position + 2;
+    }
+
+    private static int putBytes(byte[] bytes, int position, byte[] value, int lengthSize) {
+
+        if (lengthSize == 1) {
+            if (value.length > 0xFF) {
+                throw new IllegalArgumentException(String.format("xid part of %d bytes exceeds 255", value.length));
+            }
+            bytes[position++] = (byte) value.length;
+        } else {
+            position = putShort(bytes, position, value.length);
+        }
+
+        System.arraycopy(value, 0, bytes, position, value.length);
+        return position + value.length;
+    }
+
+    private static int getInt(byte[] bytes, int position) {
+        return ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+                | ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+    }
+
+    private static int getShort(byte[] bytes, int position) {
+        return ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+    }
+
+    private static String toBase64(byte[] bytes, int length) {
+
+        char[] chars = new char[(length * 4 + 2) / 3];
+        int index = 0;
+        int i = 0;
+
+        for (; i + 2 < length; i += 3) {
+            int bits = ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8) | (bytes[i + 2] & 0xFF);
+            chars[index++] = ALPHABET[bits >>> 18];
+            chars[index++] = ALPHABET[(bits >>> 12) & 0x3F];
+            chars[index++] = ALPHABET[(bits >>> 6) & 0x3F];
+            chars[index++] = ALPHABET[bits & 0x3F];
+        }
+
+        if (i < length) {
+            int bits = (bytes[i] & 0xFF) << 16;
+            if (i + 1 < length) {
+                bits |= (bytes[i + 1] & 0xFF) << 8;
+            }
+
+            chars[index++] = ALPHABET[bits >>> 18];
+            chars[index++] = ALPHABET[(bits >>> 12) & 0x3F];
+            if (i + 1 < length) {
+                chars[index++] = ALPHABET[(bits >>> 6) & 0x3F];
+            }
+        }
+
+        return new String(chars);
+    }
+
+    private static byte[] fromBase64(String value) {
+
+        int length = value.length();
+
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("truncated transaction context");
+        }
+
+        byte[] bytes = new byte[length * 3 / 4];
+        int index = 0;
+        int bits = 0;
+        int bitCount = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            char c = value.charAt(i);
+            int digit = c < INDEX.length ? INDEX[c] : -1;
+
+            if (digit < 0) {
+                throw new IllegalArgumentException(String.format("illegal character '%s' in transaction context", c));
+            }
+
+            bits = (bits << 6) | digit;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                bytes[index++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        return bytes;
+    }
+}
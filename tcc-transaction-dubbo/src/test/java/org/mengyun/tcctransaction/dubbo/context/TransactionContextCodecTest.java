@@ -0,0 +1,121 @@
+package org.mengyun.tcctransaction.dubbo.context;
+
+import com.alibaba.dubbo.rpc.RpcContext;
+import com.alibaba.fastjson.JSON;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.dubbo.constants.TransactionContextConstants;
+
+import java.util.Random;
+
+public class TransactionContextCodecTest {
+
+    @After
+    public void after() {
+        RpcContext.getContext().clearAttachments();
+    }
+
+    @Test
+    public void roundTrip() {
+
+        TransactionContext transactionContext = new TransactionContext(new TransactionXid(), TransactionStatus.TRYING.getId());
+
+        TransactionContext decoded = TransactionContextCodec.decode(TransactionContextCodec.encode(transactionContext));
+
+        assertEquals(transactionContext, decoded);
+    }
+
+    @Test
+    public void roundTripWithAttachmentsAndNonUuidXid() {
+
+        TransactionContext transactionContext = new TransactionContext(
+                new TransactionXid("order-42".getBytes(), new byte[]{1, 2, 3}), TransactionStatus.CONFIRMING.getId());
+        transactionContext.getAttachments().put("tenant", "租户-1");
+        transactionContext.getAttachments().put("empty", "");
+
+        String encoded = TransactionContextCodec.encode(transactionContext);
+
+        Assert.assertFalse(TransactionContextCodec.isJson(encoded));
+
+        assertEquals(transactionContext, TransactionContextCodec.decode(encoded));
+    }
+
+    @Test
+    public void editorReadsJsonAndCompactForms() {
+
+        TransactionContext transactionContext = new TransactionContext(new TransactionXid(), TransactionStatus.CANCELLING.getId());
+        transactionContext.getAttachments().put("tenant", "1");
+
+        DubboTransactionContextEditor editor = new DubboTransactionContextEditor();
+
+        RpcContext.getContext().setAttachment(TransactionContextConstants.TRANSACTION_CONTEXT, JSON.toJSONString(transactionContext));
+        assertEquals(transactionContext, editor.get(null, null, null));
+
+        RpcContext.getContext().setAttachment(TransactionContextConstants.TRANSACTION_CONTEXT, TransactionContextCodec.encode(transactionContext));
+        assertEquals(transactionContext, editor.get(null, null, null));
+
+        editor.setCompactFormat(true);
+        editor.set(transactionContext, null, null, null);
+        Assert.assertFalse(TransactionContextCodec.isJson(RpcContext.getContext().getAttachment(TransactionContextConstants.TRANSACTION_CONTEXT)));
+        assertEquals(transactionContext, editor.get(null, null, null));
+    }
+
+    @Test
+    public void truncated() {
+
+        TransactionContext transactionContext = new TransactionContext(new TransactionXid(), TransactionStatus.TRYING.getId());
+        transactionContext.getAttachments().put("tenant", "1");
+
+        String encoded = TransactionContextCodec.encode(transactionContext);
+
+        for (int i = 0; i < encoded.length(); i++) {
+            assertRejected(encoded.substring(0, i));
+        }
+    }
+
+    @Test
+    public void garbage() {
+
+        assertRejected("not base64!");
+        assertRejected("AAAA");
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10000; i++) {
+
+            // half of them start with the version byte
+            StringBuilder value = new StringBuilder(random.nextBoolean() ? "AQ" : "");
+            int length = random.nextInt(64);
+
+            for (int j = 0; j < length; j++) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            try {
+                TransactionContextCodec.decode(value.toString());
+            } catch (IllegalArgumentException e) {
+                // expected for most of them, anything else fails the test
+            }
+        }
+    }
+
+    private static void assertRejected(String value) {
+        try {
+            TransactionContextCodec.decode(value);
+            Assert.fail("decoded " + value);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertEquals(TransactionContext expected, TransactionContext actual) {
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getStatus(), actual.getStatus());
+        Assert.assertEquals(expected.getAttachments(), actual.getAttachments());
+    }
+}
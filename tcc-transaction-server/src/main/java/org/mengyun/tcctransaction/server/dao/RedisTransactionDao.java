@@ -1,10 +1,11 @@
 package org.mengyun.tcctransaction.server.dao;
 
-import org.apache.commons.lang3.time.DateUtils;
-import org.mengyun.tcctransaction.SystemException;
 import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.ExpandTransactionSerializer;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 import org.mengyun.tcctransaction.server.dto.PageDto;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 import org.mengyun.tcctransaction.utils.ByteUtils;
@@ -13,7 +14,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
 
-import java.text.ParseException;
 import java.util.*;
 
 /**
@@ -31,6 +31,8 @@ public class RedisTransactionDao implements TransactionDao {
 
     private String domain;
 
+    private ObjectSerializer serializer = new JdkSerializationSerializer();
+
     private String getKeyPrefix() {
         return KEY_NAME_SPACE + ":" + keySuffix + ":";
     }
@@ -91,32 +93,27 @@ public class RedisTransactionDao implements TransactionDao {
 
                             List<TransactionVo> list = new ArrayList<TransactionVo>();
                             for (Object data : result) {
-                                try {
-
-                                    Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
 
-                                    Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
+                                Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
 
-                                    for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
-                                        propertyMap.put(new String(entry.getKey()), entry.getValue());
-                                    }
+                                Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
 
+                                for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
+                                    propertyMap.put(new String(entry.getKey()), entry.getValue());
+                                }
 
-                                    TransactionVo transactionVo = new TransactionVo();
-                                    transactionVo.setDomain(domain);
-                                    transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(propertyMap.get("GLOBAL_TX_ID")).toString());
-                                    transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(propertyMap.get("BRANCH_QUALIFIER")).toString());
-                                    transactionVo.setStatus(ByteUtils.bytesToInt(propertyMap.get("STATUS")));
-                                    transactionVo.setTransactionType(ByteUtils.bytesToInt(propertyMap.get("TRANSACTION_TYPE")));
-                                    transactionVo.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
-                                    transactionVo.setCreateTime(DateUtils.parseDate(new String(propertyMap.get("CREATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                                    transactionVo.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                                    transactionVo.setContentView(new String(propertyMap.get("CONTENT_VIEW")));
-                                    list.add(transactionVo);
 
-                                } catch (ParseException e) {
-                                    throw new SystemException(e);
-                                }
+                                TransactionVo transactionVo = new TransactionVo();
+                                transactionVo.setDomain(domain);
+                                transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(propertyMap.get("GLOBAL_TX_ID")).toString());
+                                transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(propertyMap.get("BRANCH_QUALIFIER")).toString());
+                                transactionVo.setStatus(ByteUtils.bytesToInt(propertyMap.get("STATUS")));
+                                transactionVo.setTransactionType(ByteUtils.bytesToInt(propertyMap.get("TRANSACTION_TYPE")));
+                                transactionVo.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
+                                transactionVo.setCreateTime(ExpandTransactionSerializer.parseDate(propertyMap.get("CREATE_TIME")));
+                                transactionVo.setLastUpdateTime(ExpandTransactionSerializer.parseDate(propertyMap.get("LAST_UPDATE_TIME")));
+                                transactionVo.setContentView(contentView(propertyMap));
+                                list.add(transactionVo);
                             }
 
                             return list;
@@ -218,6 +215,30 @@ public class RedisTransactionDao implements TransactionDao {
         this.keySuffix = keySuffix;
     }
 
+    /**
+     * @param serializer the serializer of the application's RedisTransactionRepository, renders CONTENT
+     *                   of transactions stored without CONTENT_VIEW
+     */
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    private String contentView(Map<String, byte[]> propertyMap) {
+
+        byte[] contentView = propertyMap.get("CONTENT_VIEW");
+
+        if (contentView != null) {
+            return new String(contentView);
+        }
+
+        try {
+            return ExpandTransactionSerializer.renderContentView(serializer, propertyMap.get("CONTENT"));
+        } catch (Exception e) {
+            logger.warn("render transaction content failed.", e);
+            return "";
+        }
+    }
+
     @Override
     public PageDto<TransactionVo> findTransactionPageDto(Integer pageNum, int pageSize) {
 
@@ -293,34 +314,29 @@ public class RedisTransactionDao implements TransactionDao {
 
                             List<TransactionVo> list = new ArrayList<TransactionVo>();
                             for (Object data : result) {
-                                try {
-
-                                    Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
 
-                                    Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
+                                Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
 
-                                    for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
+                                Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
 
-                                        propertyMap.put(new String(entry.getKey()),entry.getValue());
+                                for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
 
-                                    }
+                                    propertyMap.put(new String(entry.getKey()),entry.getValue());
 
+                                }
 
-                                    TransactionVo transactionVo = new TransactionVo();
-                                    transactionVo.setDomain(domain);
-                                    transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(propertyMap.get("GLOBAL_TX_ID")).toString());
-                                    transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(propertyMap.get("BRANCH_QUALIFIER")).toString());
-                                    transactionVo.setStatus(ByteUtils.bytesToInt(propertyMap.get("STATUS")));
-                                    transactionVo.setTransactionType(ByteUtils.bytesToInt(propertyMap.get("TRANSACTION_TYPE")));
-                                    transactionVo.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
-                                    transactionVo.setCreateTime(DateUtils.parseDate(new String(propertyMap.get("CREATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                                    transactionVo.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                                    transactionVo.setContentView(new String(propertyMap.get("CONTENT_VIEW")));
-                                    list.add(transactionVo);
 
-                                } catch (ParseException e) {
-                                    throw new SystemException(e);
-                                }
+                                TransactionVo transactionVo = new TransactionVo();
+                                transactionVo.setDomain(domain);
+                                transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(propertyMap.get("GLOBAL_TX_ID")).toString());
+                                transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(propertyMap.get("BRANCH_QUALIFIER")).toString());
+                                transactionVo.setStatus(ByteUtils.bytesToInt(propertyMap.get("STATUS")));
+                                transactionVo.setTransactionType(ByteUtils.bytesToInt(propertyMap.get("TRANSACTION_TYPE")));
+                                transactionVo.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
+                                transactionVo.setCreateTime(ExpandTransactionSerializer.parseDate(propertyMap.get("CREATE_TIME")));
+                                transactionVo.setLastUpdateTime(ExpandTransactionSerializer.parseDate(propertyMap.get("LAST_UPDATE_TIME")));
+                                transactionVo.setContentView(contentView(propertyMap));
+                                list.add(transactionVo);
                             }
 
                             return list;
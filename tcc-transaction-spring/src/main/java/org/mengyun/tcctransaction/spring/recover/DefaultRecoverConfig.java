@@ -1,6 +1,7 @@
 package org.mengyun.tcctransaction.spring.recover;
 
 import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.recover.ExtendedRecoverConfig;
 import org.mengyun.tcctransaction.recover.RecoverConfig;
 
 import java.net.SocketTimeoutException;
@@ -10,7 +11,7 @@ import java.util.Set;
 /**
  * Created by changming.xie on 6/1/16.
  */
-public class DefaultRecoverConfig implements RecoverConfig {
+public class DefaultRecoverConfig implements ExtendedRecoverConfig {
 
     public static final RecoverConfig INSTANCE = new DefaultRecoverConfig();
 
@@ -22,6 +23,30 @@ public class DefaultRecoverConfig implements RecoverConfig {
 
     private int asyncTerminateThreadPoolSize = 1024;
 
+    private int asyncTerminateQueueCapacity = 1024;
+
+    private int recoverPageSize = 500;
+
+    private int recoverThreadPoolSize = 1;
+
+    private int recoverQueueCapacity = 1000;
+
+    private int recoverConcurrencyPerTarget = 0;
+
+    private double recoverRateLimit = 0;
+
+    private boolean parallelConfirm = false;
+
+    private boolean parallelCancel = false;
+
+    private int parallelTerminateThreadPoolSize = 64;
+
+    private long parallelTerminateTimeout = 30 * 1000L;
+
+    private int transactionCacheMaximumSize = 1000;
+
+    private long transactionCacheMaximumWeight = 0;
+
     private Set<Class<? extends Exception>> delayCancelExceptions = new HashSet<Class<? extends Exception>>();
 
     public DefaultRecoverConfig() {
@@ -74,4 +99,155 @@ public class DefaultRecoverConfig implements RecoverConfig {
     public void setAsyncTerminateThreadPoolSize(int asyncTerminateThreadPoolSize) {
         this.asyncTerminateThreadPoolSize = asyncTerminateThreadPoolSize;
     }
+
+    @Override
+    public int getAsyncTerminateQueueCapacity() {
+        return asyncTerminateQueueCapacity;
+    }
+
+    /**
+     * @param asyncTerminateQueueCapacity async confirms/cancels waiting for a thread, beyond it they are rejected
+     *                                    and left to the recovery job
+     */
+    public void setAsyncTerminateQueueCapacity(int asyncTerminateQueueCapacity) {
+        this.asyncTerminateQueueCapacity = asyncTerminateQueueCapacity;
+    }
+
+    @Override
+    public int getRecoverPageSize() {
+        return recoverPageSize;
+    }
+
+    /**
+     * @param recoverPageSize transactions loaded per batch while recovering, bounds the heap used by one recovery run
+     */
+    public void setRecoverPageSize(int recoverPageSize) {
+        this.recoverPageSize = recoverPageSize;
+    }
+
+    @Override
+    public int getRecoverThreadPoolSize() {
+        return recoverThreadPoolSize;
+    }
+
+    /**
+     * @param recoverThreadPoolSize threads confirming/cancelling transactions during recovery, 1 recovers them one by one
+     *                              on the scheduler thread
+     */
+    public void setRecoverThreadPoolSize(int recoverThreadPoolSize) {
+        this.recoverThreadPoolSize = recoverThreadPoolSize;
+    }
+
+    @Override
+    public int getRecoverQueueCapacity() {
+        return recoverQueueCapacity;
+    }
+
+    /**
+     * @param recoverQueueCapacity transactions waiting for a recover thread, beyond it the scheduler thread recovers them itself
+     */
+    public void setRecoverQueueCapacity(int recoverQueueCapacity) {
+        this.recoverQueueCapacity = recoverQueueCapacity;
+    }
+
+    @Override
+    public int getRecoverConcurrencyPerTarget() {
+        return recoverConcurrencyPerTarget;
+    }
+
+    /**
+     * @param recoverConcurrencyPerTarget transactions recovered at the same time against one participant target class, 0 for no limit
+     */
+    public void setRecoverConcurrencyPerTarget(int recoverConcurrencyPerTarget) {
+        this.recoverConcurrencyPerTarget = recoverConcurrencyPerTarget;
+    }
+
+    @Override
+    public double getRecoverRateLimit() {
+        return recoverRateLimit;
+    }
+
+    /**
+     * @param recoverRateLimit transactions recovered per second at most, 0 for no limit
+     */
+    public void setRecoverRateLimit(double recoverRateLimit) {
+        this.recoverRateLimit = recoverRateLimit;
+    }
+
+    @Override
+    public boolean isParallelConfirm() {
+        return parallelConfirm;
+    }
+
+    /**
+     * @param parallelConfirm confirm the participants of every transaction concurrently,
+     *                        otherwise only those of methods annotated with @Compensable(parallelConfirm = true)
+     */
+    public void setParallelConfirm(boolean parallelConfirm) {
+        this.parallelConfirm = parallelConfirm;
+    }
+
+    @Override
+    public boolean isParallelCancel() {
+        return parallelCancel;
+    }
+
+    /**
+     * @param parallelCancel cancel the participants of every transaction concurrently,
+     *                       otherwise only those of methods annotated with @Compensable(parallelCancel = true)
+     */
+    public void setParallelCancel(boolean parallelCancel) {
+        this.parallelCancel = parallelCancel;
+    }
+
+    @Override
+    public int getParallelTerminateThreadPoolSize() {
+        return parallelTerminateThreadPoolSize;
+    }
+
+    /**
+     * @param parallelTerminateThreadPoolSize threads confirming/cancelling participants concurrently,
+     *                                        when all are busy the transaction thread terminates the participant itself
+     */
+    public void setParallelTerminateThreadPoolSize(int parallelTerminateThreadPoolSize) {
+        this.parallelTerminateThreadPoolSize = parallelTerminateThreadPoolSize;
+    }
+
+    @Override
+    public long getParallelTerminateTimeout() {
+        return parallelTerminateTimeout;
+    }
+
+    /**
+     * @param parallelTerminateTimeout milliseconds to wait for participants confirmed/cancelled concurrently,
+     *                                 the transaction is left to recovery when some did not finish in time
+     */
+    public void setParallelTerminateTimeout(long parallelTerminateTimeout) {
+        this.parallelTerminateTimeout = parallelTerminateTimeout;
+    }
+
+    @Override
+    public int getTransactionCacheMaximumSize() {
+        return transactionCacheMaximumSize;
+    }
+
+    /**
+     * @param transactionCacheMaximumSize transactions cached by the repository at most
+     */
+    public void setTransactionCacheMaximumSize(int transactionCacheMaximumSize) {
+        this.transactionCacheMaximumSize = transactionCacheMaximumSize;
+    }
+
+    @Override
+    public long getTransactionCacheMaximumWeight() {
+        return transactionCacheMaximumWeight;
+    }
+
+    /**
+     * @param transactionCacheMaximumWeight serialized bytes of the transactions cached by the repository at most,
+     *                                      0 to bound their number instead
+     */
+    public void setTransactionCacheMaximumWeight(long transactionCacheMaximumWeight) {
+        this.transactionCacheMaximumWeight = transactionCacheMaximumWeight;
+    }
 }
@@ -2,6 +2,7 @@ package org.mengyun.tcctransaction.spring.repository;
 
 
 import org.mengyun.tcctransaction.repository.JdbcTransactionRepository;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 
 import java.sql.Connection;
@@ -9,7 +10,7 @@ import java.sql.Connection;
 /**
  * Created by changmingxie on 10/30/15.
  */
-public class SpringJdbcTransactionRepository extends JdbcTransactionRepository {
+public class SpringJdbcTransactionRepository extends JdbcTransactionRepository implements DisposableBean {
 
     protected Connection getConnection() {
         return DataSourceUtils.getConnection(this.getDataSource());
@@ -18,4 +19,9 @@ public class SpringJdbcTransactionRepository extends JdbcTransactionRepository {
     protected void releaseConnection(Connection con) {
         DataSourceUtils.releaseConnection(con, this.getDataSource());
     }
+
+    @Override
+    public void destroy() {
+        close();
+    }
 }
@@ -0,0 +1,82 @@
+package org.mengyun.tcctransaction.spring.support;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.TerminatorInvoker;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.interceptor.CompensableMethod;
+import org.mengyun.tcctransaction.utils.ReflectionUtils;
+import org.mengyun.tcctransaction.utils.StringUtils;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Scans the singleton beans for @Compensable methods once the context is refreshed, and resolves their interceptor
+ * metadata and confirm and cancel invokers, so the first transactions and the first recovery run do not pay for it.
+ * <p/>
+ * Interface typed beans, e.g. remote references, are skipped: resolving them would create them eagerly.
+ */
+public class CompensableMethodPreparer implements ApplicationListener<ContextRefreshedEvent> {
+
+    static final Logger logger = Logger.getLogger(CompensableMethodPreparer.class.getSimpleName());
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent contextRefreshedEvent) {
+
+        ApplicationContext applicationContext = contextRefreshedEvent.getApplicationContext();
+
+        int prepared = 0;
+
+        for (String beanName : applicationContext.getBeanNamesForType(Object.class, false, false)) {
+
+            Class beanType = applicationContext.getType(beanName);
+
+            if (beanType == null) {
+                continue;
+            }
+
+            Class targetClass = ClassUtils.getUserClass(beanType);
+
+            if (targetClass.isInterface()) {
+                continue;
+            }
+
+            for (Method method : targetClass.getMethods()) {
+                if (method.getAnnotation(Compensable.class) != null && prepare(targetClass, method)) {
+                    prepared++;
+                }
+            }
+        }
+
+        if (prepared > 0) {
+            logger.info(String.format("prepared %d compensable methods", prepared));
+        }
+    }
+
+    private boolean prepare(Class targetClass, Method method) {
+
+        try {
+            CompensableMethod compensableMethod = CompensableMethod.of(targetClass, method);
+
+            Class declaringType = ReflectionUtils.getDeclaringType(targetClass, method.getName(), method.getParameterTypes());
+            Compensable compensable = compensableMethod.getCompensable();
+
+            if (StringUtils.isNotEmpty(compensable.confirmMethod())) {
+                TerminatorInvoker.prepare(declaringType, compensable.confirmMethod(), method.getParameterTypes());
+            }
+
+            if (StringUtils.isNotEmpty(compensable.cancelMethod())) {
+                TerminatorInvoker.prepare(declaringType, compensable.cancelMethod(), method.getParameterTypes());
+            }
+
+            return true;
+        } catch (RuntimeException e) {
+            // resolved again on first use, where a failure surfaces as before
+            logger.warn(String.format("compensable method %s.%s not prepared", targetClass.getName(), method.getName()), e);
+            return false;
+        }
+    }
+}
@@ -6,8 +6,6 @@ import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
-import java.util.Map;
-
 /**   实现 ApplicationContextAware 接口 ，保存自己的上下文
  * Created by changmingxie on 11/22/15.
  */
@@ -23,8 +21,8 @@ public class SpringBeanFactory implements BeanFactory, ApplicationContextAware {
 
     @Override
     public boolean isFactoryOf(Class clazz) {
-        Map map = this.applicationContext.getBeansOfType(clazz);
-        return map.size() > 0;
+        // bean names only, getBeansOfType would create every matching bean
+        return this.applicationContext.getBeanNamesForType(clazz).length > 0;
     }
 
     @Override
@@ -2,21 +2,28 @@ package org.mengyun.tcctransaction.spring.support;
 
 import org.mengyun.tcctransaction.TransactionManager;
 import org.mengyun.tcctransaction.TransactionRepository;
+import org.mengyun.tcctransaction.api.TransactionIdGenerator;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recover.ExtendedRecoverConfig;
 import org.mengyun.tcctransaction.recover.RecoverConfig;
+import org.mengyun.tcctransaction.recover.TransactionRecovery;
 import org.mengyun.tcctransaction.repository.CachableTransactionRepository;
+import org.mengyun.tcctransaction.repository.JdbcTransactionRepository;
 import org.mengyun.tcctransaction.spring.recover.DefaultRecoverConfig;
+import org.mengyun.tcctransaction.support.InstrumentedThreadPoolExecutor;
 import org.mengyun.tcctransaction.support.TransactionConfigurator;
+import org.mengyun.tcctransaction.utils.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * Created by changmingxie on 11/11/15.
  */
 public class SpringTransactionConfigurator implements TransactionConfigurator {
 
-    private static volatile ExecutorService executorService = null;
+    private InstrumentedThreadPoolExecutor executorService;
 
     @Autowired
     private TransactionRepository transactionRepository;
@@ -27,29 +34,102 @@ public class SpringTransactionConfigurator implements TransactionConfigurator {
 
     private TransactionManager transactionManager;
 
+    private InstrumentedThreadPoolExecutor participantExecutorService;
+
+    private String domain;
+
+    private TransactionIdGenerator idGenerator;
+
+    private TransactionRecovery transactionRecovery;
+
     public void init() {
+
+        if (idGenerator != null) {
+            TransactionXid.setIdGenerator(idGenerator);
+        }
+
+        if (!(recoverConfig instanceof ExtendedRecoverConfig)) {
+            recoverConfig = new DefaultExtendedRecoverConfig(recoverConfig);
+        }
+
+        ExtendedRecoverConfig extendedRecoverConfig = (ExtendedRecoverConfig) recoverConfig;
+
         transactionManager = new TransactionManager();
         transactionManager.setTransactionRepository(transactionRepository);
 
-        if (executorService == null) {
+        // one pool per configurator, a slow participant of one domain cannot starve the async confirm/cancel of another
+        executorService = new InstrumentedThreadPoolExecutor(poolName("tcc-async-terminate"),
+                extendedRecoverConfig.getAsyncTerminateThreadPoolSize(), extendedRecoverConfig.getAsyncTerminateQueueCapacity(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executorService.registerMBean();
 
-            synchronized (SpringTransactionConfigurator.class) {
+        transactionManager.setExecutorService(executorService);
 
-                if (executorService == null) {
-//                    executorService = new ThreadPoolExecutor(recoverConfig.getAsyncTerminateThreadPoolSize(),
-//                            recoverConfig.getAsyncTerminateThreadPoolSize(),
-//                            0L, TimeUnit.SECONDS,
-//                            new SynchronousQueue<Runnable>());
-                    executorService = Executors.newCachedThreadPool();
-                }
-            }
-        }
+        participantExecutorService = new InstrumentedThreadPoolExecutor(poolName("tcc-participant"),
+                extendedRecoverConfig.getParallelTerminateThreadPoolSize(), 0, new ThreadPoolExecutor.CallerRunsPolicy());
+        participantExecutorService.registerMBean();
 
-        transactionManager.setExecutorService(executorService);
+        transactionManager.setParticipantExecutorService(participantExecutorService);
+        transactionManager.setParallelConfirm(extendedRecoverConfig.isParallelConfirm());
+        transactionManager.setParallelCancel(extendedRecoverConfig.isParallelCancel());
+        transactionManager.setParallelTerminateTimeout(extendedRecoverConfig.getParallelTerminateTimeout());
 
         if (transactionRepository instanceof CachableTransactionRepository) {
-            ((CachableTransactionRepository) transactionRepository).setExpireDuration(recoverConfig.getRecoverDuration());
+            CachableTransactionRepository cachableTransactionRepository = (CachableTransactionRepository) transactionRepository;
+            cachableTransactionRepository.setExpireDuration(extendedRecoverConfig.getRecoverDuration());
+            cachableTransactionRepository.setCacheMaximumSize(extendedRecoverConfig.getTransactionCacheMaximumSize());
+            cachableTransactionRepository.setCacheMaximumWeight(extendedRecoverConfig.getTransactionCacheMaximumWeight());
+        }
+    }
+
+    public void destroy() {
+        // unregistered now, a refreshed context registers pools of the same names before these terminate
+        executorService.shutdown();
+        executorService.unregisterMBean();
+        participantExecutorService.shutdown();
+        participantExecutorService.unregisterMBean();
+
+        if (transactionRecovery != null) {
+            transactionRecovery.close();
+        }
+    }
+
+    /**
+     * Isolates the thread pools of this configurator from those of other domains in the same JVM,
+     * defaults to the domain of a JdbcTransactionRepository.
+     */
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Replaces the generator of transaction ids, random UUIDs by default, e.g. by a TimeOrderedTransactionIdGenerator.
+     * The generator is shared by all the configurators of the JVM.
+     */
+    public void setIdGenerator(TransactionIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    /**
+     * @param transactionRecovery closed with this configurator, shutting its recover pool down
+     */
+    public void setTransactionRecovery(TransactionRecovery transactionRecovery) {
+        this.transactionRecovery = transactionRecovery;
+    }
+
+    public InstrumentedThreadPoolExecutor getExecutorService() {
+        return executorService;
+    }
+
+    private String poolName(String prefix) {
+
+        String poolDomain = domain;
+
+        if (!StringUtils.isNotEmpty(poolDomain) && transactionRepository instanceof JdbcTransactionRepository) {
+            poolDomain = ((JdbcTransactionRepository) transactionRepository).getDomain();
         }
+
+        return StringUtils.isNotEmpty(poolDomain) ? prefix + "-" + poolDomain : prefix;
     }
 
     @Override
@@ -66,4 +146,46 @@ public class SpringTransactionConfigurator implements TransactionConfigurator {
     public RecoverConfig getRecoverConfig() {
         return recoverConfig;
     }
+
+    /**
+     * A RecoverConfig written before ExtendedRecoverConfig, completed with the defaults of DefaultRecoverConfig.
+     */
+    private static class DefaultExtendedRecoverConfig extends DefaultRecoverConfig {
+
+        private final RecoverConfig delegate;
+
+        DefaultExtendedRecoverConfig(RecoverConfig delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int getMaxRetryCount() {
+            return delegate.getMaxRetryCount();
+        }
+
+        @Override
+        public int getRecoverDuration() {
+            return delegate.getRecoverDuration();
+        }
+
+        @Override
+        public String getCronExpression() {
+            return delegate.getCronExpression();
+        }
+
+        @Override
+        public Set<Class<? extends Exception>> getDelayCancelExceptions() {
+            return delegate.getDelayCancelExceptions();
+        }
+
+        @Override
+        public void setDelayCancelExceptions(Set<Class<? extends Exception>> delayCancelExceptions) {
+            delegate.setDelayCancelExceptions(delayCancelExceptions);
+        }
+
+        @Override
+        public int getAsyncTerminateThreadPoolSize() {
+            return delegate.getAsyncTerminateThreadPoolSize();
+        }
+    }
 }
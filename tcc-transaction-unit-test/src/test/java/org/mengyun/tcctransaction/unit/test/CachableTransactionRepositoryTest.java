@@ -0,0 +1,194 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.CachableTransactionRepository;
+import org.mengyun.tcctransaction.repository.cache.LocalInvalidationChannel;
+
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Two nodes sharing a store, each caching what it read: the version check and the invalidation channel
+ * must keep them from working on stale transactions.
+ */
+public class CachableTransactionRepositoryTest {
+
+    private final Map<Xid, Long> store = new ConcurrentHashMap<Xid, Long>();
+
+    @Test
+    public void staleCacheWithoutCheck() {
+
+        InMemoryTransactionRepository node1 = new InMemoryTransactionRepository();
+        InMemoryTransactionRepository node2 = new InMemoryTransactionRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        node1.create(transaction);
+
+        Transaction cached = node2.findByXid(transaction.getTransactionXid());
+        node1.update(transaction);
+
+        // served from the cache of node2, the update fails on its version
+        Assert.assertSame(cached, node2.findByXid(transaction.getTransactionXid()));
+
+        try {
+            node2.update(cached);
+            Assert.fail();
+        } catch (OptimisticLockException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void versionCheck() {
+
+        InMemoryTransactionRepository node1 = new InMemoryTransactionRepository();
+        InMemoryTransactionRepository node2 = new InMemoryTransactionRepository();
+        node1.setVersionCheckEnabled(true);
+        node2.setVersionCheckEnabled(true);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        node1.create(transaction);
+        TransactionXid xid = transaction.getTransactionXid();
+
+        Transaction cached = node2.findByXid(xid);
+        int loads = node2.loads;
+
+        // unchanged, served from the cache
+        Assert.assertSame(cached, node2.findByXid(xid));
+        Assert.assertEquals(loads, node2.loads);
+
+        node1.update(transaction);
+
+        Transaction reloaded = node2.findByXid(xid);
+        Assert.assertNotSame(cached, reloaded);
+        Assert.assertEquals(transaction.getVersion(), reloaded.getVersion());
+
+        reloaded.changeStatus(TransactionStatus.CONFIRMING);
+        node2.update(reloaded);
+        Assert.assertEquals(reloaded.getVersion(), node1.findByXid(xid).getVersion());
+
+        node2.delete(reloaded);
+        Assert.assertNull(node1.findByXid(xid));
+    }
+
+    @Test
+    public void invalidation() {
+
+        LocalInvalidationChannel channel = new LocalInvalidationChannel();
+
+        InMemoryTransactionRepository node1 = new InMemoryTransactionRepository();
+        InMemoryTransactionRepository node2 = new InMemoryTransactionRepository();
+        node1.setInvalidationChannel(channel);
+        node2.setInvalidationChannel(channel.join());
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        node1.create(transaction);
+        TransactionXid xid = transaction.getTransactionXid();
+
+        node2.findByXid(xid);
+        int loads = node2.loads;
+
+        node1.update(transaction);
+
+        Assert.assertEquals(transaction.getVersion(), node2.findByXid(xid).getVersion());
+        Assert.assertEquals(loads + 1, node2.loads);
+
+        // a node does not drop its own writes
+        int ownLoads = node1.loads;
+        node1.findByXid(xid);
+        Assert.assertEquals(ownLoads, node1.loads);
+
+        node1.delete(transaction);
+        Assert.assertNull(node2.findByXid(xid));
+    }
+
+    @Test
+    public void scanWithoutPaging() {
+
+        InMemoryTransactionRepository repository = new InMemoryTransactionRepository();
+
+        for (int i = 0; i < 10; i++) {
+            repository.create(new Transaction(TransactionType.ROOT));
+        }
+
+        // a repository not paging its storage returns everything at once
+        Page<Transaction> page = repository.findAllUnmodifiedSince(new Date(System.currentTimeMillis() + 60 * 1000L), null, 3);
+
+        Assert.assertEquals(10, page.getData().size());
+        Assert.assertNull(page.getNextOffset());
+    }
+
+    private class InMemoryTransactionRepository extends CachableTransactionRepository {
+
+        int loads;
+
+        @Override
+        protected int doCreate(Transaction transaction) {
+            store.put(transaction.getXid(), transaction.getVersion());
+            return 1;
+        }
+
+        @Override
+        protected int doUpdate(Transaction transaction) {
+
+            Long version = store.get(transaction.getXid());
+
+            if (version == null || version != transaction.getVersion()) {
+                return 0;
+            }
+
+            transaction.updateVersion();
+            store.put(transaction.getXid(), transaction.getVersion());
+            return 1;
+        }
+
+        @Override
+        protected int doDelete(Transaction transaction) {
+            return store.remove(transaction.getXid()) != null ? 1 : 0;
+        }
+
+        @Override
+        protected Transaction doFindOne(Xid xid) {
+
+            loads++;
+
+            Long version = store.get(xid);
+
+            if (version == null) {
+                return null;
+            }
+
+            Transaction transaction = new Transaction((TransactionXid) xid, TransactionStatus.TRYING, TransactionType.ROOT, new Date());
+            transaction.setVersion(version);
+            return transaction;
+        }
+
+        @Override
+        protected long doFindVersion(Xid xid) {
+            Long version = store.get(xid);
+            return version == null ? VERSION_NOT_FOUND : version;
+        }
+
+        @Override
+        protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
+
+            List<Transaction> transactions = new ArrayList<Transaction>();
+
+            for (Xid xid : store.keySet()) {
+                transactions.add(doFindOne(xid));
+            }
+            return transactions;
+        }
+    }
+}
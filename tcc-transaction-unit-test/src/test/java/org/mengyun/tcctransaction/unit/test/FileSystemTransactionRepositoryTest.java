@@ -0,0 +1,242 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.FileSystemTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+
+import javax.transaction.xa.Xid;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs against a temporary directory, no spring context needed.
+ */
+public class FileSystemTransactionRepositoryTest {
+
+    private File rootPath;
+
+    @Before
+    public void before() throws IOException {
+        rootPath = File.createTempFile("tcc-fs", "");
+        rootPath.delete();
+    }
+
+    @After
+    public void after() {
+
+        File[] files = rootPath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        rootPath.delete();
+    }
+
+    @Test
+    public void pagesOverEveryTransactionOnce() {
+
+        FileSystemTransactionRepository repository = open();
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 50; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        for (int i = 0; i < 50; i += 5) {
+            repository.delete(transactions.get(i));
+        }
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        FileSystemTransactionRepository reader = open();
+
+        Set<Xid> paged = new HashSet<Xid>();
+        String offset = null;
+        int pages = 0;
+
+        do {
+            Page<Transaction> page = reader.findAllUnmodifiedSince(future, offset, 7);
+            Assert.assertTrue(page.getData().size() <= 7);
+            for (Transaction transaction : page.getData()) {
+                Assert.assertTrue(paged.add(transaction.getXid()));
+            }
+            offset = page.getNextOffset();
+            pages++;
+        } while (offset != null);
+
+        Assert.assertEquals(40, paged.size());
+        Assert.assertEquals(6, pages);
+
+        // nothing is older than the past
+        Assert.assertTrue(reader.findAllUnmodifiedSince(new Date(0), null, 7).getData().isEmpty());
+    }
+
+    @Test
+    public void appendedParticipantsUpdateTheHeader() throws InterruptedException, IOException {
+
+        FileSystemTransactionRepository repository = open();
+        repository.setParticipantLogEnabled(true);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        Date created = transaction.getLastUpdateTime();
+        File file = new File(rootPath, XidKeyFormat.HEX.encode(transaction.getXid()));
+        byte[] content = read(file);
+        Thread.sleep(10);
+
+        repository.appendParticipant(transaction, new Participant());
+        repository.appendParticipant(transaction, new Participant());
+
+        // only the version fields of the transaction file are written
+        byte[] appended = read(file);
+        int end = TransactionSerializer.VERSION_FIELDS_OFFSET + TransactionSerializer.serializeVersionFields(transaction).length;
+        Assert.assertEquals(content.length, appended.length);
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, end, content.length), Arrays.copyOfRange(appended, end, appended.length));
+
+        Transaction stored = open().findByXid(transaction.getTransactionXid());
+
+        Assert.assertEquals(2, stored.getParticipants().size());
+        Assert.assertEquals(transaction.getVersion(), stored.getVersion());
+        Assert.assertEquals(transaction.getLastUpdateTime(), stored.getLastUpdateTime());
+        Assert.assertTrue(stored.getLastUpdateTime().after(created));
+
+        stored.changeStatus(TransactionStatus.CONFIRMING);
+        open().updateStatus(stored);
+        open().delete(stored);
+
+        Assert.assertEquals(0, rootPath.list().length);
+    }
+
+    @Test
+    public void updateStatusWritesTheHeaderOnly() throws IOException {
+
+        FileSystemTransactionRepository repository = open();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        File file = new File(rootPath, XidKeyFormat.HEX.encode(transaction.getXid()));
+        byte[] created = read(file);
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        repository.updateStatus(transaction);
+
+        byte[] updated = read(file);
+
+        // the content after the status fields is left as it was
+        Assert.assertEquals(created.length, updated.length);
+        int end = TransactionSerializer.STATUS_FIELDS_OFFSET + TransactionSerializer.serializeStatusFields(transaction).length;
+        Assert.assertArrayEquals(Arrays.copyOfRange(created, end, created.length), Arrays.copyOfRange(updated, end, updated.length));
+
+        Transaction stored = open().findByXid(transaction.getTransactionXid());
+
+        Assert.assertEquals(TransactionStatus.CONFIRMING, stored.getStatus());
+        Assert.assertEquals(transaction.getVersion(), stored.getVersion());
+        Assert.assertEquals(transaction.getLastUpdateTime(), stored.getLastUpdateTime());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void updateStatusOfLegacyRecords() throws IOException {
+
+        JdkSerializationSerializer serializer = new JdkSerializationSerializer();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        // a record of the map format written before the envelope
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("STATUS", transaction.getStatus().getId());
+        map.put("RETRIED_COUNT", transaction.getRetriedCount());
+        map.put("LAST_UPDATE_TIME", transaction.getLastUpdateTime());
+        map.put("VERSION", transaction.getVersion());
+        map.put("CONTENT", serializer.serialize(transaction));
+
+        rootPath.mkdir();
+
+        File file = new File(rootPath, XidKeyFormat.HEX.encode(transaction.getXid()));
+        write(file, serializer.serialize(map));
+
+        FileSystemTransactionRepository repository = open();
+        repository.setEnvelopeFormat(false);
+
+        Transaction stored = repository.findByXid(transaction.getTransactionXid());
+        stored.changeStatus(TransactionStatus.CANCELLING);
+        repository.updateStatus(stored);
+
+        // still readable by nodes not knowing the envelope
+        Map<String, Object> updatedMap = (Map<String, Object>) serializer.deserialize(read(file));
+        Transaction content = (Transaction) serializer.deserialize((byte[]) updatedMap.get("CONTENT"));
+        Assert.assertEquals(TransactionStatus.CANCELLING, content.getStatus());
+        Assert.assertEquals(stored.getVersion(), updatedMap.get("VERSION"));
+
+        Transaction updated = open().findByXid(transaction.getTransactionXid());
+
+        Assert.assertEquals(TransactionStatus.CANCELLING, updated.getStatus());
+        Assert.assertEquals(stored.getVersion(), updated.getVersion());
+
+        // converted to an envelope by a node writing them
+        repository = open();
+        repository.updateStatus(updated);
+
+        Assert.assertEquals('T', read(file)[0]);
+        Assert.assertEquals(updated.getVersion(), open().findByXid(transaction.getTransactionXid()).getVersion());
+    }
+
+    private static byte[] read(File file) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            byte[] content = new byte[(int) file.length()];
+            new DataInputStream(in).readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private FileSystemTransactionRepository open() {
+        FileSystemTransactionRepository repository = new FileSystemTransactionRepository();
+        repository.setRootPath(rootPath.getPath());
+        repository.setKeyFormat(XidKeyFormat.HEX);
+        repository.setEnvelopeFormat(true);
+        return repository;
+    }
+}
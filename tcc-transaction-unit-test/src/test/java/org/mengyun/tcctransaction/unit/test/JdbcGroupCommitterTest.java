@@ -0,0 +1,314 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.JdbcGroupCommitter;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs against an in-memory fake of a JDBC driver holding a table of versions, no database needed.
+ */
+public class JdbcGroupCommitterTest {
+
+    private static final String INSERT_SQL = "INSERT INTO TCC_VERSION (ID, VERSION) VALUES (?, ?)";
+
+    private static final String UPDATE_SQL = "UPDATE TCC_VERSION SET VERSION = ? WHERE ID = ? AND VERSION = ?";
+
+    private final FakeDatabase database = new FakeDatabase();
+
+    private JdbcGroupCommitter groupCommitter;
+
+    @After
+    public void after() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+    }
+
+    @Test
+    public void optimisticLockMiss() throws Exception {
+
+        database.reportRowCounts = true;
+        groupCommitter = new JdbcGroupCommitter(database.getDataSource(), 200, 100);
+
+        assertUpdates();
+
+        Assert.assertTrue(database.batchCount.get() > 0);
+    }
+
+    @Test
+    public void optimisticLockMissWithoutRowCounts() throws Exception {
+
+        // e.g. MySQL with rewriteBatchedStatements, every batched statement reports SUCCESS_NO_INFO
+        database.reportRowCounts = false;
+        groupCommitter = new JdbcGroupCommitter(database.getDataSource(), 200, 100);
+
+        assertUpdates();
+
+        // once known, updates are executed one by one, the outcome stays the same
+        assertUpdates();
+    }
+
+    @Test
+    public void closedCommitterRejectsStatements() {
+
+        groupCommitter = new JdbcGroupCommitter(database.getDataSource(), 200, 100);
+        groupCommitter.close();
+
+        try {
+            groupCommitter.execute(new VersionOperation(INSERT_SQL, "closed", 1, 0));
+            Assert.fail();
+        } catch (TransactionIOException e) {
+            // expected
+        }
+
+        Assert.assertTrue(database.versions.isEmpty());
+    }
+
+    @Test
+    public void interruptedCallerStopsWaiting() throws Exception {
+
+        // the flush hangs on getting a connection
+        database.connectionGate = new CountDownLatch(1);
+        groupCommitter = new JdbcGroupCommitter(database.getDataSource(), 10, 100);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    groupCommitter.execute(new VersionOperation(INSERT_SQL, "interrupted", 1, 0));
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        caller.start();
+
+        Thread.sleep(100);
+        caller.interrupt();
+        caller.join(5000);
+
+        Assert.assertFalse(caller.isAlive());
+        Assert.assertTrue(failure.get() instanceof TransactionIOException);
+
+        database.connectionGate.countDown();
+    }
+
+    private void assertUpdates() throws Exception {
+
+        String hit = "hit-" + database.versions.size();
+        String miss = "miss-" + database.versions.size();
+
+        int[] inserted = executeConcurrently(new VersionOperation(INSERT_SQL, hit, 1, 0), new VersionOperation(INSERT_SQL, miss, 1, 0));
+
+        Assert.assertEquals(1, inserted[0]);
+        Assert.assertEquals(1, inserted[1]);
+
+        int[] updated = executeConcurrently(new VersionOperation(UPDATE_SQL, hit, 2, 1), new VersionOperation(UPDATE_SQL, miss, 6, 5));
+
+        Assert.assertEquals(1, updated[0]);
+        Assert.assertEquals(0, updated[1]);
+
+        Assert.assertEquals(Integer.valueOf(2), database.versions.get(hit));
+        Assert.assertEquals(Integer.valueOf(1), database.versions.get(miss));
+    }
+
+    private int[] executeConcurrently(final JdbcGroupCommitter.Operation... operations) throws Exception {
+
+        final int[] results = new int[operations.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < operations.length; i++) {
+
+            final int index = i;
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    results[index] = groupCommitter.execute(operations[index]);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return results;
+    }
+
+    private static class VersionOperation extends JdbcGroupCommitter.Operation {
+
+        private final String id;
+
+        private final int version;
+
+        private final int expectedVersion;
+
+        VersionOperation(String sql, String id, int version, int expectedVersion) {
+            super(sql, id);
+            this.id = id;
+            this.version = version;
+            this.expectedVersion = expectedVersion;
+        }
+
+        @Override
+        protected void bind(PreparedStatement stmt) throws SQLException {
+            if (getSql().startsWith("INSERT")) {
+                stmt.setString(1, id);
+                stmt.setInt(2, version);
+            } else {
+                stmt.setInt(1, version);
+                stmt.setString(2, id);
+                stmt.setInt(3, expectedVersion);
+            }
+        }
+    }
+
+    /**
+     * Understands the two statements of the test. Writes are visible to other connections once committed.
+     */
+    private static class FakeDatabase {
+
+        final Map<String, Integer> versions = new ConcurrentHashMap<String, Integer>();
+
+        final AtomicInteger batchCount = new AtomicInteger();
+
+        volatile boolean reportRowCounts;
+
+        volatile CountDownLatch connectionGate;
+
+        DataSource getDataSource() {
+            return proxy(DataSource.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+                    if (method.getName().equals("getConnection")) {
+                        if (connectionGate != null) {
+                            connectionGate.await();
+                        }
+                        return newConnection();
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private Connection newConnection() {
+
+            final Map<String, Integer> uncommitted = new HashMap<String, Integer>();
+
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement")) {
+                        return newStatement((String) args[0], uncommitted);
+                    } else if (name.equals("commit")) {
+                        versions.putAll(uncommitted);
+                        uncommitted.clear();
+                    } else if (name.equals("rollback")) {
+                        uncommitted.clear();
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private PreparedStatement newStatement(final String sql, final Map<String, Integer> uncommitted) {
+
+            final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+            final List<Map<Integer, Object>> batch = new ArrayList<Map<Integer, Object>>();
+
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+                        parameters.put((Integer) args[0], args[1]);
+                    } else if (name.equals("addBatch")) {
+                        batch.add(new HashMap<Integer, Object>(parameters));
+                    } else if (name.equals("executeUpdate")) {
+                        return apply(parameters);
+                    } else if (name.equals("executeBatch")) {
+                        batchCount.incrementAndGet();
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < counts.length; i++) {
+                            int count = apply(batch.get(i));
+                            counts[i] = reportRowCounts ? count : Statement.SUCCESS_NO_INFO;
+                        }
+                        batch.clear();
+                        return counts;
+                    }
+                    return defaultValue(method);
+                }
+
+                private int apply(Map<Integer, Object> parameters) throws SQLException {
+
+                    if (sql.equals(INSERT_SQL)) {
+                        String id = (String) parameters.get(1);
+                        if (uncommitted.containsKey(id) || versions.containsKey(id)) {
+                            throw new SQLException("duplicate key " + id);
+                        }
+                        uncommitted.put(id, (Integer) parameters.get(2));
+                        return 1;
+                    }
+
+                    String id = (String) parameters.get(2);
+                    Integer current = uncommitted.containsKey(id) ? uncommitted.get(id) : versions.get(id);
+                    if (current == null || !current.equals(parameters.get(3))) {
+                        return 0;
+                    }
+                    uncommitted.put(id, (Integer) parameters.get(1));
+                    return 1;
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(JdbcGroupCommitterTest.class.getClassLoader(), new Class[]{type}, handler);
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+}
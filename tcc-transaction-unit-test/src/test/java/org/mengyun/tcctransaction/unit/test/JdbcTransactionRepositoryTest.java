@@ -0,0 +1,193 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.JdbcTransactionRepository;
+
+import javax.transaction.xa.Xid;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs against an in-memory H2 database in MySQL mode, with the tables of dbscripts/db.sql.
+ */
+public class JdbcTransactionRepositoryTest {
+
+    private JdbcDataSource dataSource;
+
+    private List<JdbcTransactionRepository> repositories = new ArrayList<JdbcTransactionRepository>();
+
+    @Before
+    public void before() throws SQLException {
+
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:tcc-" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+
+        execute("CREATE TABLE TCC_TRANSACTION_UT (TRANSACTION_ID INT NOT NULL AUTO_INCREMENT PRIMARY KEY, DOMAIN VARCHAR(100)," +
+                " GLOBAL_TX_ID VARBINARY(32) NOT NULL, BRANCH_QUALIFIER VARBINARY(32) NOT NULL, CONTENT VARBINARY(8000)," +
+                " STATUS INT, TRANSACTION_TYPE INT, RETRIED_COUNT INT, CREATE_TIME DATETIME, LAST_UPDATE_TIME DATETIME, VERSION INT," +
+                " UNIQUE (GLOBAL_TX_ID, BRANCH_QUALIFIER))");
+
+        execute("CREATE TABLE TCC_TRANSACTION_PARTICIPANT_UT (PARTICIPANT_ID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, DOMAIN VARCHAR(100)," +
+                " GLOBAL_TX_ID VARBINARY(32) NOT NULL, BRANCH_QUALIFIER VARBINARY(32) NOT NULL, CONTENT VARBINARY(8000), CREATE_TIME DATETIME)");
+    }
+
+    @After
+    public void after() throws SQLException {
+
+        for (JdbcTransactionRepository repository : repositories) {
+            repository.close();
+        }
+
+        execute("SHUTDOWN");
+    }
+
+    @Test
+    public void keysetPaging() {
+
+        JdbcTransactionRepository repository = open(false);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        long time = System.currentTimeMillis() - 60 * 1000L;
+
+        for (int i = 0; i < 50; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            // groups of ten sharing their last update time, ordered by id within a group
+            transaction.setLastUpdateTime(new Date(time + i / 10 * 1000L));
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        for (int i = 0; i < 50; i += 5) {
+            repository.delete(transactions.get(i));
+        }
+
+        JdbcTransactionRepository reader = open(false);
+
+        Set<Xid> paged = new HashSet<Xid>();
+        Date previous = new Date(0);
+        String offset = null;
+
+        do {
+            Page<Transaction> page = reader.findAllUnmodifiedSince(new Date(time + 3 * 1000L), offset, 7);
+
+            Assert.assertTrue(page.getData().size() <= 7);
+
+            for (Transaction transaction : page.getData()) {
+                Assert.assertTrue(paged.add(transaction.getXid()));
+                Assert.assertFalse(transaction.getLastUpdateTime().before(previous));
+                previous = transaction.getLastUpdateTime();
+            }
+
+            offset = page.getNextOffset();
+        } while (offset != null);
+
+        // the three groups before the date, less the deleted ones
+        Assert.assertEquals(24, paged.size());
+    }
+
+    @Test
+    public void participantLog() throws SQLException {
+        appendAndDelete(false);
+    }
+
+    @Test
+    public void participantLogWithGroupCommit() throws SQLException {
+        appendAndDelete(true);
+    }
+
+    private void appendAndDelete(boolean groupCommitEnabled) throws SQLException {
+
+        JdbcTransactionRepository repository = open(groupCommitEnabled);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+        TransactionXid xid = transaction.getTransactionXid();
+
+        Transaction stale = open(groupCommitEnabled).findByXid(xid);
+
+        repository.appendParticipant(transaction, new Participant());
+        repository.appendParticipant(transaction, new Participant());
+
+        // the header is not touched, so the participant is not written either
+        try {
+            open(groupCommitEnabled).appendParticipant(stale, new Participant());
+            Assert.fail();
+        } catch (OptimisticLockException e) {
+            // expected
+        }
+
+        Assert.assertEquals(1, stale.getVersion());
+        Assert.assertEquals(2, count("TCC_TRANSACTION_PARTICIPANT_UT"));
+
+        Transaction stored = open(groupCommitEnabled).findByXid(xid);
+
+        Assert.assertEquals(2, stored.getParticipants().size());
+        Assert.assertEquals(transaction.getVersion(), stored.getVersion());
+
+        stored.changeStatus(TransactionStatus.CONFIRMING);
+        repository.updateStatus(stored);
+        repository.delete(stored);
+
+        Assert.assertEquals(0, count("TCC_TRANSACTION_UT"));
+        Assert.assertEquals(0, count("TCC_TRANSACTION_PARTICIPANT_UT"));
+    }
+
+    private JdbcTransactionRepository open(boolean groupCommitEnabled) {
+        JdbcTransactionRepository repository = new JdbcTransactionRepository();
+        repository.setDataSource(dataSource);
+        repository.setDomain("UT");
+        repository.setTbSuffix("_UT");
+        repository.setParticipantLogEnabled(true);
+        repository.setGroupCommitEnabled(groupCommitEnabled);
+        repositories.add(repository);
+        return repository;
+    }
+
+    private void execute(String sql) throws SQLException {
+
+        Connection connection = dataSource.getConnection();
+
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute(sql);
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private int count(String tableName) throws SQLException {
+
+        Connection connection = dataSource.getConnection();
+
+        try {
+            Statement stmt = connection.createStatement();
+            ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM " + tableName);
+            resultSet.next();
+            int count = resultSet.getInt(1);
+            stmt.close();
+            return count;
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Terminator;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.RandomTransactionIdGenerator;
+import org.mengyun.tcctransaction.api.TimeOrderedTransactionIdGenerator;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionIdGenerator;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.interceptor.CompensableMethod;
+import org.mengyun.tcctransaction.repository.cache.AbstractTransactionCache;
+import org.mengyun.tcctransaction.repository.cache.HeapTransactionCache;
+import org.mengyun.tcctransaction.repository.cache.OffHeapTransactionCache;
+import org.mengyun.tcctransaction.repository.cache.TransactionCacheStats;
+import org.mengyun.tcctransaction.repository.helper.JdbcTransactionSql;
+import org.mengyun.tcctransaction.serializer.BinaryTransactionSerializer;
+import org.mengyun.tcctransaction.serializer.CompressingObjectSerializer;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.KryoBufferPoolSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.KryoThreadLocalSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+import org.mengyun.tcctransaction.support.FactoryBuilder;
+import org.mengyun.tcctransaction.utils.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+
+/**
+ * Micro benchmarks of hot paths that do not need a database or a spring context.
+ * Ignored by the build, remove the @Ignore to run them.
+ */
+@Ignore("benchmarks, run on demand")
+public class MicroBenchmarkTest {
+
+    private static final int ITERATIONS = 1000000;
+
+    @Test
+    public void findSqlBenchmark() {
+
+        String tableName = "TCC_TRANSACTION_UT";
+        String domain = "UT";
+
+        JdbcTransactionSql sql = new JdbcTransactionSql(tableName, "TCC_TRANSACTION_PARTICIPANT_UT", domain);
+
+        Set<String> legacyShapes = new HashSet<String>();
+        Set<String> cachedShapes = new HashSet<String>();
+
+        long blackhole = 0;
+
+        long currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            String statement = legacyFindSql(tableName, domain, i % 20 + 1);
+            blackhole += statement.length();
+            if (i < 20) {
+                legacyShapes.add(statement);
+            }
+        }
+
+        long legacyTime = System.currentTimeMillis() - currentTime;
+
+        currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            String statement = sql.getFindSql(JdbcTransactionSql.bucketSize(i % 20 + 1));
+            blackhole += statement.length();
+            if (i < 20) {
+                cachedShapes.add(statement);
+            }
+        }
+
+        long cachedTime = System.currentTimeMillis() - currentTime;
+
+        System.out.println(String.format("find sql, legacy: %d ms, %d distinct statements; cached: %d ms, %d distinct statements (%d)",
+                legacyTime, legacyShapes.size(), cachedTime, cachedShapes.size(), blackhole));
+
+        Assert.assertEquals(20, legacyShapes.size());
+        Assert.assertEquals(6, cachedShapes.size());
+    }
+
+    @Test
+    public void transactionSerializerBenchmark() {
+
+        Transaction transaction = sampleTransaction(3);
+
+        Map<String, ObjectSerializer> serializers = new LinkedHashMap<String, ObjectSerializer>();
+        serializers.put("jdk", new JdkSerializationSerializer());
+        serializers.put("kryo pool", new KryoPoolSerializer());
+        serializers.put("kryo thread local", new KryoThreadLocalSerializer());
+        serializers.put("kryo buffer pool", new KryoBufferPoolSerializer());
+        serializers.put("binary", new BinaryTransactionSerializer());
+
+        int iterations = 20000;
+
+        for (Map.Entry<String, ObjectSerializer> entry : serializers.entrySet()) {
+
+            ObjectSerializer serializer = entry.getValue();
+
+            byte[] bytes = serializer.serialize(transaction);
+            Transaction copy = (Transaction) serializer.deserialize(bytes);
+
+            Assert.assertEquals(transaction.getParticipants().size(), copy.getParticipants().size());
+            Assert.assertEquals(transaction.getStatus(), copy.getStatus());
+
+            long blackhole = 0;
+
+            // warm up with the same work
+            for (int i = 0; i < iterations; i++) {
+                blackhole += serializer.serialize(transaction).length;
+            }
+
+            long currentTime = System.currentTimeMillis();
+
+            for (int i = 0; i < iterations; i++) {
+                blackhole += serializer.serialize(transaction).length;
+            }
+
+            long serializeTime = System.currentTimeMillis() - currentTime;
+
+            currentTime = System.currentTimeMillis();
+
+            for (int i = 0; i < iterations; i++) {
+                blackhole += ((Transaction) serializer.deserialize(bytes)).getParticipants().size();
+            }
+
+            long deserializeTime = System.currentTimeMillis() - currentTime;
+
+            System.out.println(String.format("%s serializer: %d bytes, serialize %d ops/s, deserialize %d ops/s (%d)",
+                    entry.getKey(), bytes.length, opsPerSecond(iterations, serializeTime), opsPerSecond(iterations, deserializeTime), blackhole));
+        }
+    }
+
+    @Test
+    public void compressionBenchmark() {
+
+        // a participant carrying order lines, the kind of payload pushing CONTENT towards its column limit
+        Transaction transaction = sampleTransaction(2);
+        List<String> orderLines = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            orderLines.add(String.format("order-line:%d,sku:SKU-%06d,quantity:%d,price:%d.99", i, i * 7, i % 5 + 1, i % 100));
+        }
+        transaction.getAttachments().put("orderLines", orderLines);
+
+        JdkSerializationSerializer plain = new JdkSerializationSerializer();
+
+        CompressingObjectSerializer fast = new CompressingObjectSerializer(plain);
+
+        CompressingObjectSerializer best = new CompressingObjectSerializer(plain);
+        best.setLevel(Deflater.BEST_COMPRESSION);
+
+        Map<String, ObjectSerializer> serializers = new LinkedHashMap<String, ObjectSerializer>();
+        serializers.put("plain", plain);
+        serializers.put("deflate fast", fast);
+        serializers.put("deflate best", best);
+
+        int iterations = 2000;
+
+        for (Map.Entry<String, ObjectSerializer> entry : serializers.entrySet()) {
+
+            ObjectSerializer serializer = entry.getValue();
+
+            byte[] bytes = serializer.serialize(transaction);
+            Transaction copy = (Transaction) serializer.deserialize(bytes);
+            Assert.assertEquals(orderLines, copy.getAttachments().get("orderLines"));
+
+            long blackhole = 0;
+
+            for (int i = 0; i < iterations; i++) {
+                blackhole += serializer.serialize(transaction).length;
+            }
+
+            long currentTime = System.currentTimeMillis();
+
+            for (int i = 0; i < iterations; i++) {
+                blackhole += serializer.serialize(transaction).length;
+            }
+
+            long serializeTime = System.currentTimeMillis() - currentTime;
+
+            currentTime = System.currentTimeMillis();
+
+            for (int i = 0; i < iterations; i++) {
+                blackhole += ((Transaction) serializer.deserialize(bytes)).getParticipants().size();
+            }
+
+            long deserializeTime = System.currentTimeMillis() - currentTime;
+
+            System.out.println(String.format("%s: %d bytes, serialize %d ops/s, deserialize %d ops/s (%d)",
+                    entry.getKey(), bytes.length, opsPerSecond(iterations, serializeTime), opsPerSecond(iterations, deserializeTime), blackhole));
+        }
+    }
+
+    @Test
+    public void compensableMethodBenchmark() throws Exception {
+
+        Class targetClass = SampleServiceImpl.class;
+        Method signatureMethod = SampleService.class.getMethod("record", TransactionContext.class, long.class);
+        Object[] args = new Object[]{new TransactionContext(new TransactionXid(), 1), 1000L};
+
+        CompensableMethod compensableMethod = CompensableMethod.of(targetClass, signatureMethod);
+        Assert.assertNotNull(compensableMethod);
+        Assert.assertSame(args[0], compensableMethod.getTransactionContext(null, args));
+        Assert.assertEquals(SampleService.class, compensableMethod.getDeclaringType());
+        Assert.assertEquals("confirmRecord", compensableMethod.getConfirmMethod().getName());
+
+        long blackhole = 0;
+
+        long currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            // the per call work of the interceptors before the metadata was cached
+            Method method = targetClass.getMethod(signatureMethod.getName(), signatureMethod.getParameterTypes());
+            Compensable compensable = method.getAnnotation(Compensable.class);
+            TransactionContext transactionContext = FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().get(null, method, args);
+            Class declaringType = ReflectionUtils.getDeclaringType(targetClass, method.getName(), method.getParameterTypes());
+            blackhole += compensable.propagation().ordinal() + transactionContext.getStatus() + declaringType.getName().length();
+        }
+
+        long legacyTime = System.currentTimeMillis() - currentTime;
+
+        currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            CompensableMethod cached = CompensableMethod.of(targetClass, signatureMethod);
+            TransactionContext transactionContext = cached.getTransactionContext(null, args);
+            blackhole += cached.getPropagation().ordinal() + transactionContext.getStatus() + cached.getDeclaringType().getName().length();
+        }
+
+        long cachedTime = System.currentTimeMillis() - currentTime;
+
+        System.out.println(String.format("compensable method, legacy: %d ops/s; cached: %d ops/s (%d)",
+                opsPerSecond(ITERATIONS, legacyTime), opsPerSecond(ITERATIONS, cachedTime), blackhole));
+    }
+
+    @Test
+    public void terminatorBenchmark() throws Exception {
+
+        Class[] parameterTypes = new Class[]{TransactionContext.class, long.class};
+        InvocationContext invocationContext = new InvocationContext(SampleServiceImpl.class, "confirmRecord", parameterTypes, null, 1000L);
+        TransactionContext transactionContext = new TransactionContext(new TransactionXid(), 2);
+
+        Terminator terminator = new Terminator();
+        terminator.invoke(transactionContext, invocationContext, Compensable.DefaultTransactionContextEditor.class);
+        Assert.assertSame(transactionContext, invocationContext.getArgs()[0]);
+
+        long blackhole = 0;
+
+        long currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            // the per participant work of Terminator.invoke before the invokers were cached
+            Object target = FactoryBuilder.factoryOf(invocationContext.getTargetClass()).getInstance();
+            Method method = target.getClass().getMethod(invocationContext.getMethodName(), invocationContext.getParameterTypes());
+            FactoryBuilder.factoryOf(Compensable.DefaultTransactionContextEditor.class).getInstance().set(transactionContext, target, method, invocationContext.getArgs());
+            blackhole += (Long) method.invoke(target, invocationContext.getArgs());
+        }
+
+        long legacyTime = System.currentTimeMillis() - currentTime;
+
+        currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += (Long) terminator.invoke(transactionContext, invocationContext, Compensable.DefaultTransactionContextEditor.class);
+        }
+
+        long cachedTime = System.currentTimeMillis() - currentTime;
+
+        System.out.println(String.format("terminator confirm, legacy: %d ops/s; cached: %d ops/s (%d)",
+                opsPerSecond(ITERATIONS, legacyTime), opsPerSecond(ITERATIONS, cachedTime), blackhole));
+    }
+
+    @Test
+    public void transactionIdGeneratorBenchmark() throws Exception {
+
+        Map<String, TransactionIdGenerator> generators = new LinkedHashMap<String, TransactionIdGenerator>();
+        generators.put("random", new RandomTransactionIdGenerator());
+        generators.put("time ordered", new TimeOrderedTransactionIdGenerator());
+
+        int threadCount = 8;
+        final int iterations = 200000;
+
+        for (Map.Entry<String, TransactionIdGenerator> entry : generators.entrySet()) {
+
+            final TransactionIdGenerator generator = entry.getValue();
+
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+
+            List<Thread> threads = new ArrayList<Thread>();
+
+            for (int t = 0; t < threadCount; t++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+
+                        byte[] previous = null;
+
+                        for (int i = 0; i < iterations; i++) {
+                            byte[] id = generator.generate();
+                            if (i % 1000 == 0) {
+                                ids.add(Arrays.toString(id));
+                            }
+                            previous = id;
+                        }
+
+                        ids.add(Arrays.toString(previous));
+                    }
+                }));
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            long currentTime = System.currentTimeMillis();
+
+            startLatch.countDown();
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            long time = System.currentTimeMillis() - currentTime;
+
+            System.out.println(String.format("%s ids, %d threads: %d ids/s", entry.getKey(), threadCount,
+                    opsPerSecond(threadCount * iterations, time)));
+
+            Assert.assertEquals(threadCount * (iterations / 1000 + 1), ids.size());
+        }
+
+        TransactionXid xid = new TransactionXid();
+
+        long blackhole = 0;
+
+        long currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += xid.toString().length();
+        }
+
+        long toStringTime = System.currentTimeMillis() - currentTime;
+
+        System.out.println(String.format("xid toString: %d ops/s (%d)", opsPerSecond(ITERATIONS, toStringTime), blackhole));
+    }
+
+    @Test
+    public void transactionCacheBenchmark() {
+
+        Map<String, AbstractTransactionCache> caches = new LinkedHashMap<String, AbstractTransactionCache>();
+        caches.put("heap", new HeapTransactionCache());
+        caches.put("heap weighted", new HeapTransactionCache());
+        caches.put("off heap", new OffHeapTransactionCache());
+        caches.get("heap weighted").setMaximumWeight(4 * 1024 * 1024);
+        caches.get("off heap").setMaximumWeight(4 * 1024 * 1024);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 2000; i++) {
+            transactions.add(sampleTransaction(3));
+        }
+
+        int iterations = 20000;
+
+        for (Map.Entry<String, AbstractTransactionCache> entry : caches.entrySet()) {
+
+            AbstractTransactionCache cache = entry.getValue();
+
+            long currentTime = System.currentTimeMillis();
+
+            for (Transaction transaction : transactions) {
+                cache.put(transaction);
+            }
+
+            long putTime = System.currentTimeMillis() - currentTime;
+
+            long blackhole = 0;
+
+            currentTime = System.currentTimeMillis();
+
+            for (int i = 0; i < iterations; i++) {
+                Transaction cached = cache.get(transactions.get(transactions.size() - 1 - i % 500).getTransactionXid());
+                blackhole += cached == null ? 0 : cached.getParticipants().size();
+            }
+
+            long getTime = System.currentTimeMillis() - currentTime;
+
+            TransactionCacheStats stats = cache.getStats();
+
+            System.out.println(String.format("%s cache: put %d ops/s, get %d ops/s, %s (%d)", entry.getKey(),
+                    opsPerSecond(transactions.size(), putTime), opsPerSecond(iterations, getTime), stats, blackhole));
+
+            Assert.assertEquals(iterations, stats.getHitCount() + stats.getMissCount());
+        }
+    }
+
+    private static long opsPerSecond(int iterations, long millis) {
+        return iterations * 1000L / Math.max(millis, 1);
+    }
+
+    static Transaction sampleTransaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        Class[] parameterTypes = new Class[]{TransactionContext.class, long.class, BigDecimal.class};
+
+        for (int i = 0; i < participantCount; i++) {
+
+            InvocationContext confirmInvocationContext = new InvocationContext(MicroBenchmarkTest.class, "confirmRecord",
+                    parameterTypes, null, 1000L + i, new BigDecimal("100.50"));
+            InvocationContext cancelInvocationContext = new InvocationContext(MicroBenchmarkTest.class, "cancelRecord",
+                    parameterTypes, null, 1000L + i, new BigDecimal("100.50"));
+
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    confirmInvocationContext, cancelInvocationContext, Compensable.DefaultTransactionContextEditor.class));
+        }
+
+        return transaction;
+    }
+
+    /**
+     * The statement building of JdbcTransactionRepository.doFind before statements were cached.
+     */
+    private static String legacyFindSql(String tableName, String domain, int xidCount) {
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
+        builder.append(domain != null ? ",DOMAIN" : "");
+        builder.append("  FROM " + tableName + " WHERE");
+
+        for (int i = 0; i < xidCount; i++) {
+            builder.append(" ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? ) OR");
+        }
+
+        builder.delete(builder.length() - 2, builder.length());
+
+        builder.append(domain != null ? " AND DOMAIN = ?" : "");
+
+        return builder.toString();
+    }
+
+    public interface SampleService {
+
+        void record(TransactionContext transactionContext, long amount);
+
+        long confirmRecord(TransactionContext transactionContext, long amount);
+    }
+
+    public static class SampleServiceImpl implements SampleService {
+
+        @Override
+        @Compensable(confirmMethod = "confirmRecord", cancelMethod = "cancelRecord")
+        public void record(TransactionContext transactionContext, long amount) {
+        }
+
+        @Override
+        public long confirmRecord(TransactionContext transactionContext, long amount) {
+            return amount;
+        }
+
+        public void cancelRecord(TransactionContext transactionContext, long amount) {
+        }
+    }
+}
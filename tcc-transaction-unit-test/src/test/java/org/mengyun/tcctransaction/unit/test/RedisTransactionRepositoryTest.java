@@ -0,0 +1,195 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.RedisTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs against a redis server on localhost:6379 under a key prefix of its own, skipped when there is none.
+ */
+public class RedisTransactionRepositoryTest {
+
+    private JedisPool jedisPool;
+
+    private String keyPrefix;
+
+    @Before
+    public void before() {
+
+        jedisPool = new JedisPool("127.0.0.1", 6379);
+        keyPrefix = "TCC_UT_" + System.nanoTime() + ":";
+
+        boolean available;
+        Jedis jedis = null;
+
+        try {
+            jedis = jedisPool.getResource();
+            available = "PONG".equals(jedis.ping());
+        } catch (Exception e) {
+            available = false;
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+
+        if (!available) {
+            jedisPool.destroy();
+            jedisPool = null;
+        }
+
+        Assume.assumeTrue(available);
+    }
+
+    @After
+    public void after() {
+
+        if (jedisPool == null) {
+            return;
+        }
+
+        Jedis jedis = jedisPool.getResource();
+
+        try {
+            for (String key : jedis.keys(keyPrefix + "*")) {
+                jedis.del(key);
+            }
+            jedis.del(RedisHelper.getIndexKey(keyPrefix));
+        } finally {
+            jedis.close();
+        }
+
+        jedisPool.destroy();
+    }
+
+    @Test
+    public void pagesOverEveryTransactionOnce() {
+
+        RedisTransactionRepository repository = open();
+        repository.setIndexComplete(true);
+
+        List<Transaction> transactions = createAndDeleteEveryFifth(repository);
+
+        RedisTransactionRepository reader = open();
+        reader.setIndexComplete(true);
+
+        Set<Xid> paged = pageAll(reader);
+
+        Assert.assertEquals(40, paged.size());
+
+        for (int i = 1; i < 50; i++) {
+            TransactionXid xid = transactions.get(i).getTransactionXid();
+            Assert.assertEquals(i % 5 != 0, paged.contains(xid));
+            Assert.assertEquals(i % 5 != 0, reader.findByXid(xid) != null);
+        }
+
+        // nothing is older than the past
+        Assert.assertTrue(reader.findAllUnmodifiedSince(new Date(0), null, 7).getData().isEmpty());
+    }
+
+    @Test
+    public void transactionsMissingFromTheIndex() {
+
+        RedisTransactionRepository repository = open();
+
+        createAndDeleteEveryFifth(repository);
+
+        unindexHalf();
+
+        RedisTransactionRepository reader = open();
+        reader.setIndexComplete(true);
+
+        Assert.assertEquals(20, pageAll(reader).size());
+
+        // the first page of a recovery round adds them back
+        RedisTransactionRepository recovery = open();
+        Assert.assertEquals(40, pageAll(recovery).size());
+        Assert.assertEquals(40, pageAll(reader).size());
+
+        // but no more than once per interval
+        unindexHalf();
+        Assert.assertEquals(20, pageAll(recovery).size());
+
+        recovery.setIndexRebuildInterval(0);
+        Assert.assertEquals(40, pageAll(recovery).size());
+    }
+
+    /**
+     * Drops half of the transactions from the index, as if written by a node not maintaining it.
+     */
+    private void unindexHalf() {
+
+        byte[] indexKey = RedisHelper.getIndexKey(keyPrefix);
+        Jedis jedis = jedisPool.getResource();
+
+        try {
+            for (byte[] member : jedis.zrange(indexKey, 0, 19)) {
+                jedis.zrem(indexKey, member);
+            }
+        } finally {
+            jedis.close();
+        }
+    }
+
+    private List<Transaction> createAndDeleteEveryFifth(RedisTransactionRepository repository) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 50; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        for (int i = 0; i < 50; i += 5) {
+            repository.delete(transactions.get(i));
+        }
+
+        return transactions;
+    }
+
+    private Set<Xid> pageAll(RedisTransactionRepository repository) {
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        Set<Xid> paged = new HashSet<Xid>();
+        String offset = null;
+
+        do {
+            Page<Transaction> page = repository.findAllUnmodifiedSince(future, offset, 7);
+            Assert.assertTrue(page.getData().size() <= 7);
+            for (Transaction transaction : page.getData()) {
+                Assert.assertTrue(paged.add(transaction.getXid()));
+            }
+            offset = page.getNextOffset();
+        } while (offset != null);
+
+        return paged;
+    }
+
+    private RedisTransactionRepository open() {
+        RedisTransactionRepository repository = new RedisTransactionRepository();
+        repository.setJedisPool(jedisPool);
+        repository.setKeyPrefix(keyPrefix);
+        repository.setKeyFormat(XidKeyFormat.HEX);
+        return repository;
+    }
+}
@@ -0,0 +1,161 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.SegmentedLogTransactionRepository;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs against a temporary directory, no spring context needed.
+ */
+public class SegmentedLogTransactionRepositoryTest {
+
+    private File rootPath;
+
+    private SegmentedLogTransactionRepository repository;
+
+    @Before
+    public void before() throws IOException {
+        rootPath = File.createTempFile("tcc-log", "");
+        rootPath.delete();
+        repository = open();
+    }
+
+    @After
+    public void after() {
+        repository.close();
+
+        File[] files = rootPath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        rootPath.delete();
+    }
+
+    @Test
+    public void recoverAndCompact() {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 200; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        for (int i = 0; i < 200; i += 2) {
+            transactions.get(i).changeStatus(TransactionStatus.CONFIRMING);
+            repository.update(transactions.get(i));
+        }
+
+        for (int i = 0; i < 200; i += 4) {
+            repository.delete(transactions.get(i));
+        }
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        repository.close();
+        repository = open();
+
+        Assert.assertEquals(150, repository.findAllUnmodifiedSince(future).size());
+        assertStored(transactions);
+
+        Set<Xid> paged = new HashSet<Xid>();
+        String offset = null;
+
+        do {
+            Page<Transaction> page = repository.findAllUnmodifiedSince(future, offset, 7);
+            Assert.assertTrue(page.getData().size() <= 7);
+            for (Transaction transaction : page.getData()) {
+                paged.add(transaction.getXid());
+            }
+            offset = page.getNextOffset();
+        } while (offset != null);
+
+        Assert.assertEquals(150, paged.size());
+
+        repository.compact();
+
+        repository.close();
+        repository = open();
+
+        Assert.assertEquals(150, repository.findAllUnmodifiedSince(future).size());
+        assertStored(transactions);
+    }
+
+    @Test
+    public void findByXids() {
+
+        List<TransactionXid> xids = new ArrayList<TransactionXid>();
+
+        for (int i = 0; i < 20; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            xids.add((TransactionXid) transaction.getXid());
+        }
+
+        repository.delete(repository.findByXid(xids.get(3)));
+
+        repository.close();
+        repository = open();
+
+        // half of them cached, the other half read from the log
+        for (int i = 0; i < 20; i += 2) {
+            repository.findByXid(xids.get(i));
+        }
+
+        List<TransactionXid> wanted = new ArrayList<TransactionXid>(xids);
+        wanted.add(new TransactionXid());
+
+        List<Transaction> found = repository.findByXids(wanted);
+
+        Assert.assertEquals(19, found.size());
+
+        for (int i = 0, j = 0; i < 20; i++) {
+            if (i != 3) {
+                Assert.assertEquals(xids.get(i), found.get(j++).getXid());
+            }
+        }
+    }
+
+    private void assertStored(List<Transaction> transactions) {
+
+        for (int i = 0; i < transactions.size(); i++) {
+
+            Transaction stored = repository.findByXid((TransactionXid) transactions.get(i).getXid());
+
+            if (i % 4 == 0) {
+                Assert.assertNull(stored);
+            } else {
+                Assert.assertNotNull(stored);
+                Assert.assertEquals(transactions.get(i).getVersion(), stored.getVersion());
+                Assert.assertEquals(i % 2 == 0 ? TransactionStatus.CONFIRMING : TransactionStatus.TRYING, stored.getStatus());
+            }
+        }
+    }
+
+    private SegmentedLogTransactionRepository open() {
+        SegmentedLogTransactionRepository repository = new SegmentedLogTransactionRepository();
+        repository.setRootPath(rootPath.getPath());
+        repository.setSegmentSize(16 * 1024);
+        repository.setCompactionInterval(0);
+        return repository;
+    }
+}
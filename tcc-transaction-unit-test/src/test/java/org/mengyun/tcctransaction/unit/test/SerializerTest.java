@@ -0,0 +1,226 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.serializer.BinaryTransactionSerializer;
+import org.mengyun.tcctransaction.serializer.CompressingObjectSerializer;
+import org.mengyun.tcctransaction.serializer.JdkSerializationSerializer;
+import org.mengyun.tcctransaction.serializer.KryoBufferPoolSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Round trips through the serializers, and the records they have to keep reading.
+ */
+public class SerializerTest {
+
+    @Test
+    public void binary() {
+
+        BinaryTransactionSerializer serializer = new BinaryTransactionSerializer();
+
+        Transaction transaction = sampleTransaction(3);
+        assertTransaction(transaction, (Transaction) serializer.deserialize(serializer.serialize(transaction)));
+
+        Participant participant = transaction.getParticipants().get(0);
+        assertParticipant(participant, (Participant) serializer.deserialize(serializer.serialize(participant)));
+
+        // other objects go through the fallback serializer
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put("VERSION", 3L);
+        Assert.assertEquals(header, serializer.deserialize(serializer.serialize(header)));
+    }
+
+    @Test
+    public void binaryReadsRecordsOfItsFallback() {
+
+        JdkSerializationSerializer legacy = new JdkSerializationSerializer();
+        BinaryTransactionSerializer serializer = new BinaryTransactionSerializer(legacy);
+
+        Transaction transaction = sampleTransaction(2);
+
+        assertTransaction(transaction, (Transaction) serializer.deserialize(legacy.serialize(transaction)));
+    }
+
+    @Test
+    public void kryoBufferPool() {
+
+        KryoBufferPoolSerializer<Transaction> serializer = new KryoBufferPoolSerializer<Transaction>();
+
+        Transaction transaction = sampleTransaction(3);
+
+        byte[] bytes = serializer.serialize(transaction);
+        assertTransaction(transaction, serializer.deserialize(bytes));
+
+        // records written to a buffer and to an array read either way
+        assertTransaction(transaction, serializer.deserialize(ByteBuffer.wrap(bytes)));
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 16);
+        buffer.position(16);
+        int length = serializer.serialize(transaction, buffer);
+
+        Assert.assertEquals(bytes.length, length);
+        Assert.assertEquals(16 + length, buffer.position());
+        assertTransaction(transaction, serializer.deserialize(Arrays.copyOfRange(buffer.array(), 16, 16 + length)));
+
+        buffer.position(16);
+        assertTransaction(transaction, serializer.deserialize(buffer));
+    }
+
+    @Test
+    public void compressing() {
+
+        JdkSerializationSerializer plain = new JdkSerializationSerializer();
+        CompressingObjectSerializer<Transaction> serializer = new CompressingObjectSerializer<Transaction>(plain);
+
+        Transaction large = sampleTransaction(2);
+        List<String> orderLines = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            orderLines.add(String.format("order-line:%d,sku:SKU-%06d,quantity:%d", i, i * 7, i % 5 + 1));
+        }
+        large.getAttachments().put("orderLines", orderLines);
+
+        byte[] compressed = serializer.serialize(large);
+
+        Assert.assertTrue(compressed.length < plain.serialize(large).length);
+        assertTransaction(large, serializer.deserialize(compressed));
+        Assert.assertEquals(orderLines, serializer.deserialize(compressed).getAttachments().get("orderLines"));
+
+        // below the threshold the record is left as the delegate wrote it
+        serializer.setThreshold(Integer.MAX_VALUE);
+        Transaction small = sampleTransaction(1);
+        Assert.assertArrayEquals(plain.serialize(small), serializer.serialize(small));
+    }
+
+    @Test
+    public void compressingReadsRecordsStoredBeforeCompression() {
+
+        KryoPoolSerializer legacy = new KryoPoolSerializer();
+        CompressingObjectSerializer<Transaction> serializer = new CompressingObjectSerializer<Transaction>(legacy);
+        serializer.setThreshold(0);
+
+        Transaction transaction = sampleTransaction(3);
+
+        assertTransaction(transaction, serializer.deserialize(legacy.serialize(transaction)));
+        assertTransaction(transaction, serializer.deserialize(serializer.serialize(transaction)));
+    }
+
+    @Test
+    public void compressingBinary() {
+
+        ObjectSerializer serializer = new CompressingObjectSerializer<Object>(new BinaryTransactionSerializer());
+
+        Transaction transaction = sampleTransaction(20);
+
+        assertTransaction(transaction, (Transaction) serializer.deserialize(serializer.serialize(transaction)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void transactionRecords() {
+
+        JdkSerializationSerializer serializer = new JdkSerializationSerializer();
+
+        Transaction transaction = sampleTransaction(2);
+
+        // the map format of earlier versions by default, they read the status from CONTENT
+        byte[] legacy = TransactionSerializer.serialize(serializer, transaction);
+        Map<String, Object> map = (Map<String, Object>) serializer.deserialize(legacy);
+        assertTransaction(transaction, (Transaction) serializer.deserialize((byte[]) map.get("CONTENT")));
+        Assert.assertEquals(transaction.getVersion(), map.get("VERSION"));
+        assertTransaction(transaction, TransactionSerializer.deserialize(serializer, legacy));
+
+        byte[] envelope = TransactionSerializer.serialize(serializer, transaction, true);
+        Assert.assertEquals('T', envelope[0]);
+        Assert.assertEquals('C', envelope[1]);
+        assertTransaction(transaction, TransactionSerializer.deserialize(serializer, envelope));
+
+        transaction.changeStatus(TransactionStatus.CANCELLING);
+        transaction.updateVersion();
+
+        // a status update keeps the format, unless the envelope is enabled
+        byte[] updated = TransactionSerializer.serializeStatus(serializer, legacy, transaction, false);
+        map = (Map<String, Object>) serializer.deserialize(updated);
+        assertTransaction(transaction, (Transaction) serializer.deserialize((byte[]) map.get("CONTENT")));
+
+        updated = TransactionSerializer.serializeStatus(serializer, legacy, transaction, true);
+        Assert.assertEquals('T', updated[0]);
+        assertTransaction(transaction, TransactionSerializer.deserialize(serializer, updated));
+
+        updated = TransactionSerializer.serializeStatus(serializer, envelope, transaction, false);
+        Assert.assertEquals(envelope.length, updated.length);
+        assertTransaction(transaction, TransactionSerializer.deserialize(serializer, updated));
+    }
+
+    private static void assertTransaction(Transaction expected, Transaction actual) {
+
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getStatus(), actual.getStatus());
+        Assert.assertEquals(expected.getTransactionType(), actual.getTransactionType());
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getRetriedCount(), actual.getRetriedCount());
+        Assert.assertEquals(expected.getCreateTime().getTime(), actual.getCreateTime().getTime());
+        Assert.assertEquals(expected.getLastUpdateTime().getTime(), actual.getLastUpdateTime().getTime());
+        Assert.assertEquals(expected.getParticipants().size(), actual.getParticipants().size());
+
+        for (int i = 0; i < expected.getParticipants().size(); i++) {
+            assertParticipant(expected.getParticipants().get(i), actual.getParticipants().get(i));
+        }
+    }
+
+    private static void assertParticipant(Participant expected, Participant actual) {
+
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getTransactionContextEditorClass(), actual.getTransactionContextEditorClass());
+        assertInvocationContext(expected.getConfirmInvocationContext(), actual.getConfirmInvocationContext());
+        assertInvocationContext(expected.getCancelInvocationContext(), actual.getCancelInvocationContext());
+    }
+
+    private static void assertInvocationContext(InvocationContext expected, InvocationContext actual) {
+
+        Assert.assertEquals(expected.getTargetClass(), actual.getTargetClass());
+        Assert.assertEquals(expected.getMethodName(), actual.getMethodName());
+        Assert.assertArrayEquals(expected.getParameterTypes(), actual.getParameterTypes());
+        Assert.assertArrayEquals(expected.getArgs(), actual.getArgs());
+    }
+
+    private static Transaction sampleTransaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        transaction.addRetriedCount();
+        transaction.updateVersion();
+
+        Class[] parameterTypes = new Class[]{TransactionContext.class, long.class, BigDecimal.class};
+
+        for (int i = 0; i < participantCount; i++) {
+
+            InvocationContext confirmInvocationContext = new InvocationContext(SerializerTest.class, "confirmRecord",
+                    parameterTypes, null, 1000L + i, new BigDecimal("100.50"));
+            InvocationContext cancelInvocationContext = new InvocationContext(SerializerTest.class, "cancelRecord",
+                    parameterTypes, null, 1000L + i, new BigDecimal("100.50"));
+
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    confirmInvocationContext, cancelInvocationContext, Compensable.DefaultTransactionContextEditor.class));
+        }
+
+        return transaction;
+    }
+}
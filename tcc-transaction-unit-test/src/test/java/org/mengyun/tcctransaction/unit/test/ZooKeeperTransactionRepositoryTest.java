@@ -0,0 +1,213 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Page;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.ZooKeeperTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.XidKeyFormat;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs against an embedded zookeeper server in a temporary directory, no spring context needed.
+ */
+public class ZooKeeperTransactionRepositoryTest {
+
+    private File dataDir;
+
+    private ServerCnxnFactory serverFactory;
+
+    private String zkServers;
+
+    private List<ZooKeeperTransactionRepository> repositories = new ArrayList<ZooKeeperTransactionRepository>();
+
+    private boolean envelopeFormat;
+
+    @Before
+    public void before() throws Exception {
+
+        dataDir = File.createTempFile("tcc-zk", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        serverFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port), 100);
+        serverFactory.startup(new ZooKeeperServer(dataDir, dataDir, 2000));
+
+        zkServers = "127.0.0.1:" + port;
+    }
+
+    @After
+    public void after() {
+
+        for (ZooKeeperTransactionRepository repository : repositories) {
+            repository.close();
+        }
+
+        serverFactory.shutdown();
+        delete(dataDir);
+    }
+
+    @Test
+    public void flat() {
+        storeAndScan(0);
+    }
+
+    @Test
+    public void bucketed() {
+        storeAndScan(8);
+    }
+
+    @Test
+    public void bucketedEnvelopes() {
+        envelopeFormat = true;
+        storeAndScan(8);
+    }
+
+    @Test
+    public void switchToBuckets() {
+
+        ZooKeeperTransactionRepository flat = open(0);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 10; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            flat.create(transaction);
+            transactions.add(transaction);
+        }
+
+        ZooKeeperTransactionRepository bucketed = open(8);
+
+        for (int i = 0; i < 10; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            bucketed.create(transaction);
+        }
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        Assert.assertEquals(20, bucketed.findAllUnmodifiedSince(future).size());
+
+        // transactions stored before the switch are still updated and deleted in place
+        Transaction legacy = open(8).findByXid((TransactionXid) transactions.get(0).getXid());
+        Assert.assertNotNull(legacy);
+        legacy.changeStatus(TransactionStatus.CONFIRMING);
+        bucketed.updateStatus(legacy);
+        bucketed.update(legacy);
+        bucketed.delete(legacy);
+
+        Assert.assertNull(open(8).findByXid((TransactionXid) transactions.get(0).getXid()));
+        Assert.assertEquals(19, open(8).findAllUnmodifiedSince(future).size());
+
+        // without buckets the bucket znodes are skipped, not read as transactions
+        Assert.assertEquals(9, open(0).findAllUnmodifiedSince(future).size());
+    }
+
+    private void storeAndScan(int bucketCount) {
+
+        ZooKeeperTransactionRepository repository = open(bucketCount);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 50; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        for (int i = 0; i < 50; i += 2) {
+            transactions.get(i).changeStatus(TransactionStatus.CONFIRMING);
+            repository.updateStatus(transactions.get(i));
+        }
+
+        for (int i = 0; i < 50; i += 5) {
+            repository.delete(transactions.get(i));
+        }
+
+        // a second node, nothing cached
+        ZooKeeperTransactionRepository reader = open(bucketCount);
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        Assert.assertEquals(40, reader.findAllUnmodifiedSince(future).size());
+
+        Set<Xid> paged = new HashSet<Xid>();
+        String offset = null;
+
+        do {
+            Page<Transaction> page = reader.findAllUnmodifiedSince(future, offset, 7);
+            Assert.assertTrue(page.getData().size() <= 7);
+            for (Transaction transaction : page.getData()) {
+                paged.add(transaction.getXid());
+            }
+            offset = page.getNextOffset();
+        } while (offset != null);
+
+        Assert.assertEquals(40, paged.size());
+
+        List<TransactionXid> xids = new ArrayList<TransactionXid>();
+
+        for (Transaction transaction : transactions) {
+            xids.add((TransactionXid) transaction.getXid());
+        }
+
+        List<Transaction> found = reader.findByXids(xids);
+
+        Assert.assertEquals(40, found.size());
+
+        for (int i = 0, j = 0; i < 50; i++) {
+
+            Transaction stored = reader.findByXid(xids.get(i));
+
+            if (i % 5 == 0) {
+                Assert.assertNull(stored);
+            } else {
+                Assert.assertEquals(xids.get(i), found.get(j++).getXid());
+                Assert.assertEquals(transactions.get(i).getVersion(), stored.getVersion());
+                Assert.assertEquals(i % 2 == 0 ? TransactionStatus.CONFIRMING : TransactionStatus.TRYING, stored.getStatus());
+            }
+        }
+    }
+
+    private ZooKeeperTransactionRepository open(int bucketCount) {
+        ZooKeeperTransactionRepository repository = new ZooKeeperTransactionRepository();
+        repository.setZkServers(zkServers);
+        repository.setZkTimeout(10000);
+        repository.setZkRootPath("/tcc-test");
+        repository.setKeyFormat(XidKeyFormat.HEX);
+        repository.setBucketCount(bucketCount);
+        repository.setEnvelopeFormat(envelopeFormat);
+        repositories.add(repository);
+        return repository;
+    }
+
+    private static void delete(File file) {
+
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}